@@ -0,0 +1,339 @@
+package org.huronbikes.dos;
+
+import lombok.Builder;
+import org.huronbikes.dos.Directory.DirectoryItemEntry;
+import org.huronbikes.dos.Directory.DirectoryWalker;
+import org.huronbikes.dos.FAT.FAT;
+import org.huronbikes.dos.FAT.FAT16;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams the file tree of a volume straight into a zip or tar archive, without extracting anything to disk first.
+ * The tree is walked once to collect the entries; directories are written first, then the files in the order of their
+ * first cluster, so the image is read front to back.  File data goes from the cluster chains to the archive through
+ * one buffer of a fixed number of clusters, so memory does not grow with the size of the files.  Write times, and for
+ * zip also creation and access dates, are carried over from the directory entries.
+ * <p>
+ * The archive can go to any stream, standard output included.  The stream is flushed but not closed.
+ * <pre>
+ * ArchiveExporter.builder().fat(volume.getFat()).format(ArchiveExporter.Format.TAR).build().export(System.out);
+ * </pre>
+ */
+@Builder
+public class ArchiveExporter {
+    private static final int TAR_BLOCK = 512;
+    // tar archives are padded to whole records of 20 blocks, as tar itself writes them
+    private static final int TAR_RECORD = 20 * TAR_BLOCK;
+    private static final int TAR_NAME_LENGTH = 100;
+    private static final int TAR_PREFIX_LENGTH = 155;
+    private static final String TAR_LONG_NAME = "././@LongLink";
+
+    private final FAT fat;
+
+    @Builder.Default
+    private final Format format = Format.ZIP;
+
+    /**
+     * The most clusters read at once; bounds the memory used for file data.
+     */
+    @Builder.Default
+    private final int bufferClusters = 64;
+
+    @Builder.Default
+    private final int zipLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * The zone the volume's local times are in, used for tar's epoch times.
+     */
+    @Builder.Default
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    public enum Format {
+        ZIP,
+        TAR
+    }
+
+    /**
+     * @param damaged files whose chain ended before their size; the missing bytes are written as zeros
+     */
+    public record Report(int files, int directories, long bytes, List<String> damaged, long elapsedNanos) {
+    }
+
+    private record Item(String path, DirectoryItemEntry entry) {
+        boolean isDirectory() {
+            return entry.getAttributes().isDirectory();
+        }
+    }
+
+    public Report export(OutputStream output) throws IOException {
+        long began = System.nanoTime();
+        List<Item> items = Collections.synchronizedList(new ArrayList<>());
+        DirectoryWalker.builder().build().walk(fat.getRootDirectory(), (path, entry, depth) -> items.add(new Item(path, entry)));
+        List<Item> directories = new ArrayList<>();
+        List<Item> files = new ArrayList<>();
+        for(var item : items) {
+            (item.isDirectory() ? directories : files).add(item);
+        }
+        directories.sort(Comparator.comparing(Item::path));
+        files.sort(Comparator.comparingInt((Item item) -> item.entry().getFirstCluster()).thenComparing(Item::path));
+
+        var writer = format == Format.ZIP ? new ZipWriter(output) : new TarWriter(output);
+        var buffer = ByteBuffer.allocate(bufferClusters * fat.getBytesPerCluster());
+        List<String> damaged = new ArrayList<>();
+        long bytes = 0;
+        for(var directory : directories) {
+            writer.begin(directory.path() + "/", directory.entry(), 0);
+            writer.end();
+        }
+        for(var file : files) {
+            long size = file.entry().getFileSize();
+            writer.begin(file.path(), file.entry(), size);
+            long written = copyFile(file.entry(), writer, buffer);
+            if(written < size) {
+                damaged.add(file.path());
+                writer.zeros(size - written);
+            }
+            writer.end();
+            bytes += size;
+        }
+        writer.finish();
+        output.flush();
+        return new Report(files.size(), directories.size(), bytes, List.copyOf(damaged), System.nanoTime() - began);
+    }
+
+    /**
+     * Copies a file's clusters in runs of adjacent clusters, as far as its chain goes.
+     * @return the bytes written
+     */
+    private long copyFile(DirectoryItemEntry entry, ArchiveWriter writer, ByteBuffer buffer) throws IOException {
+        long size = entry.getFileSize();
+        if(size == 0 || entry.getFirstCluster() < 2) {
+            return 0;
+        }
+        List<Integer> chain;
+        try {
+            chain = fat.getClusters(entry.getFirstCluster());
+        } catch (IllegalStateException e) {
+            return 0;
+        }
+        int bytesPerCluster = fat.getBytesPerCluster();
+        long written = 0;
+        int index = 0;
+        while(index < chain.size() && written < size) {
+            int first = chain.get(index);
+            int run = 1;
+            while(run < bufferClusters && index + run < chain.size() && chain.get(index + run) == first + run
+                    && written + (long) run * bytesPerCluster < size) {
+                run++;
+            }
+            if(fat instanceof FAT16 fat16) {
+                fat16.readClusters(first, run, buffer);
+            } else {
+                buffer.clear();
+                for(int i = 0; i < run; i++) {
+                    fat.readCluster(first + i, buffer.slice(i * bytesPerCluster, bytesPerCluster));
+                }
+                buffer.limit(run * bytesPerCluster);
+            }
+            int length = (int) Math.min(run * (long) bytesPerCluster, size - written);
+            writer.write(buffer.array(), 0, length);
+            written += length;
+            index += run;
+        }
+        return written;
+    }
+
+    private interface ArchiveWriter {
+        /**
+         * Starts an entry.  Directory names end with a slash.
+         */
+        void begin(String name, DirectoryItemEntry entry, long size) throws IOException;
+
+        void write(byte[] data, int offset, int length) throws IOException;
+
+        default void zeros(long count) throws IOException {
+            var zeros = new byte[TAR_BLOCK];
+            for(long left = count; left > 0; left -= zeros.length) {
+                write(zeros, 0, (int) Math.min(zeros.length, left));
+            }
+        }
+
+        void end() throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    private class ZipWriter implements ArchiveWriter {
+        private final ZipOutputStream zip;
+
+        ZipWriter(OutputStream output) {
+            this.zip = new ZipOutputStream(output, StandardCharsets.UTF_8);
+            zip.setLevel(zipLevel);
+        }
+
+        @Override
+        public void begin(String name, DirectoryItemEntry entry, long size) throws IOException {
+            var zipEntry = new ZipEntry(name);
+            entry.getWriteTime().toLocalDateTime().ifPresent(zipEntry::setTimeLocal);
+            entry.getCreationTime().toLocalDateTime().ifPresent(time -> zipEntry.setCreationTime(toFileTime(time)));
+            entry.getLastAccessDate().toLocalDateTime().ifPresent(time -> zipEntry.setLastAccessTime(toFileTime(time)));
+            zip.putNextEntry(zipEntry);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            zip.write(data, offset, length);
+        }
+
+        @Override
+        public void end() throws IOException {
+            zip.closeEntry();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            zip.finish();
+        }
+    }
+
+    /**
+     * Writes ustar headers, with a GNU long name entry ahead of names that do not fit the header.
+     */
+    private class TarWriter implements ArchiveWriter {
+        private final OutputStream output;
+        private long written;
+
+        TarWriter(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public void begin(String name, DirectoryItemEntry entry, long size) throws IOException {
+            var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            long mtime = entry.getWriteTime().toLocalDateTime().map(time -> time.atZone(zone).toEpochSecond()).orElse(0L);
+            boolean directory = entry.getAttributes().isDirectory();
+            int mode = directory ? 0755 : entry.getAttributes().isReadOnly() ? 0444 : 0644;
+            byte[] prefix = new byte[0];
+            if(nameBytes.length > TAR_NAME_LENGTH) {
+                int split = splitPoint(nameBytes);
+                if(split < 0) {
+                    var longName = new byte[nameBytes.length + 1];
+                    System.arraycopy(nameBytes, 0, longName, 0, nameBytes.length);
+                    writeBlock(header(TAR_LONG_NAME.getBytes(StandardCharsets.US_ASCII), new byte[0], 0644, longName.length, 0, (byte) 'L'));
+                    writeData(longName, 0, longName.length);
+                    pad();
+                    nameBytes = Arrays.copyOf(nameBytes, TAR_NAME_LENGTH);
+                } else {
+                    prefix = Arrays.copyOf(nameBytes, split);
+                    nameBytes = Arrays.copyOfRange(nameBytes, split + 1, nameBytes.length);
+                }
+            }
+            writeBlock(header(nameBytes, prefix, mode, size, mtime, directory ? (byte) '5' : (byte) '0'));
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            writeData(data, offset, length);
+        }
+
+        @Override
+        public void end() throws IOException {
+            pad();
+        }
+
+        /**
+         * Writes the two empty blocks that end an archive and pads it to a whole record.
+         */
+        @Override
+        public void finish() throws IOException {
+            writeBlock(new byte[TAR_BLOCK]);
+            writeBlock(new byte[TAR_BLOCK]);
+            int tail = (int) (written % TAR_RECORD);
+            if(tail != 0) {
+                writeData(new byte[TAR_RECORD - tail], 0, TAR_RECORD - tail);
+            }
+        }
+
+        /**
+         * @return where to split a long name into prefix and name at a slash, or -1 if it can not be split
+         */
+        private static int splitPoint(byte[] name) {
+            for(int i = Math.min(name.length - 2, TAR_PREFIX_LENGTH); i > 0; i--) {
+                if(name[i] == '/' && name.length - i - 1 <= TAR_NAME_LENGTH) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static byte[] header(byte[] name, byte[] prefix, int mode, long size, long mtime, byte type) {
+            var header = new byte[TAR_BLOCK];
+            System.arraycopy(name, 0, header, 0, Math.min(name.length, TAR_NAME_LENGTH));
+            octal(header, 100, 8, mode);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, size);
+            octal(header, 136, 12, mtime);
+            header[156] = type;
+            System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+            System.arraycopy(prefix, 0, header, 345, Math.min(prefix.length, TAR_PREFIX_LENGTH));
+            // the checksum is taken with its own field filled with spaces
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            int checksum = 0;
+            for(byte b : header) {
+                checksum += b & 0xFF;
+            }
+            octal(header, 148, 7, checksum);
+            return header;
+        }
+
+        /**
+         * Writes a zero-padded octal number ending in a NUL.
+         */
+        private static void octal(byte[] header, int offset, int length, long value) {
+            var digits = Long.toOctalString(value);
+            if(digits.length() > length - 1) {
+                throw new IllegalArgumentException(String.format("%d does not fit a %d byte tar field", value, length));
+            }
+            int start = offset + length - 1 - digits.length();
+            Arrays.fill(header, offset, start, (byte) '0');
+            System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, start, digits.length());
+            header[offset + length - 1] = 0;
+        }
+
+        private void pad() throws IOException {
+            int tail = (int) (written % TAR_BLOCK);
+            if(tail != 0) {
+                writeData(new byte[TAR_BLOCK - tail], 0, TAR_BLOCK - tail);
+            }
+        }
+
+        private void writeBlock(byte[] block) throws IOException {
+            writeData(block, 0, block.length);
+        }
+
+        private void writeData(byte[] data, int offset, int length) throws IOException {
+            output.write(data, offset, length);
+            written += length;
+        }
+    }
+
+    private FileTime toFileTime(LocalDateTime time) {
+        return FileTime.from(time.atZone(zone).toInstant());
+    }
+}
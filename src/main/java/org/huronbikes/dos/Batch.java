@@ -0,0 +1,95 @@
+package org.huronbikes.dos;
+
+import org.huronbikes.dos.Directory.DirectoryBase;
+import org.huronbikes.dos.Directory.DirectoryCache;
+import org.huronbikes.dos.FAT.FAT;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A set of directory changes applied together by {@link VolumeContext#batch(Operation)}.  Changes are recorded in
+ * order and applied once the operation returns: the clusters for every new directory and file are allocated with a
+ * single call, each changed cluster is written once and the FAT is committed once.
+ * <p>
+ * Paths are relative to the root directory and may name directories created earlier in the same batch.
+ */
+public class Batch {
+
+    @FunctionalInterface
+    public interface Operation {
+        void apply(Batch batch) throws IOException;
+    }
+
+    private sealed interface Change permits MakeDirectory, CreateFile, Delete {
+        String path();
+    }
+
+    private record MakeDirectory(String path) implements Change {}
+    private record CreateFile(String path, byte[] content) implements Change {}
+    private record Delete(String path) implements Change {}
+
+    private final List<Change> changes = new ArrayList<>();
+
+    public Batch mkdir(String path) {
+        changes.add(new MakeDirectory(path));
+        return this;
+    }
+
+    public Batch createFile(String path, byte[] content) {
+        changes.add(new CreateFile(path, content));
+        return this;
+    }
+
+    /**
+     * Deletes a file or an empty directory.
+     */
+    public Batch delete(String path) {
+        changes.add(new Delete(path));
+        return this;
+    }
+
+    public int size() {
+        return changes.size();
+    }
+
+    /**
+     * Applies the recorded changes.  The caller is responsible for holding the FAT's writes until they are done.
+     */
+    void apply(FAT fat, DirectoryCache directoryCache) throws IOException {
+        int bytesPerCluster = fat.getBytesPerCluster();
+        int clusterCount = 0;
+        for(var change : changes) {
+            if(change instanceof MakeDirectory) {
+                clusterCount++;
+            } else if(change instanceof CreateFile createFile) {
+                clusterCount += (createFile.content().length + bytesPerCluster - 1) / bytesPerCluster;
+            }
+        }
+        Iterator<Integer> clusters = fat.allocate(clusterCount).iterator();
+
+        for(var change : changes) {
+            int separator = Math.max(change.path().lastIndexOf('/'), change.path().lastIndexOf('\\'));
+            var parentPath = separator < 0 ? "" : change.path().substring(0, separator);
+            var name = change.path().substring(separator + 1);
+            DirectoryBase parent = directoryCache.resolveDirectory(parentPath);
+            if(parent == null) {
+                throw new IllegalArgumentException(String.format("%s is not a directory", parentPath));
+            }
+            switch(change) {
+                case MakeDirectory makeDirectory -> parent.makeDirectory(name, clusters.next());
+                case CreateFile createFile -> {
+                    int fileClusterCount = (createFile.content().length + bytesPerCluster - 1) / bytesPerCluster;
+                    var fileClusters = new ArrayList<Integer>(fileClusterCount);
+                    for(int i = 0; i < fileClusterCount; i++) {
+                        fileClusters.add(clusters.next());
+                    }
+                    parent.createFile(name, createFile.content(), fileClusters);
+                }
+                case Delete delete -> parent.delete(name);
+            }
+        }
+    }
+}
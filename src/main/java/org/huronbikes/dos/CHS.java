@@ -10,6 +10,7 @@ import java.nio.ByteBuffer;
 @Data
 @AllArgsConstructor
 public class CHS {
+    public static final int MAX_CYLINDER = 1023;
     private int cylinder;
     private int sector;
     private int head;
@@ -23,13 +24,27 @@ public class CHS {
     }
 
     public static CHS fromByteBuffer(ByteBuffer buffer) {
-        int head= buffer.get(0);
+        int head= buffer.get(0) & 0xFF;
         int sector=((int)buffer.get(1)) & 0x03f;
         int cylinder = (((int) buffer.get(1)) & 0x0C0) << 2;
-        cylinder += buffer.get(2);
+        cylinder += buffer.get(2) & 0xFF;
         return new CHS(cylinder, sector, head);
     }
 
+    /**
+     * Converts a sector number to the CHS address the BIOS would use for it.  Sectors past what CHS can address get
+     * the largest address, as partitioning tools write for LBA partitions.
+     */
+    public static CHS fromLba(long lba, int heads, int sectorsPerTrack) {
+        long cylinder = lba / ((long) heads * sectorsPerTrack);
+        if(cylinder > MAX_CYLINDER) {
+            return new CHS(MAX_CYLINDER, sectorsPerTrack, heads - 1);
+        }
+        int head = (int) ((lba / sectorsPerTrack) % heads);
+        int sector = (int) (lba % sectorsPerTrack) + 1;
+        return new CHS((int) cylinder, sector, head);
+    }
+
     public void put(ByteBuffer buffer) {
         byte sectorAndCylinderHigh = (byte)(((cylinder & 0x300) >> 2) + sector);
         buffer.put((byte) head);
@@ -0,0 +1,19 @@
+package org.huronbikes.dos.Directory;
+
+/**
+ * The outcome of compacting a directory.  Every lookup or listing that misses the name index reads each cluster of a
+ * directory, so the clusters freed are the scan cost saved.  The root directory has a fixed size and reports 0
+ * clusters.
+ * @param clustersBefore the clusters in the directory's chain before compaction
+ * @param clustersAfter the clusters left in the chain
+ * @param deletedSlots the deleted entry slots that were dropped
+ */
+public record CompactionResult(int clustersBefore, int clustersAfter, int deletedSlots) {
+    public int getClustersFreed() {
+        return clustersBefore - clustersAfter;
+    }
+
+    public boolean isChanged() {
+        return deletedSlots > 0 || clustersBefore != clustersAfter;
+    }
+}
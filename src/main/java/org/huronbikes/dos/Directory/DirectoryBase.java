@@ -1,13 +1,20 @@
 package org.huronbikes.dos.Directory;
 
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import org.huronbikes.dos.FAT.FAT;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 @RequiredArgsConstructor
@@ -15,13 +22,34 @@ public abstract class DirectoryBase implements Directory {
     public static final String CURRENT_DIRECTORY_NAME = ".";
     public static final String PARENT_DIRECTORY_NAME = "..";
     protected final FAT fat;
+    private Map<String, DirectoryItemEntry> nameIndex;
+    private Map<String, DirectoryItemEntry> longNameIndex;
+    private DirectorySlots slots;
+    // next numeric tail to try for each generated short name basis, so creating many similar long names stays linear
+    private final Map<LongFileName.ShortNameBasis, Integer> shortNameTails = new HashMap<>();
+    @Getter
+    @Setter
+    private DirectoryListener listener;
 
     public abstract int getFirstClusterNumber();
     public abstract int getLastClusterNumber();
     public abstract void addCluster(int newClusterNumber);
     public abstract String getVolumeLabel();
 
-    public abstract Stream<DirectoryItemEntry> getDirectoryEntries() throws IOException;
+    /**
+     * Returns the entries of the directory in on-disk order, with their long file names attached.  Deleted entries
+     * and long name entries are left out.
+     */
+    public Stream<DirectoryItemEntry> getDirectoryEntries() throws IOException {
+        var entries = new ArrayList<DirectoryItemEntry>();
+        scanEntries(entries::add, null);
+        return entries.stream();
+    }
+
+    /**
+     * Visits every slot of the directory, used or not, in on-disk order without building entry objects.
+     */
+    public abstract void scan(DirectoryEntryView.Visitor visitor) throws IOException;
 
     @Override
     public List<DirectoryItemEntry> list() throws IOException {
@@ -33,31 +61,196 @@ public abstract class DirectoryBase implements Directory {
 
     @Override
     public DirectoryBase getSubDirectory(String directory) throws IOException {
-        var result = getDirectoryEntries()
-                .filter(e -> e.getName().equalsIgnoreCase(directory))
-                .filter(e -> e.getAttributes().isDirectory())
-                .findFirst();
-        if( result.isPresent() ) {
-            return getSubDirectory(result.get());
+        var result = getEntry(directory);
+        if(result != null && result.getAttributes().isDirectory()) {
+            return getSubDirectory(result);
         } else {
             return null;
         }
     }
 
-    public DirectoryBase makeDirectory(String directoryName) throws IOException {
-        int bytesPerCluster = fat.getBytesPerCluster();
-        if(directoryName.length() > 8) {
-            throw new IllegalArgumentException("Directory name must be less than 8 characters");
+    /**
+     * Finds an entry of this directory by name.  Lookups go through name indexes that are built from a single scan
+     * of the directory the first time they are needed.
+     * @param name the long file name or 8.3 name of the entry, case-insensitive
+     * @return the matching entry, or null if the directory has no entry with that name
+     */
+    public DirectoryItemEntry getEntry(String name) throws IOException {
+        if(nameIndex == null) {
+            buildIndexes();
+        }
+        var entry = longNameIndex.get(LongFileName.key(name));
+        if(entry != null) {
+            return entry;
+        }
+        var key = DirectoryItemEntry.shortNameKey(name);
+        return key == null ? null : nameIndex.get(key);
+    }
+
+    /**
+     * Returns the map of free slots in this directory, building it on first use.
+     */
+    DirectorySlots getSlots() throws IOException {
+        if(slots == null) {
+            buildIndexes();
+        }
+        return slots;
+    }
+
+    /**
+     * Builds the name indexes and the free slot map from one scan of the directory.
+     */
+    private void buildIndexes() throws IOException {
+        Map<String, DirectoryItemEntry> index = new HashMap<>();
+        Map<String, DirectoryItemEntry> longIndex = new HashMap<>();
+        var freeSlots = new DirectorySlots();
+        scanEntries(entry -> {
+            if(!entry.getAttributes().isVolumeId()) {
+                index.putIfAbsent(entry.getShortNameKey(), entry);
+                if(entry.hasLongName()) {
+                    longIndex.putIfAbsent(entry.getLongNameKey(), entry);
+                }
+            }
+        }, freeSlots);
+        nameIndex = index;
+        longNameIndex = longIndex;
+        slots = freeSlots;
+    }
+
+    /**
+     * Scans the directory once, decoding long file names as it goes.  Every slot after the first unused (0x00) slot
+     * is treated as free, as the entries after the end of a directory are not meaningful.
+     * @param entries receives every live 8.3 entry, with its long name attached
+     * @param freeSlots if not null, receives whether each slot is free
+     */
+    private void scanEntries(Consumer<DirectoryItemEntry> entries, DirectorySlots freeSlots) throws IOException {
+        var longName = new LongFileName.Assembler();
+        boolean[] ended = new boolean[1];
+        scan(view -> {
+            ended[0] |= view.isUnused();
+            boolean free = ended[0] || view.isDeleted();
+            if(free) {
+                longName.reset();
+            } else if(view.isLongNameEntry()) {
+                longName.accept(view);
+            } else {
+                entries.accept(new DirectoryItemEntry(view, longName.complete(view)));
+            }
+            if(freeSlots != null) {
+                freeSlots.append(free);
+            } else if(ended[0]) {
+                return false;
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Builds a new entry, generating a unique 8.3 name with a numeric tail if the name needs a long file name.
+     */
+    private DirectoryItemEntry newEntry(String name, DirectoryItemEntry.Attributes attributes, int firstCluster, long fileSize) throws IOException {
+        LocalDateTime now = LocalDateTime.now();
+        if(LongFileName.isShortName(name)) {
+            return DirectoryItemEntry.createNew(name, attributes, now, now, firstCluster, fileSize);
+        }
+        return DirectoryItemEntry.createNew(generateShortName(name), attributes, now, now, firstCluster, fileSize)
+                .withLongName(name);
+    }
+
+    private String generateShortName(String longName) throws IOException {
+        if(nameIndex == null) {
+            buildIndexes();
+        }
+        var basis = LongFileName.ShortNameBasis.of(longName);
+        int tail = shortNameTails.getOrDefault(basis, 1);
+        while(nameIndex.containsKey(DirectoryItemEntry.shortNameKey(basis.withTail(tail)))) {
+            tail++;
+        }
+        if(tail > 999999) {
+            throw new IllegalStateException(String.format("No short name is left for %s", longName));
         }
-        var clusters = fat.allocate(1);
+        shortNameTails.put(basis, tail + 1);
+        return basis.withTail(tail);
+    }
+
+    /**
+     * Records a newly written entry in the name index and notifies the listener.
+     */
+    protected void entryAdded(DirectoryItemEntry entry) {
+        if(nameIndex != null) {
+            nameIndex.put(entry.getShortNameKey(), entry);
+            if(entry.hasLongName()) {
+                longNameIndex.put(entry.getLongNameKey(), entry);
+            }
+        }
+        if(listener != null) {
+            listener.entryAdded(this, entry);
+        }
+    }
+
+    /**
+     * Drops a deleted entry from the name index and notifies the listener.
+     */
+    protected void entryRemoved(DirectoryItemEntry entry) {
+        if(nameIndex != null) {
+            nameIndex.remove(entry.getShortNameKey());
+            if(entry.hasLongName()) {
+                longNameIndex.remove(entry.getLongNameKey());
+            }
+        }
+        if(listener != null) {
+            listener.entryRemoved(this, entry);
+        }
+    }
+
+    /**
+     * Rebuilds the indexes after entries were moved to other slots and notifies the listener.
+     */
+    protected void entriesMoved() {
+        invalidateIndex();
+        if(listener != null) {
+            listener.entriesMoved(this);
+        }
+    }
+
+    /**
+     * Hands this directory's listener down to a directory opened from it.
+     */
+    protected DirectoryBase inheritListener(DirectoryBase directory) {
+        if(directory != this) {
+            directory.setListener(listener);
+        }
+        return directory;
+    }
+
+    /**
+     * Drops the name index and free slot map so that they are rebuilt on the next use.  Used when entries change
+     * slots.
+     */
+    protected void invalidateIndex() {
+        nameIndex = null;
+        longNameIndex = null;
+        slots = null;
+    }
+
+    public DirectoryBase makeDirectory(String directoryName) throws IOException {
+        checkNewEntry(directoryName);
+        return makeDirectory(directoryName, fat.allocate(1).getFirst());
+    }
+
+    /**
+     * Creates a directory in a cluster that was already taken from {@link FAT#allocate(int)}, so that callers
+     * creating many entries can allocate their clusters together.
+     */
+    public DirectoryBase makeDirectory(String directoryName, int clusterNumber) throws IOException {
+        checkNewEntry(directoryName);
+        var clusters = List.of(clusterNumber);
         fat.store(clusters);
         ByteBuffer content = ByteBuffer.allocate(fat.getBytesPerCluster());
         LocalDateTime now = LocalDateTime.now();
-        DirectoryItemEntry newEntry = DirectoryItemEntry.createNew(
+        DirectoryItemEntry newEntry = newEntry(
                 directoryName,
                 DirectoryItemEntry.Attributes.builder().directory(true).build(),
-                now,
-                now,
                 clusters.getFirst(),
                 0L);
 
@@ -95,7 +288,161 @@ public abstract class DirectoryBase implements Directory {
         return getSubDirectory(newEntry);
     }
 
+    /**
+     * Creates a file holding the given content.
+     * @param fileName the name of the file.  Names that do not fit 8.3 are stored as long file names.
+     */
+    public DirectoryItemEntry createFile(String fileName, byte[] content) throws IOException {
+        checkNewEntry(fileName);
+        return createFile(fileName, content, fat.allocate((long) content.length));
+    }
+
+    /**
+     * Creates a file in clusters that were already taken from {@link FAT#allocate(long)}.
+     * @param clusters exactly as many clusters as the content needs; empty for an empty file
+     */
+    public DirectoryItemEntry createFile(String fileName, byte[] content, List<Integer> clusters) throws IOException {
+        checkNewEntry(fileName);
+        int bytesPerCluster = fat.getBytesPerCluster();
+        if(clusters.size() != (content.length + bytesPerCluster - 1) / bytesPerCluster) {
+            throw new IllegalArgumentException(String.format("%d clusters do not fit %d bytes", clusters.size(), content.length));
+        }
+        if(!clusters.isEmpty()) {
+            fat.store(clusters);
+            var cluster = ByteBuffer.allocate(bytesPerCluster);
+            for(int i = 0; i < clusters.size(); i++) {
+                int start = i * bytesPerCluster;
+                Arrays.fill(cluster.array(), (byte) 0);
+                cluster.put(0, content, start, Math.min(bytesPerCluster, content.length - start));
+                fat.writeCluster(cluster, clusters.get(i));
+            }
+        }
+        DirectoryItemEntry newEntry = newEntry(
+                fileName,
+                DirectoryItemEntry.Attributes.builder().archive(true).build(),
+                clusters.isEmpty() ? 0 : clusters.getFirst(),
+                content.length);
+        addDirectoryEntry(newEntry);
+        fat.commit();
+        return getEntry(fileName);
+    }
+
+    private void checkNewEntry(String name) throws IOException {
+        LongFileName.validate(name);
+        if(getEntry(name) != null) {
+            throw new IllegalArgumentException(String.format("%s already exists", name));
+        }
+    }
+
+    /**
+     * Deletes a file or an empty directory.  The entry's slot is marked deleted with a single write, after which its
+     * clusters are freed and the FAT is committed.
+     * @param name the long file name or 8.3 name of the entry, case-insensitive
+     */
+    public void delete(String name) throws IOException {
+        var entry = getEntry(name);
+        if(entry == null) {
+            throw new IllegalArgumentException(String.format("%s does not exist", name));
+        }
+        if(entry.getName().equals(CURRENT_DIRECTORY_NAME) || entry.getName().equals(PARENT_DIRECTORY_NAME)) {
+            throw new IllegalArgumentException("Cannot remove the current/parent directory references");
+        }
+        if(entry.getAttributes().isDirectory()) {
+            boolean empty = getSubDirectory(entry).getDirectoryEntries()
+                    .allMatch(e -> e.getName().equals(CURRENT_DIRECTORY_NAME) || e.getName().equals(PARENT_DIRECTORY_NAME));
+            if(!empty) {
+                throw new IllegalArgumentException(String.format("%s is not empty", name));
+            }
+        }
+        removeDirectoryEntry(entry);
+        if(entry.getFirstCluster() >= 2) {
+            fat.free(fat.getClusters(entry.getFirstCluster()));
+        }
+        fat.commit();
+    }
+
+    /**
+     * Deletes a file or a directory together with everything below it.  The cluster chains of the whole subtree are
+     * collected with one walk, the entry's slots are marked deleted, and then every chain is freed with one FAT update
+     * and one commit.  Nothing below the deleted directory is rewritten.
+     * @param name the long file name or 8.3 name of the entry, case-insensitive
+     * @return the number of clusters freed
+     */
+    public int deleteRecursive(String name) throws IOException {
+        var entry = getEntry(name);
+        if(entry == null) {
+            throw new IllegalArgumentException(String.format("%s does not exist", name));
+        }
+        if(entry.getName().equals(CURRENT_DIRECTORY_NAME) || entry.getName().equals(PARENT_DIRECTORY_NAME)) {
+            throw new IllegalArgumentException("Cannot remove the current/parent directory references");
+        }
+
+        List<Integer> clusters = Collections.synchronizedList(new ArrayList<>());
+        if(entry.getFirstCluster() >= 2) {
+            clusters.addAll(fat.getClusters(entry.getFirstCluster()));
+        }
+        if(entry.getAttributes().isDirectory() && entry.getFirstCluster() >= 2) {
+            DirectoryWalker.builder().build().walk(getSubDirectory(entry), (path, child, depth) -> {
+                if(child.getFirstCluster() >= 2) {
+                    clusters.addAll(fat.getClusters(child.getFirstCluster()));
+                }
+            });
+        }
+
+        removeDirectoryEntry(entry);
+        fat.free(clusters);
+        fat.commit();
+        return clusters.size();
+    }
+
+    /**
+     * @return the share of slots up to the last entry in use that belong to deleted entries, between 0 and 1
+     */
+    public double getFragmentation() throws IOException {
+        return getSlots().getFragmentation();
+    }
+
+    /**
+     * @return the clusters at the end of the directory's chain that hold no entries, which compaction would free
+     */
+    public int getEmptyTrailingClusterCount() throws IOException {
+        return 0;
+    }
+
+    /**
+     * Rewrites the directory so that its entries occupy consecutive slots, releasing any clusters left empty.
+     * Deletion only marks slots, so this is the operation that reclaims their space.
+     * @return how many clusters the directory occupied before and after
+     */
+    public abstract CompactionResult compact() throws IOException;
+
+    /**
+     * Compacts the directory if its fragmentation has reached the threshold or it holds empty clusters at the end of
+     * its chain.  Meant to be run periodically or from a background task rather than on every deletion.
+     * @param threshold fragmentation between 0 and 1 at which to compact
+     * @return the result, or null if the directory was left alone
+     */
+    public CompactionResult compactIfFragmented(double threshold) throws IOException {
+        return needsCompaction(threshold) ? compact() : null;
+    }
+
+    /**
+     * @return true if {@link #compactIfFragmented(double)} would compact the directory
+     */
+    public boolean needsCompaction(double threshold) throws IOException {
+        return getFragmentation() >= threshold || getEmptyTrailingClusterCount() > 0;
+    }
+
     protected abstract void addDirectoryEntry(DirectoryItemEntry directoryItemEntry) throws IOException;
+
+    /**
+     * Adds several entries at once.  Directories that can combine the writes for a batch of entries override this.
+     */
+    protected void addDirectoryEntries(List<DirectoryItemEntry> directoryItemEntries) throws IOException {
+        for(var entry : directoryItemEntries) {
+            addDirectoryEntry(entry);
+        }
+    }
     protected abstract void removeDirectoryEntry(DirectoryItemEntry directoryItemEntry) throws IOException;
 
 }
@@ -0,0 +1,314 @@
+package org.huronbikes.dos.Directory;
+
+import lombok.Getter;
+import org.huronbikes.dos.FAT.FAT;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded cache of resolved paths.  Each cached path remembers the directory (or file entry) it resolved to, or that
+ * it does not exist.  Paths are resolved from the longest cached prefix, so resolving many entries below the same
+ * parent only reads the parent chain from disk once.
+ * <p>
+ * The cache registers itself as the listener of the root directory, and through it every directory opened below the
+ * root.  Cached paths are dropped when the entry they resolved through is added or removed.  Another listener can be
+ * handed to the constructor to be told about the same changes.
+ */
+public class DirectoryCache implements DirectoryListener {
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final String PATH_SEPARATORS = "[/\\\\]";
+
+    /**
+     * A cached path.  directory is set for directories, entry for anything but the root, and both are null when the
+     * path does not exist.
+     */
+    private record CachedPath(String path, int parentCluster, String name, DirectoryBase directory, DirectoryItemEntry entry) {
+        boolean exists() {
+            return entry != null;
+        }
+    }
+
+    private final FAT fat;
+    private final int capacity;
+    private final LinkedHashMap<String, CachedPath> paths;
+    private final Map<Integer, Set<String>> pathsByParentCluster = new HashMap<>();
+    private final Map<Integer, Set<String>> pathsByDirectoryCluster = new HashMap<>();
+    private final DirectoryListener other;
+    private DirectoryListener listener;
+    private DirectoryBase rootDirectory;
+    @Getter
+    private long hitCount;
+    @Getter
+    private long missCount;
+
+    public DirectoryCache(FAT fat) {
+        this(fat, DEFAULT_CAPACITY);
+    }
+
+    public DirectoryCache(FAT fat, int capacity) {
+        this(fat, capacity, null);
+    }
+
+    /**
+     * @param other also told about every change made below the root directory, may be null
+     */
+    public DirectoryCache(FAT fat, int capacity, DirectoryListener other) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.fat = fat;
+        this.capacity = capacity;
+        this.paths = new LinkedHashMap<>(16, 0.75f, true);
+        this.other = other;
+    }
+
+    /**
+     * The listener directories opened through the cache are given: the cache itself, or the cache and another.  It is
+     * put together on first use rather than in the constructor, so the cache is not handed out half built.
+     */
+    public synchronized DirectoryListener getListener() {
+        if(listener == null) {
+            listener = other == null ? this : DirectoryListener.both(this, other);
+        }
+        return listener;
+    }
+
+    public synchronized DirectoryBase getRootDirectory() throws IOException {
+        if(rootDirectory == null) {
+            rootDirectory = fat.getRootDirectory();
+            rootDirectory.setListener(getListener());
+        }
+        return rootDirectory;
+    }
+
+    /**
+     * Resolves a path to the directory it names.
+     * @param path names separated by / or \, relative to the root directory; . is skipped and .. drops the name before it
+     * @return the directory, or null if any part of the path does not exist or is not a directory
+     */
+    public synchronized DirectoryBase resolveDirectory(String path) throws IOException {
+        return resolveDirectory(split(path));
+    }
+
+    /**
+     * Resolves a path to the entry for its last name.
+     * @param path names separated by / or \, relative to the root directory; . is skipped and .. drops the name before it
+     * @return the entry, or null if the path does not exist.  The root directory has no entry, so an empty path
+     * also resolves to null.
+     */
+    public synchronized DirectoryItemEntry resolve(String path) throws IOException {
+        var names = split(path);
+        if(names.isEmpty()) {
+            return null;
+        }
+        var key = String.join("/", names);
+        var cached = paths.get(key);
+        if(cached != null) {
+            hitCount++;
+            return cached.entry();
+        }
+        var parent = resolveDirectory(names.subList(0, names.size() - 1));
+        if(parent == null) {
+            return null;
+        }
+        missCount++;
+        var name = names.getLast();
+        var entry = parent.getEntry(name);
+        DirectoryBase directory = entry != null && entry.getAttributes().isDirectory() ? parent.getSubDirectory(entry) : null;
+        put(new CachedPath(key, parent.getFirstClusterNumber(), name, directory, entry));
+        return entry;
+    }
+
+    public synchronized void clear() {
+        paths.clear();
+        pathsByParentCluster.clear();
+        pathsByDirectoryCluster.clear();
+        rootDirectory = null;
+    }
+
+    public synchronized int size() {
+        return paths.size();
+    }
+
+    private DirectoryBase resolveDirectory(List<String> names) throws IOException {
+        int resolved = names.size();
+        CachedPath cached = null;
+        for(; resolved > 0 && cached == null; resolved--) {
+            cached = paths.get(String.join("/", names.subList(0, resolved)));
+        }
+
+        DirectoryBase directory;
+        if(cached == null) {
+            directory = getRootDirectory();
+        } else {
+            resolved++;
+            hitCount++;
+            if(cached.directory() == null) {
+                return null;
+            }
+            directory = cached.directory();
+        }
+
+        for(; resolved < names.size(); resolved++) {
+            missCount++;
+            var name = names.get(resolved);
+            var key = String.join("/", names.subList(0, resolved + 1));
+            var entry = directory.getEntry(name);
+            var parentCluster = directory.getFirstClusterNumber();
+            if(entry == null || !entry.getAttributes().isDirectory()) {
+                put(new CachedPath(key, parentCluster, name, null, entry));
+                return null;
+            }
+            directory = directory.getSubDirectory(entry);
+            put(new CachedPath(key, parentCluster, name, directory, entry));
+        }
+        return directory;
+    }
+
+    private void put(CachedPath cachedPath) {
+        var previous = paths.put(cachedPath.path(), cachedPath);
+        if(previous != null) {
+            unlink(previous);
+        }
+        pathsByParentCluster.computeIfAbsent(cachedPath.parentCluster(), c -> new HashSet<>()).add(cachedPath.path());
+        if(cachedPath.directory() != null) {
+            pathsByDirectoryCluster.computeIfAbsent(cachedPath.directory().getFirstClusterNumber(), c -> new HashSet<>()).add(cachedPath.path());
+        }
+        if(paths.size() > capacity) {
+            var eldest = paths.entrySet().iterator().next().getValue();
+            paths.remove(eldest.path());
+            unlink(eldest);
+        }
+    }
+
+    private void unlink(CachedPath cachedPath) {
+        removeKey(pathsByParentCluster, cachedPath.parentCluster(), cachedPath.path());
+        if(cachedPath.directory() != null) {
+            removeKey(pathsByDirectoryCluster, cachedPath.directory().getFirstClusterNumber(), cachedPath.path());
+        }
+    }
+
+    private static void removeKey(Map<Integer, Set<String>> keysByCluster, int cluster, String key) {
+        var keys = keysByCluster.get(cluster);
+        if(keys != null) {
+            keys.remove(key);
+            if(keys.isEmpty()) {
+                keysByCluster.remove(cluster);
+            }
+        }
+    }
+
+    /**
+     * Removes a cached path and everything cached below it.
+     */
+    private void evict(CachedPath cachedPath) {
+        if(paths.remove(cachedPath.path()) == null) {
+            return;
+        }
+        unlink(cachedPath);
+        if(cachedPath.directory() != null) {
+            var children = pathsByParentCluster.get(cachedPath.directory().getFirstClusterNumber());
+            if(children != null) {
+                for(var child : new ArrayList<>(children)) {
+                    if(child.startsWith(cachedPath.path() + "/")) {
+                        var childPath = paths.get(child);
+                        if(childPath != null) {
+                            evict(childPath);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void invalidate(DirectoryBase directory, DirectoryItemEntry entry) {
+        int cluster = directory.getFirstClusterNumber();
+        var keys = pathsByParentCluster.get(cluster);
+        if(keys != null) {
+            for(var key : new ArrayList<>(keys)) {
+                var cachedPath = paths.get(key);
+                // a path may name the entry by its 8.3 name or by its long name
+                if(cachedPath != null && entry.isNamed(cachedPath.name())) {
+                    evict(cachedPath);
+                }
+            }
+        }
+
+        evictOtherInstances(directory);
+    }
+
+    /**
+     * Other instances of a directory that was changed hold a stale view of its entries and clusters.
+     */
+    private void evictOtherInstances(DirectoryBase directory) {
+        int cluster = directory.getFirstClusterNumber();
+        if(rootDirectory != null && cluster == rootDirectory.getFirstClusterNumber() && rootDirectory != directory) {
+            rootDirectory = null;
+        }
+        var sameDirectory = pathsByDirectoryCluster.get(cluster);
+        if(sameDirectory != null) {
+            for(var key : new ArrayList<>(sameDirectory)) {
+                var cachedPath = paths.get(key);
+                if(cachedPath != null && cachedPath.directory() != directory) {
+                    evict(cachedPath);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void entryAdded(DirectoryBase directory, DirectoryItemEntry entry) {
+        invalidate(directory, entry);
+    }
+
+    @Override
+    public synchronized void entryRemoved(DirectoryBase directory, DirectoryItemEntry entry) {
+        invalidate(directory, entry);
+    }
+
+    @Override
+    public synchronized void entriesMoved(DirectoryBase directory) {
+        // every cached entry of the directory now points at an old slot
+        var keys = pathsByParentCluster.get(directory.getFirstClusterNumber());
+        if(keys != null) {
+            for(var key : new ArrayList<>(keys)) {
+                var cachedPath = paths.get(key);
+                if(cachedPath != null) {
+                    evict(cachedPath);
+                }
+            }
+        }
+        evictOtherInstances(directory);
+    }
+
+    /**
+     * Splits a path into names, dropping . and taking .. back one name, so every path is cached under one key and
+     * never through the .. entries on disk.
+     * @throws IllegalArgumentException if .. goes above the root directory
+     */
+    private static List<String> split(String path) {
+        var names = new ArrayList<String>();
+        for(var name : path.split(PATH_SEPARATORS)) {
+            if(name.isEmpty() || name.equals(DirectoryBase.CURRENT_DIRECTORY_NAME)) {
+                continue;
+            }
+            if(name.equals(DirectoryBase.PARENT_DIRECTORY_NAME)) {
+                if(names.isEmpty()) {
+                    throw new IllegalArgumentException(String.format("%s goes above the root directory", path));
+                }
+                names.removeLast();
+            } else {
+                names.add(name.toUpperCase(Locale.ROOT));
+            }
+        }
+        return names;
+    }
+}
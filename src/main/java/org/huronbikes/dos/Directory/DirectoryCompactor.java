@@ -0,0 +1,56 @@
+package org.huronbikes.dos.Directory;
+
+import lombok.Builder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compacts every directory of a tree that {@link DirectoryBase#compactIfFragmented(double)} would compact, rewriting
+ * their live entries into as few clusters as they need and freeing the rest.  Meant to be run on demand or from a
+ * maintenance task, rather than on every deletion.
+ */
+@Builder
+public class DirectoryCompactor {
+    /**
+     * Share of a directory's slots, up to its last entry, that must be deleted before it is compacted.
+     */
+    @Builder.Default
+    private final double threshold = 0.25;
+
+    /**
+     * Finds the directories that need compaction with one parallel walk and then compacts them one at a time.
+     * @return the results of the directories that were changed, keyed by path; the starting directory has an empty
+     * path
+     */
+    public Map<String, CompactionResult> compactTree(DirectoryBase start) throws IOException {
+        record Candidate(String path, DirectoryBase directory) {}
+        List<Candidate> candidates = Collections.synchronizedList(new ArrayList<>());
+        DirectoryWalker.builder().build().walk(start, new DirectoryVisitor() {
+            @Override
+            public boolean preVisitDirectory(String path, DirectoryBase directory, int depth) throws IOException {
+                if(directory.needsCompaction(threshold)) {
+                    candidates.add(new Candidate(path, directory));
+                }
+                return true;
+            }
+
+            @Override
+            public void visitEntry(String path, DirectoryItemEntry entry, int depth) {
+            }
+        });
+
+        Map<String, CompactionResult> results = new LinkedHashMap<>();
+        for(var candidate : candidates) {
+            var result = candidate.directory().compact();
+            if(result.isChanged()) {
+                results.put(candidate.path(), result);
+            }
+        }
+        return results;
+    }
+}
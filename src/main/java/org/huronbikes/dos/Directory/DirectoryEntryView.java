@@ -0,0 +1,169 @@
+package org.huronbikes.dos.Directory;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Flyweight cursor over the raw 32 byte directory entries in a cluster (or root directory) buffer.  Fields are read
+ * straight out of the buffer with absolute, little endian reads, so moving the cursor over a directory allocates
+ * nothing.  Call {@link #toEntry()} to build a {@link DirectoryItemEntry} for entries that need to be kept.
+ * <p>
+ * A view is only valid until the buffer it wraps is reused, which for directory scans is the next cluster.
+ */
+public class DirectoryEntryView {
+    private static final VarHandle WORD = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle DWORD = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int UNUSED_ENTRY_MARKER = 0x00;
+    private static final int VOLUME_ID_ATTRIBUTE = 0x08;
+    private static final int DIRECTORY_ATTRIBUTE = 0x10;
+
+    /**
+     * Callback for directory scans.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        /**
+         * @param entry the current entry.  Only valid for the duration of the call.
+         * @return true to continue the scan, false to stop it
+         */
+        boolean visit(DirectoryEntryView entry) throws IOException;
+    }
+
+    private ByteBuffer buffer;
+    @Getter
+    private int clusterNumber;
+    @Getter
+    private int entryOffset;
+
+    public DirectoryEntryView wrap(ByteBuffer buffer, int clusterNumber) {
+        this.buffer = buffer;
+        this.clusterNumber = clusterNumber;
+        this.entryOffset = 0;
+        return this;
+    }
+
+    public DirectoryEntryView moveTo(int entryOffset) {
+        this.entryOffset = entryOffset;
+        return this;
+    }
+
+    /**
+     * @return the number of whole entries in the wrapped buffer
+     */
+    public int getEntryCount() {
+        return buffer.limit() / DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+    }
+
+    public int getFirstByte() {
+        return 0xFF & buffer.get(entryOffset);
+    }
+
+    public boolean isUnused() {
+        return getFirstByte() == UNUSED_ENTRY_MARKER;
+    }
+
+    public boolean isDeleted() {
+        return getFirstByte() == DirectoryItemEntry.DELETED_ENTRY_MARKER;
+    }
+
+    /**
+     * @return true if the slot can be reused, either because it was never used or because its entry was deleted
+     */
+    public boolean isFree() {
+        int first = getFirstByte();
+        return first == UNUSED_ENTRY_MARKER || first == DirectoryItemEntry.DELETED_ENTRY_MARKER;
+    }
+
+    public int getAttributeBits() {
+        return 0xFF & buffer.get(entryOffset + DirectoryItemEntry.ATTRIBUTES_OFFSET);
+    }
+
+    public boolean isDirectory() {
+        return (getAttributeBits() & DIRECTORY_ATTRIBUTE) == DIRECTORY_ATTRIBUTE;
+    }
+
+    /**
+     * @return true if the slot holds part of a VFAT long file name rather than an 8.3 entry
+     */
+    public boolean isLongNameEntry() {
+        return (getAttributeBits() & 0x3F) == LongFileName.ATTRIBUTE_BITS;
+    }
+
+    public boolean isVolumeId() {
+        return (getAttributeBits() & VOLUME_ID_ATTRIBUTE) == VOLUME_ID_ATTRIBUTE;
+    }
+
+    public byte getCreationTenths() {
+        return buffer.get(entryOffset + DirectoryItemEntry.CREATION_TIME_TENTHS_OFFSET);
+    }
+
+    public int getCreationTime() {
+        return word(DirectoryItemEntry.CREATION_TIME_OFFSET);
+    }
+
+    public int getCreationDate() {
+        return word(DirectoryItemEntry.CREATION_DATE_OFFSET);
+    }
+
+    public int getLastAccessDate() {
+        return word(DirectoryItemEntry.LAST_ACCESS_DATE_OFFSET);
+    }
+
+    public int getWriteTime() {
+        return word(DirectoryItemEntry.WRITE_TIME_OFFSET);
+    }
+
+    public int getWriteDate() {
+        return word(DirectoryItemEntry.WRITE_DATE_OFFSET);
+    }
+
+    public int getFirstCluster() {
+        return (word(DirectoryItemEntry.FIRST_CLUSTER_HI_OFFSET) << 16) | word(DirectoryItemEntry.FIRST_CLUSTER_LO_OFFSET);
+    }
+
+    public long getFileSize() {
+        return Integer.toUnsignedLong((int) DWORD.get(buffer, entryOffset + DirectoryItemEntry.FILE_SIZE_OFFSET));
+    }
+
+    /**
+     * Compares the raw short file name of this entry with an 11 byte short name without copying it.
+     */
+    public boolean nameEquals(byte[] shortFileName) {
+        for(int i = 0; i < DirectoryItemEntry.BYTES_PER_SHORT_NAME; i++) {
+            if(buffer.get(entryOffset + i) != shortFileName[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void copyShortFileName(byte[] target) {
+        buffer.get(entryOffset, target, 0, DirectoryItemEntry.BYTES_PER_SHORT_NAME);
+    }
+
+    public String getShortNameKey() {
+        var shortFileName = new byte[DirectoryItemEntry.BYTES_PER_SHORT_NAME];
+        copyShortFileName(shortFileName);
+        return DirectoryItemEntry.shortNameKey(shortFileName);
+    }
+
+    /**
+     * Builds a standalone entry from the current slot.
+     */
+    public DirectoryItemEntry toEntry() {
+        return new DirectoryItemEntry(this);
+    }
+
+    int getByte(int fieldOffset) {
+        return 0xFF & buffer.get(entryOffset + fieldOffset);
+    }
+
+    int word(int fieldOffset) {
+        return 0xFFFF & (short) WORD.get(buffer, entryOffset + fieldOffset);
+    }
+}
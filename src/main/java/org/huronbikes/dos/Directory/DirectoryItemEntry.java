@@ -4,29 +4,31 @@ import lombok.*;
 import org.huronbikes.dos.ByteUtils;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Objects;
 import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 @AllArgsConstructor
 public class DirectoryItemEntry {
     public static final int BYTES_PER_DIRECTORY_ENTRY = 32;
-    private static final int BYTES_PER_SHORT_NAME = 11;
-    private static final int ATTRIBUTES_OFFSET = 11;
-    private static final int CREATION_TIME_TENTHS_OFFSET = 13;
-    private static final int CREATION_TIME_OFFSET = 14;
-    private static final int CREATION_DATE_OFFSET = 16;
-    private static final int LAST_ACCESS_DATE_OFFSET = 18;
-    private static final int FIRST_CLUSTER_HI_OFFSET = 20;
-    private static final int WRITE_TIME_OFFSET = 22;
-    private static final int WRITE_DATE_OFFSET = 24;
-    private static final int FIRST_CLUSTER_LO_OFFSET = 26;
-    private static final int FILE_SIZE_OFFSET = 28;
+    static final int BYTES_PER_SHORT_NAME = 11;
+    static final int ATTRIBUTES_OFFSET = 11;
+    static final int CREATION_TIME_TENTHS_OFFSET = 13;
+    static final int CREATION_TIME_OFFSET = 14;
+    static final int CREATION_DATE_OFFSET = 16;
+    static final int LAST_ACCESS_DATE_OFFSET = 18;
+    public static final int FIRST_CLUSTER_HI_OFFSET = 20;
+    static final int WRITE_TIME_OFFSET = 22;
+    static final int WRITE_DATE_OFFSET = 24;
+    public static final int FIRST_CLUSTER_LO_OFFSET = 26;
+    static final int FILE_SIZE_OFFSET = 28;
+    static final int DELETED_ENTRY_MARKER = 0xE5;
 
     @NoArgsConstructor
     @AllArgsConstructor
@@ -52,14 +54,13 @@ public class DirectoryItemEntry {
         }
 
         public static Attributes fromByte(byte attributeSet) {
-            return Attributes.builder()
-                    .readOnly((attributeSet & 0x1) == 0x1)
-                    .hidden((attributeSet & 0x2) == 0x2)
-                    .system((attributeSet & 0x4) == 0x4)
-                    .volumeId((attributeSet & 0x8) == 0x8)
-                    .directory((attributeSet & 0x10) == 0x10)
-                    .archive((attributeSet & 0x20) == 0x20)
-                    .build();
+            return new Attributes(
+                    (attributeSet & 0x1) == 0x1,
+                    (attributeSet & 0x2) == 0x2,
+                    (attributeSet & 0x4) == 0x4,
+                    (attributeSet & 0x8) == 0x8,
+                    (attributeSet & 0x10) == 0x10,
+                    (attributeSet & 0x20) == 0x20);
         }
 
         public String toShortString() {
@@ -99,8 +100,12 @@ public class DirectoryItemEntry {
     private final int writeDate;
     @Getter
     private final long fileSize;
+    @Getter
     private final int entryCluster;
+    @Getter
     private final int entryOffset;
+    // the VFAT long file name stored ahead of the entry, or null if it only has an 8.3 name
+    private final String longName;
 
     public String getName() {
         if(attributes.isVolumeId()) {
@@ -121,6 +126,38 @@ public class DirectoryItemEntry {
         }
     }
 
+    /**
+     * @return the long file name of the entry, or its 8.3 name if it does not have one
+     */
+    public String getLongName() {
+        return longName != null ? longName : getName();
+    }
+
+    public boolean hasLongName() {
+        return longName != null;
+    }
+
+    /**
+     * @return the key the entry's long name is indexed under, or null if it does not have one
+     */
+    public String getLongNameKey() {
+        return longName != null ? LongFileName.key(longName) : null;
+    }
+
+    /**
+     * @return true if the name matches either the 8.3 name or the long name of this entry, ignoring case
+     */
+    public boolean isNamed(String name) {
+        return getShortNameKey().equals(shortNameKey(name)) || (longName != null && longName.equalsIgnoreCase(name));
+    }
+
+    /**
+     * @return the number of directory slots the entry occupies, including its long name entries
+     */
+    public int getSlotCount() {
+        return longName == null ? 1 : LongFileName.entryCount(longName) + 1;
+    }
+
     public FileDateTime getWriteTime()  {
         return new FileDateTime(writeDate, writeTime);
     }
@@ -153,6 +190,99 @@ public class DirectoryItemEntry {
         this(name, attributes, fileCreationTime, writeTime, null, firstCluster, fileSize);
     }
 
+    /**
+     * Converts a file name in 8.3 form to the padded, upper case 11 byte name stored on disk.
+     * @param name the file name, optionally with an extension
+     * @return the 11 byte short file name
+     * @throws IllegalArgumentException if the name does not fit the 8.3 format
+     */
+    public static byte[] toShortFileName(String name) {
+        if(name.equals(DirectoryBase.CURRENT_DIRECTORY_NAME) || name.equals(DirectoryBase.PARENT_DIRECTORY_NAME)) {
+            return ByteUtils.shortName(name);
+        }
+        String[] parts = name.split("\\.");
+        if (parts.length == 2) {
+            if (parts[0].length() > 8) {
+                throw new IllegalArgumentException("file name should not exceed 8 characters");
+            }
+
+            if (parts[1].length() > 3) {
+                throw new IllegalArgumentException("file extension should not exceed 3 characters");
+            }
+
+            return ByteUtils.shortName(parts[0].toUpperCase(), parts[1].toUpperCase());
+        } else if (parts.length == 1) {
+            if (parts[0].length() > 8) {
+                throw new IllegalArgumentException("file name should not exceed 8 characters");
+            }
+            return ByteUtils.shortName(parts[0].toUpperCase());
+        } else {
+            throw new IllegalArgumentException(String.format("%s is not a valid file name", name));
+        }
+    }
+
+    /**
+     * Builds the name index key for a file name.
+     * @param name the file name in 8.3 form, case-insensitive
+     * @return the index key, or null if the name cannot be a short file name
+     */
+    public static String shortNameKey(String name) {
+        try {
+            return shortNameKey(toShortFileName(name));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    static String shortNameKey(byte[] shortFileName) {
+        var key = new byte[BYTES_PER_SHORT_NAME];
+        for(int i = 0; i < key.length; i++) {
+            byte b = shortFileName[i];
+            key[i] = b >= 'a' && b <= 'z' ? (byte)(b - 32) : b;
+        }
+        return new String(key, StandardCharsets.ISO_8859_1);
+    }
+
+    public String getShortNameKey() {
+        return shortNameKey(shortFileName);
+    }
+
+    public boolean isDeleted() {
+        return (shortFileName[0] & 0xFF) == DELETED_ENTRY_MARKER;
+    }
+
+    /**
+     * Returns a copy of this entry that records the directory slot it was written to.
+     * @param clusterNumber the directory cluster holding the entry, 0 for the root directory
+     * @param entryOffset the byte offset of the entry within that cluster (or the root directory)
+     */
+    public DirectoryItemEntry persistedAt(int clusterNumber, int entryOffset) {
+        return new DirectoryItemEntry(shortFileName, attributes, fileCreationTenths, fileCreationTime, fileCreationDate,
+                fileLastAccessDate, firstCluster, writeTime, writeDate, fileSize, clusterNumber, entryOffset, longName);
+    }
+
+    /**
+     * Returns a copy of this entry that is stored with a long file name ahead of its 8.3 name.
+     */
+    public DirectoryItemEntry withLongName(String longName) {
+        if(longName != null) {
+            LongFileName.validate(longName);
+        }
+        return new DirectoryItemEntry(shortFileName, attributes, fileCreationTenths, fileCreationTime, fileCreationDate,
+                fileLastAccessDate, firstCluster, writeTime, writeDate, fileSize, entryCluster, entryOffset, longName);
+    }
+
+    /**
+     * Returns a copy of this entry with its first name byte replaced by the deleted entry marker, ready to be written
+     * back to its slot.
+     */
+    public DirectoryItemEntry asDeleted() {
+        var deletedName = Arrays.copyOf(shortFileName, shortFileName.length);
+        deletedName[0] = (byte) DELETED_ENTRY_MARKER;
+        return new DirectoryItemEntry(deletedName, attributes, fileCreationTenths, fileCreationTime, fileCreationDate,
+                fileLastAccessDate, firstCluster, writeTime, writeDate, fileSize, entryCluster, entryOffset, longName);
+    }
+
     public boolean isPersisted() {
         return this.entryCluster != -1 && this.entryOffset != -1;
     }
@@ -166,30 +296,7 @@ public class DirectoryItemEntry {
             int firstCluster,
             long fileSize
     ) {
-        if(!name.equals(DirectoryBase.CURRENT_DIRECTORY_NAME) && !name.equals(DirectoryBase.PARENT_DIRECTORY_NAME)) {
-            String[] parts = name.split("\\.");
-            if (parts.length == 2) {
-                if (parts[0].length() > 8) {
-                    throw new IllegalArgumentException("file name should not exceed 8 characters");
-                }
-
-                if (parts[1].length() > 3) {
-                    throw new IllegalArgumentException("file extension should not exceed 3 characters");
-                }
-
-                shortFileName = ByteUtils.shortName(parts[0].toUpperCase(), parts[1].toUpperCase());
-            } else if (parts.length == 1) {
-                if (parts[0].length() > 8) {
-                    throw new IllegalArgumentException("file name should not exceed 8 characters");
-                }
-                shortFileName = ByteUtils.shortName(parts[0].toUpperCase());
-            } else {
-                throw new IllegalArgumentException(String.format("%s is not a valid file name", name));
-            }
-        } else {
-            shortFileName = ByteUtils.shortName(name);
-        }
-
+        shortFileName = toShortFileName(name);
         this.attributes = attributes;
         this.fileCreationTenths = 0;
         this.fileCreationTime = FileDateTime.toInteger(fileCreationTime);
@@ -203,27 +310,28 @@ public class DirectoryItemEntry {
         this.fileSize = fileSize;
         this.entryCluster = -1;
         this.entryOffset = -1;
+        this.longName = null;
     }
 
-    private DirectoryItemEntry(byte[] bytes, int clusterNumber, int entryOffset) {
-        this(bytes, 0, clusterNumber, entryOffset);
+    DirectoryItemEntry(DirectoryEntryView view) {
+        this(view, null);
     }
 
-    private DirectoryItemEntry(byte[] bytes, int offset, int clusterNumber, int entryOffset) {
-        this.shortFileName = Arrays.copyOfRange(bytes, offset, offset + BYTES_PER_SHORT_NAME);
-        this.attributes = Attributes.fromByte(bytes[offset + ATTRIBUTES_OFFSET]);
-        this.fileCreationTenths = bytes[offset + CREATION_TIME_TENTHS_OFFSET];
-        this.fileCreationTime = (int) ByteUtils.parseLong(bytes, offset + CREATION_TIME_OFFSET, 2);
-        this.fileCreationDate = (int) ByteUtils.parseLong(bytes, offset + CREATION_DATE_OFFSET, 2);
-        this.fileLastAccessDate = (int) ByteUtils.parseLong(bytes, offset + LAST_ACCESS_DATE_OFFSET, 2);
-        int firstCluster = (int)(ByteUtils.parseLong(bytes, offset + FIRST_CLUSTER_HI_OFFSET, 2) << 32);
-        firstCluster += (int)ByteUtils.parseLong(bytes, offset + FIRST_CLUSTER_LO_OFFSET, 2);
-        this.firstCluster = firstCluster;
-        this.writeTime = (int) ByteUtils.parseLong(bytes, offset + WRITE_TIME_OFFSET, 2);
-        this.writeDate = (int) ByteUtils.parseLong(bytes, offset + WRITE_DATE_OFFSET, 2);
-        this.fileSize = ByteUtils.parseLong(bytes, offset + FILE_SIZE_OFFSET, 4);
-        this.entryCluster = clusterNumber;
-        this.entryOffset = entryOffset;
+    DirectoryItemEntry(DirectoryEntryView view, String longName) {
+        this.shortFileName = new byte[BYTES_PER_SHORT_NAME];
+        view.copyShortFileName(this.shortFileName);
+        this.attributes = Attributes.fromByte((byte) view.getAttributeBits());
+        this.fileCreationTenths = view.getCreationTenths();
+        this.fileCreationTime = view.getCreationTime();
+        this.fileCreationDate = view.getCreationDate();
+        this.fileLastAccessDate = view.getLastAccessDate();
+        this.firstCluster = view.getFirstCluster();
+        this.writeTime = view.getWriteTime();
+        this.writeDate = view.getWriteDate();
+        this.fileSize = view.getFileSize();
+        this.entryCluster = view.getClusterNumber();
+        this.entryOffset = view.getEntryOffset();
+        this.longName = longName;
     }
 
     public void writeDirectoryEntry(byte[] target) {
@@ -243,19 +351,31 @@ public class DirectoryItemEntry {
         ByteUtils.writeDWord(target, fileSize, FILE_SIZE_OFFSET);
     }
 
+    /**
+     * Encodes the entry together with its long name entries, in on-disk order.
+     * @return getSlotCount() entries of 32 bytes
+     */
+    public byte[] toDirectoryEntries() {
+        var result = new byte[getSlotCount() * BYTES_PER_DIRECTORY_ENTRY];
+        if(longName != null) {
+            LongFileName.write(longName, LongFileName.checksum(shortFileName), result);
+        }
+        var directoryEntryBuffer = new byte[BYTES_PER_DIRECTORY_ENTRY];
+        writeDirectoryEntry(directoryEntryBuffer);
+        System.arraycopy(directoryEntryBuffer, 0, result, result.length - BYTES_PER_DIRECTORY_ENTRY, BYTES_PER_DIRECTORY_ENTRY);
+        return result;
+    }
+
+    /**
+     * Reads the 8.3 entries of a buffer.  Long name entries are skipped; directories attach long names to their
+     * entries when they scan them.
+     */
     public static Stream<DirectoryItemEntry> fromBuffer(ByteBuffer buffer, int clusterNumber) {
-        byte[] rawEntry = new byte[BYTES_PER_DIRECTORY_ENTRY];
-        int limit = buffer.limit() / BYTES_PER_DIRECTORY_ENTRY;
-        buffer.position(0);
-        return Stream.generate(() -> {
-            int entryOffset = buffer.position();
-            buffer.get(rawEntry);
-            if(rawEntry[0] != 0) {
-                return new DirectoryItemEntry(rawEntry, clusterNumber, entryOffset);
-            } else {
-                return null;
-            }
-        }).limit(limit).filter(Objects::nonNull);
+        var view = new DirectoryEntryView().wrap(buffer, clusterNumber);
+        return IntStream.range(0, view.getEntryCount())
+                .mapToObj(i -> view.moveTo(i * BYTES_PER_DIRECTORY_ENTRY))
+                .filter(v -> !v.isUnused() && !v.isLongNameEntry())
+                .map(DirectoryEntryView::toEntry);
     }
 
     //TODO how do we match entries?
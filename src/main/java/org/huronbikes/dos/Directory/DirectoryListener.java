@@ -0,0 +1,42 @@
+package org.huronbikes.dos.Directory;
+
+/**
+ * Receives notifications when entries are added to or removed from a directory.  Listeners are handed down from a
+ * directory to the subdirectories it opens, so one listener sees every mutation made below the directory it was
+ * registered on.
+ */
+public interface DirectoryListener {
+    void entryAdded(DirectoryBase directory, DirectoryItemEntry entry);
+    void entryRemoved(DirectoryBase directory, DirectoryItemEntry entry);
+
+    /**
+     * Called when a directory's entries were moved to new slots, for example by compaction.
+     */
+    default void entriesMoved(DirectoryBase directory) {
+    }
+
+    /**
+     * @return a listener that tells first and then second about every change
+     */
+    static DirectoryListener both(DirectoryListener first, DirectoryListener second) {
+        return new DirectoryListener() {
+            @Override
+            public void entryAdded(DirectoryBase directory, DirectoryItemEntry entry) {
+                first.entryAdded(directory, entry);
+                second.entryAdded(directory, entry);
+            }
+
+            @Override
+            public void entryRemoved(DirectoryBase directory, DirectoryItemEntry entry) {
+                first.entryRemoved(directory, entry);
+                second.entryRemoved(directory, entry);
+            }
+
+            @Override
+            public void entriesMoved(DirectoryBase directory) {
+                first.entriesMoved(directory);
+                second.entriesMoved(directory);
+            }
+        };
+    }
+}
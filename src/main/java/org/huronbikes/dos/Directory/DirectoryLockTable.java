@@ -0,0 +1,151 @@
+package org.huronbikes.dos.Directory;
+
+import org.huronbikes.dos.FAT.FAT;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One lock and one shared directory object for each directory of a volume, so that threads changing different
+ * directories run in parallel and threads changing the same directory take turns on the same in-memory view of it.
+ * <p>
+ * Paths are resolved one name at a time, holding only the lock of the directory being read, and a directory object is
+ * only created under its parent's lock.  The one place two locks are held is deleting a subdirectory, which locks the
+ * parent and then the child, so locks are always taken from the root down and threads can not deadlock.  A deleted
+ * directory is marked removed under its own lock; threads that were waiting for it find it gone.
+ */
+public class DirectoryLockTable {
+    private static final String PATH_SEPARATORS = "[/\\\\]";
+
+    @FunctionalInterface
+    public interface DirectoryOperation<T> {
+        T apply(DirectoryBase directory) throws IOException;
+    }
+
+    private static final class LockedDirectory {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final DirectoryBase directory;
+        private boolean removed;
+
+        private LockedDirectory(DirectoryBase directory) {
+            this.directory = directory;
+        }
+    }
+
+    private final FAT fat;
+    private final DirectoryListener listener;
+    private final Map<Integer, LockedDirectory> directories = new ConcurrentHashMap<>();
+
+    /**
+     * @param listener told about every change made through the table, may be null
+     */
+    public DirectoryLockTable(FAT fat, DirectoryListener listener) {
+        this.fat = fat;
+        this.listener = listener;
+    }
+
+    /**
+     * Runs an operation on a directory while holding its lock.
+     * @param path names separated by / or \, relative to the root directory
+     * @throws IllegalArgumentException if the path does not name a directory
+     */
+    public <T> T withDirectory(String path, DirectoryOperation<T> operation) throws IOException {
+        var locked = getRoot();
+        for(var name : path.split(PATH_SEPARATORS)) {
+            if(name.isEmpty() || name.equals(DirectoryBase.CURRENT_DIRECTORY_NAME)) {
+                continue;
+            }
+            locked = getChild(locked, name, path);
+        }
+        locked.lock.lock();
+        try {
+            checkNotRemoved(locked, path);
+            return operation.apply(locked.directory);
+        } finally {
+            locked.lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes a file or an empty directory.  A directory is locked as well as its parent, so no other thread can be
+     * adding to it while it is checked and removed.
+     */
+    public void delete(String path) throws IOException {
+        int separator = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        var name = path.substring(separator + 1);
+        withDirectory(separator < 0 ? "" : path.substring(0, separator), parent -> {
+            var entry = parent.getEntry(name);
+            var child = entry == null || !entry.getAttributes().isDirectory() ? null : directories.get(entry.getFirstCluster());
+            if(child == null) {
+                parent.delete(name);
+                return null;
+            }
+            child.lock.lock();
+            try {
+                parent.delete(name);
+                child.removed = true;
+                directories.remove(entry.getFirstCluster());
+            } finally {
+                child.lock.unlock();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Forgets every directory object, for when the volume was changed without going through the table.
+     */
+    public void clear() {
+        directories.clear();
+    }
+
+    private LockedDirectory getRoot() throws IOException {
+        var root = directories.get(0);
+        if(root != null) {
+            return root;
+        }
+        var directory = fat.getRootDirectory();
+        directory.setListener(listener);
+        var added = directories.putIfAbsent(0, new LockedDirectory(directory));
+        return added == null ? directories.get(0) : added;
+    }
+
+    /**
+     * Finds a subdirectory under its parent's lock, creating the one shared object for it if this is the first use.
+     */
+    private LockedDirectory getChild(LockedDirectory parent, String name, String path) throws IOException {
+        parent.lock.lock();
+        try {
+            checkNotRemoved(parent, path);
+            var entry = parent.directory.getEntry(name);
+            if(entry == null || !entry.getAttributes().isDirectory()) {
+                throw new IllegalArgumentException(String.format("%s is not a directory", path));
+            }
+            if(entry.getFirstCluster() == 0) {
+                return getRoot();
+            }
+            try {
+                return directories.computeIfAbsent(entry.getFirstCluster(), cluster -> {
+                    try {
+                        return new LockedDirectory(parent.directory.getSubDirectory(entry));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } finally {
+            parent.lock.unlock();
+        }
+    }
+
+    private static void checkNotRemoved(LockedDirectory locked, String path) {
+        if(locked.removed) {
+            throw new IllegalArgumentException(String.format("%s is not a directory", path));
+        }
+    }
+}
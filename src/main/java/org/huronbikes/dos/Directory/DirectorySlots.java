@@ -0,0 +1,85 @@
+package org.huronbikes.dos.Directory;
+
+import java.util.BitSet;
+
+/**
+ * Tracks which of a directory's 32 byte slots are free, across every cluster of the directory.  Slots are numbered
+ * in on-disk order starting at 0, so slot n of a subdirectory lives in cluster n / slotsPerCluster of its chain.
+ * A slot is free if it was never used (0x00) or its entry was deleted (0xE5).
+ */
+class DirectorySlots {
+    private final BitSet free = new BitSet();
+    private int slotCount;
+
+    void append(boolean isFree) {
+        free.set(slotCount, isFree);
+        slotCount++;
+    }
+
+    void appendFree(int count) {
+        free.set(slotCount, slotCount + count);
+        slotCount += count;
+    }
+
+    /**
+     * @return the lowest numbered free slot, or -1 if every slot is in use
+     */
+    int firstFree() {
+        int slot = free.nextSetBit(0);
+        return slot < slotCount ? slot : -1;
+    }
+
+    /**
+     * @return the lowest numbered slot starting a run of length free slots, or -1 if there is no such run.  Entries
+     * with long names need their slots to be consecutive.
+     */
+    int firstFreeRun(int length) {
+        int start = free.nextSetBit(0);
+        while(start >= 0 && start + length <= slotCount) {
+            int end = free.nextClearBit(start);
+            if(end - start >= length) {
+                return start;
+            }
+            start = free.nextSetBit(end);
+        }
+        return -1;
+    }
+
+    void markUsed(int slot) {
+        free.clear(slot);
+    }
+
+    void markFree(int slot) {
+        free.set(slot);
+    }
+
+    boolean isFree(int slot) {
+        return free.get(slot);
+    }
+
+    int getSlotCount() {
+        return slotCount;
+    }
+
+    int getFreeCount() {
+        return free.cardinality();
+    }
+
+    /**
+     * @return the highest numbered slot in use, or -1 if the directory is empty
+     */
+    int lastUsed() {
+        return slotCount == 0 ? -1 : free.previousClearBit(slotCount - 1);
+    }
+
+    /**
+     * @return the share of slots up to the last used one that are free, between 0 and 1
+     */
+    double getFragmentation() {
+        int lastUsed = lastUsed();
+        if(lastUsed < 0) {
+            return 0;
+        }
+        return (double) free.get(0, lastUsed + 1).cardinality() / (lastUsed + 1);
+    }
+}
@@ -0,0 +1,31 @@
+package org.huronbikes.dos.Directory;
+
+import java.io.IOException;
+
+/**
+ * Callbacks for {@link DirectoryWalker}.  Directories are walked in parallel, so implementations must be thread-safe.
+ * Paths are relative to the directory the walk started at, use / as the separator and are built from long file names.
+ */
+@FunctionalInterface
+public interface DirectoryVisitor {
+    /**
+     * Called for every entry that passes the walker's filter, other than the . and .. references.
+     * @param depth the depth of the directory holding the entry, 0 for the directory the walk started at
+     */
+    void visitEntry(String path, DirectoryItemEntry entry, int depth) throws IOException;
+
+    /**
+     * Called before the entries of a directory are visited.
+     * @param path the path of the directory, empty for the directory the walk started at
+     * @return false to skip the directory's entries and everything below it
+     */
+    default boolean preVisitDirectory(String path, DirectoryBase directory, int depth) throws IOException {
+        return true;
+    }
+
+    /**
+     * Called once every entry of the directory and all of its subdirectories have been visited.
+     */
+    default void postVisitDirectory(String path, DirectoryBase directory, int depth) throws IOException {
+    }
+}
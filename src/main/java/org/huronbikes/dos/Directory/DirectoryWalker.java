@@ -0,0 +1,200 @@
+package org.huronbikes.dos.Directory;
+
+import lombok.Builder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * Walks a directory tree with fork-join parallelism: each subdirectory is read and visited by its own task, so large
+ * trees are read with every thread of the pool.  The FAT must not be changed while a walk is running.
+ * <pre>
+ * DirectoryWalker.builder().maxDepth(2).build().walk(root, (path, entry, depth) -> System.out.println(path));
+ * </pre>
+ */
+@Builder
+public class DirectoryWalker {
+    /**
+     * How many levels of subdirectories to descend into.  0 only visits the entries of the starting directory.
+     */
+    @Builder.Default
+    private final int maxDepth = Integer.MAX_VALUE;
+
+    /**
+     * Entries the filter rejects are neither visited nor descended into.
+     */
+    @Builder.Default
+    private final Predicate<DirectoryItemEntry> filter = entry -> true;
+
+    /**
+     * Subdirectories the predicate rejects are visited but not descended into.  It is tested after the entry was
+     * visited, so a visitor can use it to stop at directories it found damaged.
+     */
+    @Builder.Default
+    private final Predicate<DirectoryItemEntry> descendFilter = entry -> true;
+
+    /**
+     * Walks the tree one level at a time and reads the directories of each level on one thread in order of their first
+     * cluster, so that reads move forward through the image instead of jumping back and forth; only visiting the
+     * entries of a level runs in parallel.  Meant for images on storage where seeks are expensive.  Every
+     * postVisitDirectory call then comes at the end of the walk, deepest level first.
+     */
+    @Builder.Default
+    private final boolean clusterOrdered = false;
+
+    @Builder.Default
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * Walks the tree below a directory, returning once every directory has been visited.
+     */
+    public void walk(DirectoryBase start, DirectoryVisitor visitor) throws IOException {
+        Set<Integer> visitedClusters = ConcurrentHashMap.newKeySet();
+        try {
+            if(clusterOrdered) {
+                walkInClusterOrder(start, visitor, visitedClusters);
+            } else {
+                pool.invoke(new WalkTask(start, "", 0, visitor, visitedClusters));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private record Pending(DirectoryBase directory, String path) {
+    }
+
+    private void walkInClusterOrder(DirectoryBase start, DirectoryVisitor visitor, Set<Integer> visitedClusters) throws IOException {
+        List<List<Pending>> walkedLevels = new ArrayList<>();
+        List<Pending> level = List.of(new Pending(start, ""));
+        for(int depth = 0; !level.isEmpty(); depth++) {
+            var ordered = new ArrayList<>(level);
+            ordered.sort(Comparator.comparingInt(pending -> pending.directory().getFirstClusterNumber()));
+            List<Pending> walked = new ArrayList<>();
+            List<List<DirectoryItemEntry>> listings = new ArrayList<>();
+            for(var pending : ordered) {
+                // a damaged image can link a directory into its own subtree; every directory is walked once
+                if(!visitedClusters.add(pending.directory().getFirstClusterNumber())
+                        || !visitor.preVisitDirectory(pending.path(), pending.directory(), depth)) {
+                    continue;
+                }
+                walked.add(pending);
+                listings.add(pending.directory().list());
+            }
+            int levelDepth = depth;
+            List<List<Pending>> children = new ArrayList<>(walked.size());
+            for(int i = 0; i < walked.size(); i++) {
+                children.add(null);
+            }
+            pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, walked.size()).parallel().forEach(i -> {
+                try {
+                    children.set(i, visitEntries(walked.get(i), listings.get(i), levelDepth, visitor));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })));
+            walkedLevels.add(walked);
+            level = children.stream().flatMap(List::stream).toList();
+        }
+        for(int depth = walkedLevels.size() - 1; depth >= 0; depth--) {
+            for(var pending : walkedLevels.get(depth)) {
+                visitor.postVisitDirectory(pending.path(), pending.directory(), depth);
+            }
+        }
+    }
+
+    /**
+     * Visits the entries of a directory that were already read.
+     * @return the subdirectories to walk on the next level
+     */
+    private List<Pending> visitEntries(Pending parent, List<DirectoryItemEntry> entries, int depth, DirectoryVisitor visitor) throws IOException {
+        List<Pending> subDirectories = new ArrayList<>();
+        for(var entry : entries) {
+            if(isSkipped(entry)) {
+                continue;
+            }
+            var path = childPath(parent.path(), entry);
+            visitor.visitEntry(path, entry, depth);
+            if(isDescended(entry, depth)) {
+                subDirectories.add(new Pending(parent.directory().getSubDirectory(entry), path));
+            }
+        }
+        return subDirectories;
+    }
+
+    private boolean isSkipped(DirectoryItemEntry entry) {
+        var name = entry.getName();
+        return name.equals(DirectoryBase.CURRENT_DIRECTORY_NAME) || name.equals(DirectoryBase.PARENT_DIRECTORY_NAME)
+                || entry.getAttributes().isVolumeId() || !filter.test(entry);
+    }
+
+    private boolean isDescended(DirectoryItemEntry entry, int depth) {
+        return entry.getAttributes().isDirectory() && entry.getFirstCluster() >= 2 && depth < maxDepth && descendFilter.test(entry);
+    }
+
+    private static String childPath(String path, DirectoryItemEntry entry) {
+        return path.isEmpty() ? entry.getLongName() : path + "/" + entry.getLongName();
+    }
+
+    // tasks only live for one walk and are never serialized
+    @SuppressWarnings("serial")
+    private class WalkTask extends RecursiveAction {
+        private final DirectoryBase directory;
+        private final String path;
+        private final int depth;
+        private final DirectoryVisitor visitor;
+        private final Set<Integer> visitedClusters;
+
+        WalkTask(DirectoryBase directory, String path, int depth, DirectoryVisitor visitor, Set<Integer> visitedClusters) {
+            this.directory = directory;
+            this.path = path;
+            this.depth = depth;
+            this.visitor = visitor;
+            this.visitedClusters = visitedClusters;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                walk();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void walk() throws IOException {
+            // a damaged image can link a directory into its own subtree; every directory is walked once
+            if(!visitedClusters.add(directory.getFirstClusterNumber()) || !visitor.preVisitDirectory(path, directory, depth)) {
+                return;
+            }
+
+            List<DirectoryItemEntry> subDirectories = new ArrayList<>();
+            for(var entry : directory.list()) {
+                if(isSkipped(entry)) {
+                    continue;
+                }
+                visitor.visitEntry(childPath(path, entry), entry, depth);
+                if(isDescended(entry, depth)) {
+                    subDirectories.add(entry);
+                }
+            }
+
+            List<WalkTask> tasks = new ArrayList<>(subDirectories.size());
+            for(var entry : subDirectories) {
+                tasks.add(new WalkTask(directory.getSubDirectory(entry), childPath(path, entry), depth + 1, visitor, visitedClusters));
+            }
+            invokeAll(tasks);
+            visitor.postVisitDirectory(path, directory, depth);
+        }
+    }
+}
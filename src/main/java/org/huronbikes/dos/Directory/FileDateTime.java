@@ -1,5 +1,6 @@
 package org.huronbikes.dos.Directory;
 
+import java.time.DateTimeException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.Optional;
@@ -37,6 +38,18 @@ public class FileDateTime {
         return Optional.ofNullable(fileTime).map(FileTime::toInteger).orElse(0);
     }
 
+    /**
+     * @return the date and time, or empty if the date was never set or is not a valid date
+     */
+    public Optional<LocalDateTime> toLocalDateTime() {
+        var time = Optional.ofNullable(fileTime).orElse(FileTime.DEFAULT_FILE_TIME);
+        try {
+            return Optional.of(LocalDateTime.of(fileDate.year, fileDate.month, fileDate.dayOfMonth, time.hours, time.minutes, time.seconds));
+        } catch (DateTimeException e) {
+            return Optional.empty();
+        }
+    }
+
     public String toString() {
         if(fileTime == null) {
             return String.format("%02d/%02d/%04d", fileDate.dayOfMonth, fileDate.month, fileDate.year);
@@ -0,0 +1,207 @@
+package org.huronbikes.dos.Directory;
+
+import java.util.Locale;
+
+/**
+ * VFAT long file names.  A long name is stored as a run of 32 byte entries with attribute 0x0F directly ahead of the
+ * 8.3 entry it belongs to, 13 UTF-16 characters per entry, in reverse order: the entry holding the end of the name
+ * comes first and has bit 0x40 set in its sequence number.  Every entry carries a checksum of the 8.3 name so that
+ * orphaned long name entries can be recognized.
+ */
+final class LongFileName {
+    static final int ATTRIBUTE_BITS = 0x0F;
+    static final int MAXIMUM_LENGTH = 255;
+    private static final int CHARACTERS_PER_ENTRY = 13;
+    private static final int MAXIMUM_ENTRIES = 20;
+    private static final int LAST_ENTRY_FLAG = 0x40;
+    private static final int SEQUENCE_MASK = 0x1F;
+    private static final int TYPE_OFFSET = 12;
+    private static final int CHECKSUM_OFFSET = 13;
+    private static final int[] CHARACTER_OFFSETS = {1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30};
+    private static final String INVALID_CHARACTERS = "\"*/:<>?\\|";
+    private static final String SHORT_NAME_SPECIAL_CHARACTERS = "!#$%&'()-@^_`{}~";
+
+    private LongFileName() {
+    }
+
+    /**
+     * @return the number of long name entries needed to store the name
+     */
+    static int entryCount(String longName) {
+        return (longName.length() + CHARACTERS_PER_ENTRY - 1) / CHARACTERS_PER_ENTRY;
+    }
+
+    static int checksum(byte[] shortFileName) {
+        int sum = 0;
+        for(int i = 0; i < DirectoryItemEntry.BYTES_PER_SHORT_NAME; i++) {
+            sum = (((sum & 1) << 7) + (sum >> 1) + (shortFileName[i] & 0xFF)) & 0xFF;
+        }
+        return sum;
+    }
+
+    /**
+     * Encodes the long name entries for a name, in on-disk order.
+     * @param target receives entryCount(longName) entries starting at offset 0
+     */
+    static void write(String longName, int checksum, byte[] target) {
+        int entryCount = entryCount(longName);
+        for(int slot = 0; slot < entryCount; slot++) {
+            int sequence = entryCount - slot;
+            int entryOffset = slot * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+            target[entryOffset] = (byte) (slot == 0 ? sequence | LAST_ENTRY_FLAG : sequence);
+            target[entryOffset + DirectoryItemEntry.ATTRIBUTES_OFFSET] = (byte) ATTRIBUTE_BITS;
+            target[entryOffset + TYPE_OFFSET] = 0;
+            target[entryOffset + CHECKSUM_OFFSET] = (byte) checksum;
+            target[entryOffset + DirectoryItemEntry.FIRST_CLUSTER_LO_OFFSET] = 0;
+            target[entryOffset + DirectoryItemEntry.FIRST_CLUSTER_LO_OFFSET + 1] = 0;
+            for(int i = 0; i < CHARACTERS_PER_ENTRY; i++) {
+                int index = (sequence - 1) * CHARACTERS_PER_ENTRY + i;
+                // the name is terminated with one NUL and the rest of the entry is padded with 0xFFFF
+                int character = index < longName.length() ? longName.charAt(index) : index == longName.length() ? 0 : 0xFFFF;
+                target[entryOffset + CHARACTER_OFFSETS[i]] = (byte) character;
+                target[entryOffset + CHARACTER_OFFSETS[i] + 1] = (byte) (character >> 8);
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the name cannot be stored as a long file name
+     */
+    static void validate(String name) {
+        if(name.isEmpty() || name.length() > MAXIMUM_LENGTH) {
+            throw new IllegalArgumentException(String.format("file names must be between 1 and %d characters", MAXIMUM_LENGTH));
+        }
+        for(int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if(c < 0x20 || INVALID_CHARACTERS.indexOf(c) >= 0) {
+                throw new IllegalArgumentException(String.format("%s is not a valid file name", name));
+            }
+        }
+    }
+
+    /**
+     * @return the key long names are indexed under
+     */
+    static String key(String name) {
+        return name.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @return true if the name can be stored as an 8.3 name without a long name, ignoring case
+     */
+    static boolean isShortName(String name) {
+        if(name.equals(DirectoryBase.CURRENT_DIRECTORY_NAME) || name.equals(DirectoryBase.PARENT_DIRECTORY_NAME)) {
+            return true;
+        }
+        int dot = name.lastIndexOf('.');
+        var base = dot < 0 ? name : name.substring(0, dot);
+        var extension = dot < 0 ? "" : name.substring(dot + 1);
+        if(base.isEmpty() || base.length() > 8 || extension.length() > 3 || (dot >= 0 && extension.isEmpty())) {
+            return false;
+        }
+        return isShortNameText(base) && isShortNameText(extension);
+    }
+
+    private static boolean isShortNameText(String text) {
+        for(int i = 0; i < text.length(); i++) {
+            if(!isShortNameCharacter(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isShortNameCharacter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                || SHORT_NAME_SPECIAL_CHARACTERS.indexOf(c) >= 0;
+    }
+
+    /**
+     * The part of a long name that generated short names are built from: up to 8 characters of the name and 3 of the
+     * extension, upper case, with characters that are not allowed in short names replaced by underscores.
+     */
+    record ShortNameBasis(String name, String extension) {
+        static ShortNameBasis of(String longName) {
+            var trimmed = longName.replace(" ", "").toUpperCase(Locale.ROOT);
+            int dot = trimmed.lastIndexOf('.');
+            var name = dot <= 0 ? trimmed : trimmed.substring(0, dot);
+            var extension = dot <= 0 ? "" : trimmed.substring(dot + 1);
+            name = clean(name.replace(".", ""), 8);
+            return new ShortNameBasis(name.isEmpty() ? "_" : name, clean(extension, 3));
+        }
+
+        private static String clean(String text, int length) {
+            var builder = new StringBuilder(length);
+            for(int i = 0; i < text.length() && builder.length() < length; i++) {
+                char c = text.charAt(i);
+                builder.append(c < 0x80 && isShortNameCharacter(c) ? c : '_');
+            }
+            return builder.toString();
+        }
+
+        /**
+         * @return the short name with numeric tail ~n, for example LONGFI~1.TXT
+         */
+        String withTail(int n) {
+            var tail = "~" + n;
+            var shortName = name.substring(0, Math.min(name.length(), 8 - tail.length())) + tail;
+            return extension.isEmpty() ? shortName : shortName + "." + extension;
+        }
+    }
+
+    /**
+     * Collects long name entries during a directory scan and hands back the name once the 8.3 entry it belongs to is
+     * reached.  Sequences that are out of order, incomplete or whose checksum does not match the 8.3 entry are dropped.
+     */
+    static final class Assembler {
+        private final char[] characters = new char[MAXIMUM_ENTRIES * CHARACTERS_PER_ENTRY];
+        private int nextSequence = -1;
+        private int length;
+        private int checksum;
+
+        void reset() {
+            nextSequence = -1;
+        }
+
+        void accept(DirectoryEntryView entry) {
+            int sequenceByte = entry.getFirstByte();
+            int sequence = sequenceByte & SEQUENCE_MASK;
+            int entryChecksum = entry.getByte(CHECKSUM_OFFSET);
+            if((sequenceByte & LAST_ENTRY_FLAG) != 0) {
+                if(sequence == 0 || sequence > MAXIMUM_ENTRIES) {
+                    reset();
+                    return;
+                }
+                length = sequence * CHARACTERS_PER_ENTRY;
+                checksum = entryChecksum;
+            } else if(sequence != nextSequence || entryChecksum != checksum) {
+                reset();
+                return;
+            }
+            int start = (sequence - 1) * CHARACTERS_PER_ENTRY;
+            for(int i = 0; i < CHARACTERS_PER_ENTRY; i++) {
+                char c = (char) entry.word(CHARACTER_OFFSETS[i]);
+                if(c == 0 && start + i < length) {
+                    length = start + i;
+                }
+                characters[start + i] = c;
+            }
+            nextSequence = sequence - 1;
+        }
+
+        /**
+         * @param shortEntry the 8.3 entry following the long name entries
+         * @return the long name of the entry, or null if it has none
+         */
+        String complete(DirectoryEntryView shortEntry) {
+            if(nextSequence != 0) {
+                reset();
+                return null;
+            }
+            reset();
+            var shortFileName = new byte[DirectoryItemEntry.BYTES_PER_SHORT_NAME];
+            shortEntry.copyShortFileName(shortFileName);
+            return checksum(shortFileName) == checksum ? new String(characters, 0, length) : null;
+        }
+    }
+}
@@ -4,18 +4,22 @@ import org.huronbikes.dos.FAT.FAT;
 import org.huronbikes.dos.FAT.FAT16;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Stream;
 
 /**
  * Represents a FAT16 Root Directory.  FAT16 root directories occupy the disk space
  * between the FAT portion and the data portion of a disk.
  * Subdirectories that have the Root Directory as a direct parent will have a cluster number of
  * 0 as the cluster number of that entry.
+ * <p>
+ * The whole root directory region is held in memory.  Every entry is addressed by its slot, so changes only write
+ * the 32 byte slots they touch.
  */
 public class RootDirectory extends DirectoryBase {
-    private final List<DirectoryItemEntry> directoryEntries;
+    private final ByteBuffer rootDirectoryRegion;
     private final int maximumEntryCount;
 
     @Override
@@ -34,21 +38,29 @@ public class RootDirectory extends DirectoryBase {
     }
 
     @Override
-    public Stream<DirectoryItemEntry> getDirectoryEntries() {
-        return directoryEntries.stream();
+    public void scan(DirectoryEntryView.Visitor visitor) throws IOException {
+        var view = new DirectoryEntryView().wrap(rootDirectoryRegion, 0);
+        for(int i = 0; i < maximumEntryCount; i++) {
+            if(!visitor.visit(view.moveTo(i * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY))) {
+                return;
+            }
+        }
     }
 
-    public RootDirectory(FAT fat, List<DirectoryItemEntry> directoryEntries, int maximumEntryCount) {
+    /**
+     * @param rootDirectoryRegion the contents of the root directory region, maximumEntryCount entries long
+     */
+    public RootDirectory(FAT fat, ByteBuffer rootDirectoryRegion, int maximumEntryCount) {
         super(fat);
-        this.directoryEntries = directoryEntries;
+        this.rootDirectoryRegion = rootDirectoryRegion.clear();
         this.maximumEntryCount = maximumEntryCount;
     }
 
     private final static String DEFAULT_VOLUME_LABEL = "NO_VM_LABEL";
 
     public String getVolumeLabel() {
-        var maybeVolumeLabelEntry = getDirectoryEntries()
-                .filter(e -> e.getAttributes().isVolumeId()).findFirst();
+        var maybeVolumeLabelEntry = DirectoryItemEntry.fromBuffer(rootDirectoryRegion, 0)
+                .filter(e -> !e.isDeleted() && e.getAttributes().isVolumeId()).findFirst();
         return maybeVolumeLabelEntry.map(entry -> new String(entry.getShortFileName(), StandardCharsets.US_ASCII))
                 .orElse(DEFAULT_VOLUME_LABEL);
     }
@@ -58,33 +70,114 @@ public class RootDirectory extends DirectoryBase {
         if (item.getFirstCluster() == 0) {
             return this;
         } else {
-            return new SubDirectory(fat, fat.getClusters(item.getFirstCluster()), getVolumeLabel());
+            return inheritListener(new SubDirectory(fat, fat.getClusters(item.getFirstCluster()), getVolumeLabel()));
         }
     }
 
     @Override
     protected void addDirectoryEntry(DirectoryItemEntry directoryItemEntry) throws IOException {
-        if(directoryEntries.size() + 1 > maximumEntryCount) {
-            throw new IllegalArgumentException("Cannot add new directory entry, root directory already contains the maximum amount of entries.");
+        addDirectoryEntries(List.of(directoryItemEntry));
+    }
+
+    /**
+     * Places each entry, with its long name entries, in the first run of free slots that holds it and writes the span
+     * of slots that changed with a single write.
+     */
+    @Override
+    protected void addDirectoryEntries(List<DirectoryItemEntry> directoryItemEntries) throws IOException {
+        var fat16 = getFAT16();
+        var slots = getSlots();
+        var persisted = new DirectoryItemEntry[directoryItemEntries.size()];
+        int firstSlot = maximumEntryCount;
+        int lastSlot = -1;
+        for(int i = 0; i < persisted.length; i++) {
+            var entry = directoryItemEntries.get(i);
+            int slot = slots.firstFreeRun(entry.getSlotCount());
+            if(slot < 0) {
+                throw new IllegalArgumentException("Cannot add new directory entry, root directory already contains the maximum amount of entries.");
+            }
+            var entries = entry.toDirectoryEntries();
+            rootDirectoryRegion.put(slot * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY, entries);
+            int entrySlot = slot + entry.getSlotCount() - 1;
+            for(int used = slot; used <= entrySlot; used++) {
+                slots.markUsed(used);
+            }
+            persisted[i] = entry.persistedAt(0, entrySlot * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY);
+            firstSlot = Math.min(firstSlot, slot);
+            lastSlot = Math.max(lastSlot, entrySlot);
         }
-        if(fat instanceof FAT16 fat16) {
-            directoryEntries.add(directoryItemEntry);
-            fat16.writeRootDirectory(directoryEntries);
-        } else {
-            throw new IllegalStateException("Root Directory operations not supported by the current filesystem.");
+
+        if(lastSlot >= 0) {
+            writeSlots(fat16, firstSlot, lastSlot - firstSlot + 1);
+        }
+        for(var entry : persisted) {
+            entryAdded(entry);
         }
     }
 
+    /**
+     * Marks the entry's slots, including its long name entries, deleted with a single write to the root directory
+     * region.
+     */
     @Override
     protected void removeDirectoryEntry(DirectoryItemEntry directoryItemEntry) throws IOException {
-        var clusterChain = fat.getClusters(directoryItemEntry.getFirstCluster());
+        var fat16 = getFAT16();
+        var entry = directoryItemEntry.isPersisted() ? directoryItemEntry : getEntry(directoryItemEntry.getName());
+        if(entry == null) {
+            throw new IllegalArgumentException(String.format("%s is not an entry of this directory", directoryItemEntry.getName()));
+        }
+        int lastSlot = entry.getEntryOffset() / DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+        int firstSlot = lastSlot - entry.getSlotCount() + 1;
+        var slots = getSlots();
+        for(int slot = firstSlot; slot <= lastSlot; slot++) {
+            rootDirectoryRegion.put(slot * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY, (byte) DirectoryItemEntry.DELETED_ENTRY_MARKER);
+            slots.markFree(slot);
+        }
+        writeSlots(fat16, firstSlot, entry.getSlotCount());
+        entryRemoved(entry);
+    }
+
+    /**
+     * Drops deleted entries from the root directory and rewrites it densely.  The root directory has a fixed size,
+     * so no space is returned to the FAT.
+     */
+    @Override
+    public CompactionResult compact() throws IOException {
+        var fat16 = getFAT16();
+        var packed = ByteBuffer.allocate(rootDirectoryRegion.capacity());
+        var view = new DirectoryEntryView().wrap(rootDirectoryRegion, 0);
+        int deletedSlots = 0;
+        for(int i = 0; i < maximumEntryCount; i++) {
+            view.moveTo(i * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY);
+            if(view.isUnused()) {
+                break;
+            }
+            if(view.isDeleted()) {
+                deletedSlots++;
+            } else {
+                packed.put(rootDirectoryRegion.array(), view.getEntryOffset(), DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY);
+            }
+        }
+        if(deletedSlots == 0) {
+            return new CompactionResult(0, 0, 0);
+        }
+        Arrays.fill(rootDirectoryRegion.array(), (byte) 0);
+        rootDirectoryRegion.put(0, packed.array());
+        writeSlots(fat16, 0, maximumEntryCount);
+        entriesMoved();
+        return new CompactionResult(0, 0, deletedSlots);
+    }
+
+    private void writeSlots(FAT16 fat16, int firstSlot, int slotCount) throws IOException {
+        int offset = firstSlot * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+        fat16.writeRootDirectory(rootDirectoryRegion.slice(offset, slotCount * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY), offset);
+    }
+
+    private FAT16 getFAT16() {
         if(fat instanceof FAT16 fat16) {
-            directoryEntries.remove(directoryItemEntry);
-            fat16.writeRootDirectory(directoryEntries);
+            return fat16;
         } else {
             throw new IllegalStateException("Root Directory operations not supported by the current filesystem.");
         }
-        fat.free(clusterChain);
-        fat.commit();
     }
 }
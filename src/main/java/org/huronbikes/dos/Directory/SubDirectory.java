@@ -5,23 +5,20 @@ import org.huronbikes.dos.FAT.FAT;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
-import java.util.function.Consumer;
-import java.util.stream.Stream;
+import java.util.Set;
 
 public class SubDirectory extends DirectoryBase implements Directory {
     private final List<Integer> clusters;
     @Getter
     private final String volumeLabel;
 
-    private record SubDirectoryEntry(int clusterNumber, DirectoryItemEntry entry) {}
-
     public SubDirectory(FAT fat, List<Integer> clusters, String volumeLabel) {
         super(fat);
-        this.clusters = clusters;
+        this.clusters = new ArrayList<>(clusters);
         this.volumeLabel = volumeLabel;
     }
 
@@ -31,32 +28,28 @@ public class SubDirectory extends DirectoryBase implements Directory {
     }
 
     @Override
-    public Stream<DirectoryItemEntry> getDirectoryEntries() throws IOException {
-        return stream().map(SubDirectoryEntry::entry);
-    }
-
-    private Stream<SubDirectoryEntry> stream() {
-        return fat.getClusters(clusters.getFirst())
-                .stream()
-                .flatMap(clusterNumber -> {
-                    try {
-                        var cluster = fat.readCluster(clusterNumber);
-                        return DirectoryItemEntry.fromBuffer(cluster, clusterNumber)
-                                .map(entry -> new SubDirectoryEntry(clusterNumber, entry));
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                });
+    public void scan(DirectoryEntryView.Visitor visitor) throws IOException {
+        var cluster = ByteBuffer.allocate(fat.getBytesPerCluster());
+        var view = new DirectoryEntryView();
+        for(int clusterNumber : fat.getClusters(clusters.getFirst())) {
+            fat.readCluster(clusterNumber, cluster);
+            view.wrap(cluster, clusterNumber);
+            for(int offset = 0; offset < cluster.limit(); offset += DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY) {
+                if(!visitor.visit(view.moveTo(offset))) {
+                    return;
+                }
+            }
+        }
     }
 
     @Override
     public DirectoryBase getSubDirectory(DirectoryItemEntry item) throws IOException{
         if (item.getFirstCluster() == 0) {
-            return fat.getRootDirectory();
+            return inheritListener(fat.getRootDirectory());
         } else if (item.getFirstCluster() == clusters.getFirst()) {
             return this;
         } else {
-            return new SubDirectory(fat, fat.getClusters(item.getFirstCluster()), volumeLabel);
+            return inheritListener(new SubDirectory(fat, fat.getClusters(item.getFirstCluster()), volumeLabel));
         }
     }
 
@@ -70,67 +63,166 @@ public class SubDirectory extends DirectoryBase implements Directory {
         return clusters.getLast();
     }
 
+    /**
+     * Writes a new entry, together with its long name entries, into the first run of free slots long enough to hold
+     * it, with one write per cluster the run touches.  Slots of deleted entries are reused before the directory
+     * grows.  When no run is free, zeroed clusters are chained onto the directory; the FAT change is left for the
+     * caller to commit.
+     */
     public void addDirectoryEntry(DirectoryItemEntry item) throws IOException {
-        byte[] directoryEntryBuffer = new byte[DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY];
-        var tailClusterDirectoryEntries = fat.readCluster(getLastClusterNumber());
-        var items = DirectoryItemEntry.fromBuffer(tailClusterDirectoryEntries, getLastClusterNumber()).toList();
-        if((items.size() + 1) * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY > fat.getBytesPerCluster()) {
-            tailClusterDirectoryEntries = ByteBuffer.allocate(fat.getBytesPerCluster());
-            var nextDirectoryClusters = fat.allocate(1);
-            fat.store(List.of(getLastClusterNumber(), nextDirectoryClusters.getFirst()));
-            clusters.add(nextDirectoryClusters.getFirst());
-        } else {
-            tailClusterDirectoryEntries.position(items.size() * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY);
+        var slots = getSlots();
+        int slotsPerCluster = getSlotsPerCluster();
+        int slotCount = item.getSlotCount();
+
+        int firstSlot = slots.firstFreeRun(slotCount);
+        Set<Integer> newClusters = new HashSet<>();
+        while(firstSlot < 0) {
+            int clusterNumber = fat.allocate(1).getFirst();
+            fat.store(List.of(getLastClusterNumber(), clusterNumber));
+            clusters.add(clusterNumber);
+            newClusters.add(clusterNumber);
+            slots.appendFree(slotsPerCluster);
+            firstSlot = slots.firstFreeRun(slotCount);
         }
-        item.writeDirectoryEntry(directoryEntryBuffer);
-        tailClusterDirectoryEntries.put(directoryEntryBuffer);
-        fat.writeCluster(tailClusterDirectoryEntries, getLastClusterNumber());
+
+        writeSlots(firstSlot, item.toDirectoryEntries(), newClusters);
+        for(int slot = firstSlot; slot < firstSlot + slotCount; slot++) {
+            slots.markUsed(slot);
+        }
+        int lastSlot = firstSlot + slotCount - 1;
+        entryAdded(item.persistedAt(clusters.get(lastSlot / slotsPerCluster),
+                (lastSlot % slotsPerCluster) * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY));
     }
 
+    /**
+     * Marks the entry's slots, including its long name entries, deleted with one write per cluster they are in.  The
+     * slots are reused by later inserts; the space is only given back to the FAT by {@link #compact()}.
+     */
     public void removeDirectoryEntry(DirectoryItemEntry item) throws IOException {
         if(item.getName().equals(CURRENT_DIRECTORY_NAME) || item.getName().equals(PARENT_DIRECTORY_NAME)) {
             throw new IllegalArgumentException("Cannot remove the current/parent directory references");
         }
+        var entry = item.isPersisted() ? item : getEntry(item.getName());
+        int clusterIndex = entry == null ? -1 : clusters.indexOf(entry.getEntryCluster());
+        if(clusterIndex < 0) {
+            throw new IllegalArgumentException(String.format("%s is not an entry of this directory", item.getName()));
+        }
+
+        int lastSlot = clusterIndex * getSlotsPerCluster() + entry.getEntryOffset() / DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+        int firstSlot = lastSlot - entry.getSlotCount() + 1;
+        var entries = entry.toDirectoryEntries();
+        for(int offset = 0; offset < entries.length; offset += DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY) {
+            entries[offset] = (byte) DirectoryItemEntry.DELETED_ENTRY_MARKER;
+        }
+        writeSlots(firstSlot, entries, Set.of());
+
+        var slots = getSlots();
+        for(int slot = firstSlot; slot <= lastSlot; slot++) {
+            slots.markFree(slot);
+        }
+        entryRemoved(entry);
+    }
 
-        ByteBuffer clusterBuffer = ByteBuffer.allocate(fat.getBytesPerCluster());
-        Arrays.fill(clusterBuffer.array(), (byte)0);
-        clusterBuffer.position(0);
-
-        Queue<Integer> clusterQueue = new ArrayDeque<>(fat.getClusters(getFirstClusterNumber()));
-        byte[] entrybuffer = new byte[DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY];
-        try {
-            stream().filter(sde -> !sde.entry.matches(item))
-                    .forEach(sde -> {
-                        sde.entry.writeDirectoryEntry(entrybuffer);
-                        clusterBuffer.put(entrybuffer);
-                        if (!clusterBuffer.hasRemaining()) {
-                            try {
-                                fat.writeCluster(clusterBuffer, clusterQueue.remove());
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                            Arrays.fill(clusterBuffer.array(), (byte)0);
-                            clusterBuffer.position(0);
-                        }
-                    });
-        } catch (RuntimeException re) {
-            if(re.getCause() instanceof IOException ioException) {
-                throw ioException;
+    /**
+     * Writes consecutive slots, one write per cluster.  Clusters that were just added to the chain are written whole
+     * so that they are zeroed in the same write.
+     */
+    private void writeSlots(int firstSlot, byte[] entries, Set<Integer> newClusters) throws IOException {
+        int slotsPerCluster = getSlotsPerCluster();
+        int endSlot = firstSlot + entries.length / DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+        for(int slot = firstSlot; slot < endSlot; ) {
+            int clusterNumber = clusters.get(slot / slotsPerCluster);
+            int slotInCluster = slot % slotsPerCluster;
+            int count = Math.min(slotsPerCluster - slotInCluster, endSlot - slot);
+            int from = (slot - firstSlot) * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+            int length = count * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+            int offset = slotInCluster * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+            if(newClusters.contains(clusterNumber)) {
+                var cluster = ByteBuffer.allocate(fat.getBytesPerCluster());
+                cluster.put(offset, entries, from, length);
+                fat.writeCluster(cluster, clusterNumber);
             } else {
-                throw re;
+                fat.writeCluster(ByteBuffer.wrap(entries, from, length), clusterNumber, offset);
             }
+            slot += count;
         }
+    }
+
+    @Override
+    public int getEmptyTrailingClusterCount() throws IOException {
+        var slots = getSlots();
+        int slotsPerCluster = getSlotsPerCluster();
+        int usedClusters = Math.max(1, (slots.lastUsed() + slotsPerCluster) / slotsPerCluster);
+        return slots.getSlotCount() / slotsPerCluster - usedClusters;
+    }
 
-        if (clusterBuffer.position() > 0) {
-            fat.writeCluster(clusterBuffer, clusterQueue.remove());
+    private int getSlotsPerCluster() {
+        return fat.getBytesPerCluster() / DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+    }
+
+    /**
+     * Packs the live entries into the leading slots of the directory, one cluster at a time, and frees the clusters
+     * left empty at the end of the chain.  The first cluster is always kept.  Clusters ahead of the first freed slot
+     * are left untouched.
+     */
+    @Override
+    public CompactionResult compact() throws IOException {
+        var chain = new ArrayList<>(fat.getClusters(getFirstClusterNumber()));
+        int bytesPerCluster = fat.getBytesPerCluster();
+        var input = ByteBuffer.allocate(bytesPerCluster);
+        var output = ByteBuffer.allocate(bytesPerCluster);
+        var view = new DirectoryEntryView();
+        int outputCluster = 0;
+        boolean moved = false;
+        boolean ended = false;
+        int deletedSlots = 0;
+
+        for(int inputCluster = 0; inputCluster < chain.size(); inputCluster++) {
+            fat.readCluster(chain.get(inputCluster), input);
+            view.wrap(input, chain.get(inputCluster));
+            for(int offset = 0; offset < bytesPerCluster; offset += DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY) {
+                view.moveTo(offset);
+                ended |= view.isUnused();
+                if(ended) {
+                    continue;
+                }
+                if(view.isDeleted()) {
+                    moved = true;
+                    deletedSlots++;
+                    continue;
+                }
+                output.put(input.array(), offset, DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY);
+                if(!output.hasRemaining()) {
+                    // packing never writes ahead of the cluster being read, so unread entries are never overwritten
+                    if(moved) {
+                        fat.writeCluster(output, chain.get(outputCluster));
+                    }
+                    outputCluster++;
+                    output.clear();
+                    Arrays.fill(output.array(), (byte) 0);
+                }
+            }
+        }
+
+        if(output.position() > 0 || outputCluster == 0) {
+            if(moved) {
+                fat.writeCluster(output, chain.get(outputCluster));
+            }
+            outputCluster++;
         }
 
-        if(!clusterQueue.isEmpty()) {
-            fat.store(clusters.stream().filter(c -> !clusterQueue.contains(c)).toList());
-            fat.free(clusterQueue.stream().toList());
+        boolean shortened = outputCluster < chain.size();
+        if(shortened) {
+            fat.store(chain.subList(0, outputCluster));
+            fat.free(chain.subList(outputCluster, chain.size()));
             fat.commit();
+            clusters.clear();
+            clusters.addAll(chain.subList(0, outputCluster));
         }
+        // the slot map and name indexes describe the old chain whenever entries moved or clusters were freed
+        if(moved || shortened) {
+            entriesMoved();
+        }
+        return new CompactionResult(chain.size(), outputCluster, deletedSlots);
     }
-
-
 }
@@ -0,0 +1,260 @@
+package org.huronbikes.dos;
+
+import lombok.Getter;
+import org.huronbikes.dos.Directory.DirectoryCache;
+import org.huronbikes.dos.FAT.VolumeResizer;
+import org.huronbikes.dos.Image.CompressedImageStore;
+import org.huronbikes.dos.Image.ImageStore;
+import org.huronbikes.dos.Image.OverlayImageStore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A partitioned disk image.  The partition table is read from the master boot record, following the chain of
+ * extended boot records for logical partitions.  Every FAT16 partition can be opened as a {@link VolumeContext}; all
+ * of them share the image's store and split one directory cache budget between them.  Volumes are opened the first
+ * time they are asked for.
+ * <pre>
+ * try(var disk = new DiskImage(file)) {
+ *     disk.forEachVolume((partition, volume) -> volume.check(false));
+ * }
+ * </pre>
+ */
+public class DiskImage implements Closeable {
+    private static final int BOOT_SIGNATURE_OFFSET = 510;
+    private static final int MAX_LOGICAL_PARTITIONS = 128;
+    private static final int FIRST_LOGICAL_PARTITION = 4;
+
+    /**
+     * A partition of the image.
+     * @param number 0 to 3 for the partitions of the master boot record, 4 and up for logical partitions in the order
+     *               their extended boot records are chained
+     * @param entry the partition table entry.  For logical partitions its start is relative to its boot record.
+     * @param firstSector the first sector of the partition, counted from the start of the image
+     */
+    public record Partition(int number, PartitionTableEntry entry, long firstSector, boolean logical) {
+        public long getOffset() {
+            return firstSector * Sector.BYTES_PER_SECTOR;
+        }
+
+        public boolean isFat16() {
+            return entry.getPartitionType().isFat16();
+        }
+    }
+
+    @FunctionalInterface
+    public interface VolumeFunction<T> {
+        T apply(Partition partition, VolumeContext volume) throws IOException;
+    }
+
+    @Getter
+    private final ImageStore store;
+    private final boolean ownsStore;
+    @Getter
+    private volatile MasterBootRecord masterBootRecord;
+    @Getter
+    private volatile List<Partition> partitions;
+    private final int cacheCapacity;
+    private final Map<Integer, VolumeContext> volumes = new ConcurrentHashMap<>();
+
+    /**
+     * Opens an image file, plain or a {@link CompressedImageStore} container.  Closing the disk image closes the file.
+     */
+    public DiskImage(File imageFile) throws IOException {
+        this(ImageStore.open(imageFile), true, DirectoryCache.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param cacheBudget the most paths cached across all volumes, split evenly between the FAT16 partitions
+     */
+    public DiskImage(ImageStore store, int cacheBudget) throws IOException {
+        this(store, false, cacheBudget);
+    }
+
+    /**
+     * Opens a disk image through a copy-on-write overlay: the base image is opened read only and every change goes to
+     * the delta file.  Closing the disk image closes both files.
+     */
+    public static DiskImage overlay(File baseImageFile, File deltaFile) throws IOException {
+        return new DiskImage(new OverlayImageStore(baseImageFile, deltaFile), true, DirectoryCache.DEFAULT_CAPACITY);
+    }
+
+    private DiskImage(ImageStore store, boolean ownsStore, int cacheBudget) throws IOException {
+        this.store = store;
+        this.ownsStore = ownsStore;
+        try {
+            masterBootRecord = new MasterBootRecord(readBootRecord(0));
+            partitions = Collections.unmodifiableList(readPartitions());
+        } catch (IOException | RuntimeException e) {
+            if(ownsStore) {
+                store.close();
+            }
+            throw e;
+        }
+        long fatPartitions = partitions.stream().filter(Partition::isFat16).count();
+        this.cacheCapacity = (int) Math.max(1, cacheBudget / Math.max(1, fatPartitions));
+    }
+
+    public List<Partition> getFatPartitions() {
+        return partitions.stream().filter(Partition::isFat16).toList();
+    }
+
+    public Partition getPartition(int number) {
+        return partitions.stream()
+                .filter(p -> p.number() == number)
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException(String.format("there is no partition %d", number)));
+    }
+
+    /**
+     * Returns the volume of a FAT16 partition, opening it the first time.
+     */
+    public VolumeContext getVolume(int partitionNumber) throws IOException {
+        var partition = getPartition(partitionNumber);
+        if(!partition.isFat16()) {
+            throw new IllegalArgumentException(String.format("partition %d is %s, not FAT16", partitionNumber, partition.entry().getPartitionType()));
+        }
+        try {
+            return volumes.computeIfAbsent(partitionNumber, number -> {
+                try {
+                    return new VolumeContext(store, partition.getOffset(), cacheCapacity);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Applies a function to every FAT16 volume of the image in parallel.  Each volume is only used by one thread, so
+     * the function needs no locking of its own unless it shares state between volumes.
+     * @return the results in partition order
+     */
+    public <T> Map<Partition, T> forEachVolume(VolumeFunction<T> function) throws IOException {
+        List<T> results;
+        var fatPartitions = getFatPartitions();
+        try {
+            results = fatPartitions.parallelStream().map(partition -> {
+                try {
+                    return function.apply(partition, getVolume(partition.number()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Map<Partition, T> byPartition = new LinkedHashMap<>();
+        for(int i = 0; i < fatPartitions.size(); i++) {
+            byPartition.put(fatPartitions.get(i), results.get(i));
+        }
+        return byPartition;
+    }
+
+    /**
+     * Grows or shrinks a FAT16 primary partition.  The partition's volume is closed first and opened again the next
+     * time it is asked for.
+     * @see VolumeResizer
+     */
+    public synchronized VolumeResizer.Report resizePartition(int partitionNumber, long newSectorCount) throws IOException {
+        var partition = getPartition(partitionNumber);
+        if(!partition.isFat16()) {
+            throw new IllegalArgumentException(String.format("partition %d is %s, not FAT16", partitionNumber, partition.entry().getPartitionType()));
+        }
+        var volume = volumes.remove(partitionNumber);
+        if(volume != null) {
+            volume.close();
+        }
+        try {
+            return VolumeResizer.builder().store(store).partition(partition).newSectorCount(newSectorCount).build().run();
+        } finally {
+            masterBootRecord = new MasterBootRecord(readBootRecord(0));
+            partitions = Collections.unmodifiableList(readPartitions());
+        }
+    }
+
+    /**
+     * Closes the volumes that were opened, and the store if the disk image opened it.
+     */
+    @Override
+    public void close() throws IOException {
+        for(var volume : volumes.values()) {
+            volume.close();
+        }
+        volumes.clear();
+        if(ownsStore) {
+            store.close();
+        }
+    }
+
+    private List<Partition> readPartitions() throws IOException {
+        List<Partition> result = new ArrayList<>();
+        Partition extended = null;
+        for(int i = 0; i < 4; i++) {
+            var entry = masterBootRecord.getPartitionTableEntry(i);
+            if(entry.getPartitionType() == PartitionType.EMPTY) {
+                continue;
+            }
+            var partition = new Partition(i, entry, entry.getLbaStart(), false);
+            result.add(partition);
+            if(entry.getPartitionType().isExtended() && extended == null) {
+                extended = partition;
+            }
+        }
+        if(extended != null) {
+            readLogicalPartitions(extended.firstSector(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Follows the chain of extended boot records.  The first entry of each record is a logical partition, relative to
+     * the record; the second links to the next record, relative to the start of the extended partition.
+     */
+    private void readLogicalPartitions(long extendedStart, List<Partition> result) throws IOException {
+        Set<Long> visited = new HashSet<>();
+        int number = FIRST_LOGICAL_PARTITION;
+        long recordSector = extendedStart;
+        while(true) {
+            if(!visited.add(recordSector) || visited.size() > MAX_LOGICAL_PARTITIONS) {
+                throw new IllegalStateException(String.format("the extended boot record chain loops at sector %d", recordSector));
+            }
+            var record = new MasterBootRecord(readBootRecord(recordSector));
+            var logical = record.getPartitionTableEntry(0);
+            if(logical.getPartitionType() != PartitionType.EMPTY) {
+                result.add(new Partition(number++, logical, recordSector + logical.getLbaStart(), true));
+            }
+            var link = record.getPartitionTableEntry(1);
+            if(!link.getPartitionType().isExtended() || link.getLbaStart() == 0) {
+                return;
+            }
+            recordSector = extendedStart + link.getLbaStart();
+        }
+    }
+
+    private byte[] readBootRecord(long sector) throws IOException {
+        var buffer = ByteBuffer.allocate(Sector.BYTES_PER_SECTOR);
+        if(store.read(buffer, sector * Sector.BYTES_PER_SECTOR) < Sector.BYTES_PER_SECTOR) {
+            throw new IllegalArgumentException(String.format("sector %d is past the end of the image", sector));
+        }
+        var data = buffer.array();
+        if((data[BOOT_SIGNATURE_OFFSET] & 0xFF) != 0x55 || (data[BOOT_SIGNATURE_OFFSET + 1] & 0xFF) != 0xAA) {
+            throw new IllegalArgumentException(String.format("sector %d does not hold a boot record", sector));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,16 @@
+package org.huronbikes.dos.FAT;
+
+import java.util.List;
+
+/**
+ * Receives notifications when a FAT16 volume links clusters into a chain or frees them.  Calls are made from whichever
+ * thread changed the FAT, so implementations must be thread-safe.
+ */
+public interface ClusterListener {
+    /**
+     * Called after the clusters were linked, each to the next and the last to the end of chain marker.
+     */
+    void clustersStored(List<Integer> clusterNumbers);
+
+    void clustersFreed(List<Integer> clusterNumbers);
+}
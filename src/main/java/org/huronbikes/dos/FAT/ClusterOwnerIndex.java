@@ -0,0 +1,303 @@
+package org.huronbikes.dos.FAT;
+
+import org.huronbikes.dos.Directory.DirectoryBase;
+import org.huronbikes.dos.Directory.DirectoryItemEntry;
+import org.huronbikes.dos.Directory.DirectoryListener;
+import org.huronbikes.dos.Directory.DirectoryWalker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Answers which file or directory owns a cluster without walking the tree.  An int per cluster holds the number of
+ * its owner in a compact owner table, which keeps for each owner only its first cluster, its name and the number of
+ * its parent directory; paths are put together from those on demand.  Lookups cost one array read and memory is
+ * about 4 bytes per cluster plus the owner table.
+ * <p>
+ * Clusters are claimed with a compare and set, so the walk that fills an index can find cross-links as it goes.
+ * {@link FileSystemChecker}, {@link ClusterRelocator} and {@link ImageDiff} each fill an index of their own this way
+ * with {@link #register} and {@link #claim}, following the chains as far as they need to.
+ * <p>
+ * {@link #rebuild()} fills the index with one parallel walk of the tree.  After that it keeps itself up to date as a
+ * {@link ClusterListener} of the FAT, extending owners as their chains grow and dropping clusters as they are freed,
+ * and as a {@link DirectoryListener} of the directories, adding and removing owners as entries come and go.  Changes
+ * that bypass both, such as defragmenting or dropping uncommitted FAT changes, leave it stale; {@link #invalidate()}
+ * empties it until the next rebuild.
+ */
+public class ClusterOwnerIndex implements ClusterListener, DirectoryListener {
+    static final int NO_OWNER = 0;
+
+    /**
+     * A file or directory that owns clusters.
+     * @param path the path from the root directory, built from long file names
+     */
+    public record Owner(String path, boolean directory, int firstCluster) {
+    }
+
+    private final FAT16 fat;
+    private final AtomicIntegerArray owners;
+    // the owner numbers of the directories registered by path, so that their entries can find their parent
+    private final Map<String, Integer> directoryIds = new HashMap<>();
+    // the owner table, indexed by owner number; number 0 is never used
+    private int[] firstClusters = new int[16];
+    private int[] parentIds = new int[16];
+    private String[] names = new String[16];
+    private boolean[] directories = new boolean[16];
+    private int[] freeIds = new int[16];
+    private int freeIdCount;
+    private int nextId = 1;
+    private int ownerCount;
+    private volatile boolean built;
+
+    public ClusterOwnerIndex(FAT16 fat) {
+        this.fat = fat;
+        this.owners = new AtomicIntegerArray(fat.getClusterCount() + 2);
+    }
+
+    /**
+     * Empties the index and fills it from the directory tree and the FAT.  The FAT must not be changed while the
+     * index is rebuilt.
+     */
+    public void rebuild() throws IOException {
+        rebuild(ForkJoinPool.commonPool());
+    }
+
+    public void rebuild(ForkJoinPool pool) throws IOException {
+        synchronized (this) {
+            built = false;
+            clear();
+        }
+        DirectoryWalker.builder().pool(pool).build().walk(fat.getRootDirectory(), (path, entry, depth) -> {
+            if(entry.getFirstCluster() >= 2) {
+                claimChain(register(path, entry), entry.getFirstCluster());
+            }
+        });
+        synchronized (this) {
+            directoryIds.clear();
+            built = true;
+        }
+    }
+
+    /**
+     * Adds an owner found by a walk of the tree, before any of its clusters are claimed.  Its parent directory must
+     * have been registered first, which a {@link DirectoryWalker} guarantees by visiting a directory's entry before
+     * its contents.
+     * @param path the path the walker passed with the entry
+     * @return the owner number to claim the entry's clusters with
+     */
+    synchronized int register(String path, DirectoryItemEntry entry) {
+        int separator = path.lastIndexOf('/');
+        int parentId = separator < 0 ? NO_OWNER : directoryIds.getOrDefault(path.substring(0, separator), NO_OWNER);
+        int id = takeId();
+        firstClusters[id] = entry.getFirstCluster();
+        parentIds[id] = parentId;
+        names[id] = entry.getLongName();
+        directories[id] = entry.getAttributes().isDirectory();
+        if(directories[id]) {
+            directoryIds.put(path, id);
+        }
+        return id;
+    }
+
+    /**
+     * Claims a cluster for an owner if no owner has it yet.  Safe to call from any number of threads.
+     * @return {@link #NO_OWNER} if the cluster was claimed, otherwise the owner that already has it, which is the
+     * given owner itself when its chain loops back
+     */
+    int claim(int id, int clusterNumber) {
+        checkCluster(clusterNumber);
+        return owners.compareAndExchange(clusterNumber, NO_OWNER, id);
+    }
+
+    /**
+     * @return the number of the cluster's owner, or {@link #NO_OWNER}
+     */
+    int getOwnerId(int clusterNumber) {
+        checkCluster(clusterNumber);
+        return owners.get(clusterNumber);
+    }
+
+    /**
+     * Moves an owner to a new chain: the released clusters lose their owner and the chain's clusters are given to it.
+     */
+    synchronized void move(int id, List<Integer> released, List<Integer> chain) {
+        released.forEach(cluster -> owners.set(cluster, NO_OWNER));
+        chain.forEach(cluster -> owners.set(cluster, id));
+        firstClusters[id] = chain.getFirst();
+    }
+
+    /**
+     * Empties the index.  Lookups find no owners until it is rebuilt.
+     */
+    public synchronized void invalidate() {
+        built = false;
+        clear();
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * @return the file or directory using the cluster, or null if nothing does
+     */
+    public synchronized Owner getOwner(int clusterNumber) {
+        checkCluster(clusterNumber);
+        int id = owners.get(clusterNumber);
+        if(id == NO_OWNER) {
+            return null;
+        }
+        return new Owner(getPath(id), directories[id], firstClusters[id]);
+    }
+
+    public boolean isOwned(int clusterNumber) {
+        checkCluster(clusterNumber);
+        return owners.get(clusterNumber) != NO_OWNER;
+    }
+
+    public synchronized int getOwnerCount() {
+        return ownerCount;
+    }
+
+    @Override
+    public synchronized void clustersStored(List<Integer> clusterNumbers) {
+        if(!built || clusterNumbers.isEmpty()) {
+            return;
+        }
+        // a chain that starts in an owned cluster is that owner growing; new chains are claimed when their entry is added
+        int id = owners.get(clusterNumbers.getFirst());
+        if(id != NO_OWNER) {
+            for(int cluster : clusterNumbers) {
+                owners.set(cluster, id);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clustersFreed(List<Integer> clusterNumbers) {
+        if(!built) {
+            return;
+        }
+        for(int cluster : clusterNumbers) {
+            int id = owners.get(cluster);
+            if(id != NO_OWNER && firstClusters[id] == cluster) {
+                releaseId(id);
+            }
+            owners.set(cluster, NO_OWNER);
+        }
+    }
+
+    @Override
+    public synchronized void entryAdded(DirectoryBase directory, DirectoryItemEntry entry) {
+        if(!built || entry.getFirstCluster() < 2 || isDotEntry(entry) || entry.getAttributes().isVolumeId()) {
+            return;
+        }
+        int id = takeId();
+        firstClusters[id] = entry.getFirstCluster();
+        // the root directory's cluster number 0 is never owned, so its entries get no parent
+        parentIds[id] = owners.get(directory.getFirstClusterNumber());
+        names[id] = entry.getLongName();
+        directories[id] = entry.getAttributes().isDirectory();
+        claimChain(id, entry.getFirstCluster());
+    }
+
+    @Override
+    public synchronized void entryRemoved(DirectoryBase directory, DirectoryItemEntry entry) {
+        if(!built || entry.getFirstCluster() < 2 || isDotEntry(entry)) {
+            return;
+        }
+        int id = owners.get(entry.getFirstCluster());
+        if(id == NO_OWNER || firstClusters[id] != entry.getFirstCluster()) {
+            return;
+        }
+        for(int cluster = entry.getFirstCluster(); isChained(cluster) && owners.get(cluster) == id; cluster = fat.getNextClusterNumber(cluster)) {
+            owners.set(cluster, NO_OWNER);
+        }
+        releaseId(id);
+    }
+
+    /**
+     * Follows a chain as far as it is linked, stopping at free, reserved or out of range clusters, so that a chain
+     * stored after its entry was added is claimed as far as it goes.  While the index is being built the chain also
+     * stops at a cluster another owner claimed first; once built, an added entry takes its clusters over.
+     */
+    private void claimChain(int id, int firstCluster) {
+        int cluster = firstCluster;
+        for(int count = 0; isChained(cluster) && count <= fat.getClusterCount(); count++) {
+            if(built ? owners.getAndSet(cluster, id) == id : claim(id, cluster) != NO_OWNER) {
+                break;
+            }
+            cluster = fat.getNextClusterNumber(cluster);
+        }
+    }
+
+    private boolean isChained(int cluster) {
+        return cluster >= 2 && cluster < owners.length() && !fat.isFree(cluster);
+    }
+
+    private String getPath(int id) {
+        List<String> parts = new ArrayList<>();
+        for(int depth = 0; id != NO_OWNER && depth <= ownerCount; depth++) {
+            parts.add(names[id]);
+            id = parentIds[id];
+        }
+        return String.join("/", parts.reversed());
+    }
+
+    private int takeId() {
+        ownerCount++;
+        if(freeIdCount > 0) {
+            return freeIds[--freeIdCount];
+        }
+        ensureCapacity(nextId + 1);
+        return nextId++;
+    }
+
+    private void releaseId(int id) {
+        names[id] = null;
+        firstClusters[id] = 0;
+        ownerCount--;
+        if(freeIdCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeIdCount++] = id;
+    }
+
+    private void ensureCapacity(int size) {
+        if(size <= firstClusters.length) {
+            return;
+        }
+        int capacity = Math.max(size, firstClusters.length * 2);
+        firstClusters = Arrays.copyOf(firstClusters, capacity);
+        parentIds = Arrays.copyOf(parentIds, capacity);
+        names = Arrays.copyOf(names, capacity);
+        directories = Arrays.copyOf(directories, capacity);
+    }
+
+    private void clear() {
+        for(int i = 0; i < owners.length(); i++) {
+            owners.set(i, NO_OWNER);
+        }
+        directoryIds.clear();
+        Arrays.fill(names, null);
+        freeIdCount = 0;
+        nextId = 1;
+        ownerCount = 0;
+    }
+
+    private void checkCluster(int clusterNumber) {
+        if(clusterNumber < 2 || clusterNumber >= owners.length()) {
+            throw new IllegalArgumentException(String.format("cluster %d is not a data cluster", clusterNumber));
+        }
+    }
+
+    private static boolean isDotEntry(DirectoryItemEntry entry) {
+        return entry.getName().equals(DirectoryBase.CURRENT_DIRECTORY_NAME) || entry.getName().equals(DirectoryBase.PARENT_DIRECTORY_NAME);
+    }
+}
@@ -0,0 +1,282 @@
+package org.huronbikes.dos.FAT;
+
+import lombok.Getter;
+import org.huronbikes.dos.Directory.DirectoryBase;
+import org.huronbikes.dos.Directory.DirectoryItemEntry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves whole cluster chains of a FAT16 volume to new clusters and fixes up every reference to them: the directory
+ * entry that owns the chain and, for directories, their own . entry and the .. entries of their subdirectories.
+ * <p>
+ * A relocation is ordered so that a crash at any point leaves a consistent volume, at worst with clusters that are
+ * allocated but unused: the data is copied, the new chain is committed, the owning entry is switched to it, and only
+ * then is the old chain freed and the FAT committed again.
+ */
+class ClusterRelocator {
+    /**
+     * A file or directory that owns a cluster chain.  The entry's location is kept as a slot number of the parent so
+     * that it stays valid when the parent itself is moved.
+     */
+    static class Item {
+        private final int id;
+        @Getter
+        private final String path;
+        @Getter
+        private final boolean directory;
+        private final Item parent;
+        private final int slot;
+        private final List<Item> subDirectories = new ArrayList<>();
+        @Getter
+        private List<Integer> chain;
+
+        private Item(int id, String path, boolean directory, Item parent, int slot, List<Integer> chain) {
+            this.id = id;
+            this.path = path;
+            this.directory = directory;
+            this.parent = parent;
+            this.slot = slot;
+            this.chain = chain;
+        }
+
+        int getFirstCluster() {
+            return chain.getFirst();
+        }
+    }
+
+    private final FAT16 fat;
+    private final int bufferClusters;
+    private final int bytesPerCluster;
+    private final int slotsPerCluster;
+    private final ByteBuffer rootDirectory;
+    @Getter
+    private final List<Item> directories = new ArrayList<>();
+    @Getter
+    private final List<Item> files = new ArrayList<>();
+    // every item, directories first
+    @Getter
+    private final List<Item> items = new ArrayList<>();
+    private final ClusterOwnerIndex owners;
+    private final Map<Integer, Item> itemsById = new HashMap<>();
+    @Getter
+    private long clustersCopied;
+
+    /**
+     * Reads the directory tree of the volume.
+     * @param bufferClusters the most clusters copied with one read and write
+     * @throws IllegalStateException if two chains share a cluster; the volume must be repaired first
+     */
+    ClusterRelocator(FAT16 fat, int bufferClusters) throws IOException {
+        this.fat = fat;
+        this.bufferClusters = bufferClusters;
+        this.bytesPerCluster = fat.getBytesPerCluster();
+        this.slotsPerCluster = bytesPerCluster / DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+        this.rootDirectory = fat.readRootDirectory();
+        this.owners = new ClusterOwnerIndex(fat);
+        load(fat.getRootDirectory(), null, new HashSet<>());
+        items.addAll(directories);
+        items.addAll(files);
+    }
+
+    /**
+     * Loads the tree depth first: the directories in tree order, then the files in tree order.
+     */
+    private void load(DirectoryBase directory, Item parentItem, Set<Integer> visited) throws IOException {
+        List<DirectoryItemEntry> subDirectoryEntries = new ArrayList<>();
+        List<Item> subDirectoryItems = new ArrayList<>();
+        for(var entry : directory.list()) {
+            var name = entry.getName();
+            if(name.equals(DirectoryBase.CURRENT_DIRECTORY_NAME) || name.equals(DirectoryBase.PARENT_DIRECTORY_NAME)
+                    || entry.getAttributes().isVolumeId() || entry.getFirstCluster() < 2) {
+                continue;
+            }
+            var path = parentItem == null ? entry.getLongName() : parentItem.path + "/" + entry.getLongName();
+            int slot = parentItem == null
+                    ? entry.getEntryOffset() / DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY
+                    : parentItem.chain.indexOf(entry.getEntryCluster()) * slotsPerCluster + entry.getEntryOffset() / DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+            boolean isDirectory = entry.getAttributes().isDirectory();
+            if(isDirectory && !visited.add(entry.getFirstCluster())) {
+                continue;
+            }
+            var item = new Item(owners.register(path, entry), path, isDirectory, parentItem, slot, fat.getClusters(entry.getFirstCluster()));
+            itemsById.put(item.id, item);
+            for(int cluster : item.chain) {
+                int previous = owners.claim(item.id, cluster);
+                if(previous != ClusterOwnerIndex.NO_OWNER) {
+                    throw new IllegalStateException(String.format("%s and %s share cluster %d", itemsById.get(previous).path, path, cluster));
+                }
+            }
+            if(item.directory) {
+                directories.add(item);
+                if(parentItem != null) {
+                    parentItem.subDirectories.add(item);
+                }
+                subDirectoryEntries.add(entry);
+                subDirectoryItems.add(item);
+            } else {
+                files.add(item);
+            }
+        }
+        for(int i = 0; i < subDirectoryEntries.size(); i++) {
+            load(directory.getSubDirectory(subDirectoryEntries.get(i)), subDirectoryItems.get(i), visited);
+        }
+    }
+
+    /**
+     * @return the item owning a cluster, or null if no file or directory uses it
+     */
+    Item getOwner(int clusterNumber) {
+        return itemsById.get(owners.getOwnerId(clusterNumber));
+    }
+
+    /**
+     * @return true if the cluster is allocated in the FAT but not part of any file or directory
+     */
+    boolean isUnowned(int clusterNumber) {
+        return !owners.isOwned(clusterNumber) && !fat.isFree(clusterNumber);
+    }
+
+    /**
+     * Moves an item out of a range of clusters, to free clusters as close to the end of the volume as possible.
+     * @throws IllegalStateException if there are not enough free clusters outside the range
+     */
+    void evacuate(Item item, int avoidStart, int avoidEnd) throws IOException {
+        var destination = fat.findFreeClustersFromEnd(item.chain.size(), avoidStart, avoidEnd);
+        if(destination == null) {
+            throw new IllegalStateException(String.format("not enough free space to move %s", item.path));
+        }
+        relocate(item, destination);
+    }
+
+    /**
+     * Moves the clusters of an item at or past a boundary to free clusters below it, leaving the rest of the chain
+     * where it is.
+     * @return the number of clusters moved
+     * @throws IllegalStateException if there are not enough free clusters below the boundary
+     */
+    int moveBelow(Item item, int boundary) throws IOException {
+        int count = (int) item.chain.stream().filter(c -> c >= boundary).count();
+        if(count == 0) {
+            return 0;
+        }
+        var free = fat.findFreeClustersFromEnd(count, boundary, fat.getClusterCount() + 2);
+        if(free == null) {
+            throw new IllegalStateException(String.format("not enough free space below cluster %d to move %s", boundary, item.path));
+        }
+        var destination = new ArrayList<Integer>(item.chain.size());
+        var freeClusters = free.iterator();
+        for(int cluster : item.chain) {
+            destination.add(cluster >= boundary ? freeClusters.next() : cluster);
+        }
+        relocate(item, destination);
+        return count;
+    }
+
+    /**
+     * Moves an item's chain to the given clusters.  Each destination cluster must be free or be the cluster already
+     * at that place in the chain; those are left where they are.
+     */
+    void relocate(Item item, List<Integer> destination) throws IOException {
+        if(destination.size() != item.chain.size()) {
+            throw new IllegalArgumentException(String.format("%s needs %d clusters", item.path, item.chain.size()));
+        }
+        var source = item.chain;
+        List<Integer> claimed = new ArrayList<>();
+        for(int i = 0; i < source.size(); i++) {
+            if(!source.get(i).equals(destination.get(i))) {
+                claimed.add(destination.get(i));
+            }
+        }
+        copy(source, destination);
+        int newFirstCluster = destination.getFirst();
+        if(item.directory) {
+            patchFirstCluster(newFirstCluster, 0, DirectoryBase.CURRENT_DIRECTORY_NAME, newFirstCluster);
+        }
+        fat.claim(claimed);
+        fat.store(destination);
+        fat.commit();
+
+        writeEntryFirstCluster(item, newFirstCluster);
+        for(var subDirectory : item.subDirectories) {
+            patchFirstCluster(subDirectory.getFirstCluster(), 1, DirectoryBase.PARENT_DIRECTORY_NAME, newFirstCluster);
+        }
+
+        var destinationSet = new HashSet<>(destination);
+        var released = source.stream().filter(c -> !destinationSet.contains(c)).toList();
+        fat.free(released);
+        fat.commit();
+        owners.move(item.id, released, destination);
+        item.chain = new ArrayList<>(destination);
+    }
+
+    /**
+     * Copies clusters through a bounded buffer, one read and one write per run of clusters that are consecutive in
+     * both the source and the destination.  Clusters that stay where they are are skipped.
+     */
+    private void copy(List<Integer> source, List<Integer> destination) throws IOException {
+        var buffer = ByteBuffer.allocate(bufferClusters * bytesPerCluster);
+        int start = 0;
+        while(start < source.size()) {
+            if(source.get(start).equals(destination.get(start))) {
+                start++;
+                continue;
+            }
+            int length = 1;
+            while(start + length < source.size() && length < bufferClusters
+                    && source.get(start + length) == source.get(start) + length
+                    && destination.get(start + length) == destination.get(start) + length) {
+                length++;
+            }
+            fat.readClusters(source.get(start), length, buffer);
+            fat.writeClusters(buffer, destination.get(start));
+            clustersCopied += length;
+            start += length;
+        }
+    }
+
+    private void writeEntryFirstCluster(Item item, int firstCluster) throws IOException {
+        int entryOffset = (item.slot % slotsPerCluster) * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+        if(item.parent == null) {
+            int offset = item.slot * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+            setFirstCluster(rootDirectory, offset, firstCluster);
+            fat.writeRootDirectory(rootDirectory.slice(offset, DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY), offset);
+        } else {
+            int cluster = item.parent.chain.get(item.slot / slotsPerCluster);
+            var entry = fat.readCluster(cluster).slice(entryOffset, DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY);
+            setFirstCluster(entry, 0, firstCluster);
+            fat.writeCluster(entry, cluster, entryOffset);
+        }
+    }
+
+    /**
+     * Points the . or .. entry at the given slot of a directory's first cluster at a new cluster, if the slot holds
+     * that entry.
+     */
+    private void patchFirstCluster(int directoryCluster, int slot, String name, int firstCluster) throws IOException {
+        int entryOffset = slot * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+        var entry = fat.readCluster(directoryCluster).slice(entryOffset, DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY);
+        var expected = DirectoryItemEntry.toShortFileName(name);
+        for(int i = 0; i < expected.length; i++) {
+            if(entry.get(i) != expected[i]) {
+                return;
+            }
+        }
+        setFirstCluster(entry, 0, firstCluster);
+        fat.writeCluster(entry, directoryCluster, entryOffset);
+    }
+
+    private static void setFirstCluster(ByteBuffer entries, int entryOffset, int firstCluster) {
+        entries.put(entryOffset + DirectoryItemEntry.FIRST_CLUSTER_HI_OFFSET, (byte) (firstCluster >> 16));
+        entries.put(entryOffset + DirectoryItemEntry.FIRST_CLUSTER_HI_OFFSET + 1, (byte) (firstCluster >> 24));
+        entries.put(entryOffset + DirectoryItemEntry.FIRST_CLUSTER_LO_OFFSET, (byte) firstCluster);
+        entries.put(entryOffset + DirectoryItemEntry.FIRST_CLUSTER_LO_OFFSET + 1, (byte) (firstCluster >> 8));
+    }
+}
@@ -0,0 +1,141 @@
+package org.huronbikes.dos.FAT;
+
+import lombok.Builder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a FAT16 volume so that every cluster chain is contiguous.  The target layout packs the chains from the
+ * start of the data region: all directories first, in tree order, so that walking the tree reads forward through the
+ * image, then all files in tree order.  Clusters that are allocated but belong to no file are left where they are.
+ * <p>
+ * Each chain is moved with {@link ClusterRelocator}, so the volume is consistent after every FAT commit.  Chains in
+ * the way of a target range are first moved out towards the end of the volume.
+ */
+@Builder
+public class Defragmenter {
+    private final FAT16 fat;
+
+    /**
+     * The most clusters copied with one read and one write; bounds the copy buffer.
+     */
+    @Builder.Default
+    private final int bufferClusters = 256;
+
+    /**
+     * Only compute the layout and the fragmentation score, without moving anything.
+     */
+    @Builder.Default
+    private final boolean dryRun = false;
+
+    /**
+     * @param itemCount files and directories that own clusters
+     * @param clusterCount clusters owned by files and directories
+     * @param fragmentedItems files and directories whose chains are not contiguous
+     * @param fragmentationScore share of chain links that jump to a cluster other than the next one, between 0 and 1
+     * @param itemsMoved chains that were moved, or would be moved in a dry run
+     * @param clustersCopied clusters copied, including chains moved out of the way; 0 in a dry run
+     */
+    public record Report(int itemCount, long clusterCount, int fragmentedItems, double fragmentationScore, int itemsMoved, long clustersCopied) {
+    }
+
+    /**
+     * Computes the target layout and, unless this is a dry run, moves every chain into it.
+     * @return the state of the volume before defragmenting and the work done
+     */
+    public Report run() throws IOException {
+        var relocator = new ClusterRelocator(fat, bufferClusters);
+        var items = relocator.getItems();
+
+        long clusterCount = 0;
+        long links = 0;
+        long breaks = 0;
+        int fragmentedItems = 0;
+        for(var item : items) {
+            var chain = item.getChain();
+            int itemBreaks = 0;
+            for(int i = 1; i < chain.size(); i++) {
+                if(chain.get(i) != chain.get(i - 1) + 1) {
+                    itemBreaks++;
+                }
+            }
+            clusterCount += chain.size();
+            links += chain.size() - 1;
+            breaks += itemBreaks;
+            fragmentedItems += itemBreaks > 0 ? 1 : 0;
+        }
+        double score = links == 0 ? 0 : (double) breaks / links;
+
+        Map<ClusterRelocator.Item, List<Integer>> targets = planLayout(relocator, items);
+        int itemsMoved = (int) items.stream().filter(item -> !item.getChain().equals(targets.get(item))).count();
+        if(dryRun) {
+            return new Report(items.size(), clusterCount, fragmentedItems, score, itemsMoved, 0);
+        }
+
+        for(var item : items) {
+            var target = targets.get(item);
+            if(item.getChain().equals(target)) {
+                continue;
+            }
+            int targetStart = target.getFirst();
+            int targetEnd = target.getLast() + 1;
+            for(int cluster : target) {
+                var owner = relocator.getOwner(cluster);
+                if(owner != null && owner != item) {
+                    relocator.evacuate(owner, targetStart, targetEnd);
+                }
+            }
+            // the item's own clusters may sit at the wrong place inside the target; move it aside first
+            var ownClusters = new HashSet<>(item.getChain());
+            if(target.stream().anyMatch(ownClusters::contains)) {
+                relocator.evacuate(item, targetStart, targetEnd);
+            }
+            relocator.relocate(item, target);
+        }
+        return new Report(items.size(), clusterCount, fragmentedItems, score, itemsMoved, relocator.getClustersCopied());
+    }
+
+    /**
+     * Assigns each item a contiguous range of clusters, in order from the start of the data region, stepping over
+     * clusters that are allocated but belong to no item.
+     */
+    private Map<ClusterRelocator.Item, List<Integer>> planLayout(ClusterRelocator relocator, List<ClusterRelocator.Item> items) {
+        Map<ClusterRelocator.Item, List<Integer>> targets = new HashMap<>();
+        int cursor = 2;
+        for(var item : items) {
+            int length = item.getChain().size();
+            int end = fat.getClusterCount() + 2;
+            int blocked = cursor + length <= end ? firstUnowned(relocator, cursor, length) : -1;
+            while(blocked >= 0) {
+                cursor = blocked + 1;
+                blocked = cursor + length <= end ? firstUnowned(relocator, cursor, length) : -1;
+            }
+            if(cursor + length > end) {
+                // clusters that belong to nothing pushed the layout past the end of the volume
+                targets.put(item, item.getChain());
+                continue;
+            }
+            var target = new ArrayList<Integer>(length);
+            for(int i = 0; i < length; i++) {
+                target.add(cursor + i);
+            }
+            targets.put(item, target);
+            cursor += length;
+        }
+        return targets;
+    }
+
+    private int firstUnowned(ClusterRelocator relocator, int start, int length) {
+        for(int cluster = start + length - 1; cluster >= start; cluster--) {
+            if(relocator.isUnowned(cluster)) {
+                return cluster;
+            }
+        }
+        return -1;
+    }
+}
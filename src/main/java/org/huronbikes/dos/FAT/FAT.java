@@ -10,11 +10,25 @@ public interface FAT {
     int getBytesPerCluster();
     List<Integer> getClusters(int clusterNumber);
     ByteBuffer readCluster(int clusterNumber) throws IOException;
+    void readCluster(int clusterNumber, ByteBuffer target) throws IOException;
     void writeCluster(ByteBuffer buffer, int clusterNumber) throws IOException;
+    void writeCluster(ByteBuffer buffer, int clusterNumber, int offset) throws IOException;
     DirectoryBase getRootDirectory() throws IOException;
     List<Integer> allocate(int clusterCount);
     List<Integer> allocate(long fileSize);
     void store(List<Integer> cluster);
     void commit() throws IOException;
     void free(List<Integer> cluster);
+
+    /**
+     * Holds writes in memory until {@link #endBatch()}, so that a series of changes costs one write per run of
+     * changed clusters and a single FAT commit.
+     */
+    void beginBatch();
+    void endBatch() throws IOException;
+
+    /**
+     * Discards the writes held since {@link #beginBatch()}, including any changes to the FAT.
+     */
+    void abortBatch() throws IOException;
 }
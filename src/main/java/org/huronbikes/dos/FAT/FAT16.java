@@ -1,71 +1,102 @@
 package org.huronbikes.dos.FAT;
 
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
-import lombok.Setter;
 import org.huronbikes.dos.ByteUtils;
+import org.huronbikes.dos.Sector;
 import org.huronbikes.dos.Directory.*;
+import org.huronbikes.dos.Image.ImageStore;
+import org.huronbikes.dos.Image.MetadataJournal;
 
-import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
-
-import static org.huronbikes.dos.ByteUtils.parseLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class FAT16 implements FAT {
 
-    public void writeRootDirectory(List<DirectoryItemEntry> directoryEntries) throws IOException {
-        try(var channel = openForWrite()) {
-            channel.position(rootDirectoryOffset);
-            var buffer = ByteBuffer.allocate(rootDirectoryEntries * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY);
-            Arrays.fill(buffer.array(), (byte) 0);
-            var directoryEntryBuffer = new byte[DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY];
-            for(var entry : directoryEntries) {
-                entry.writeDirectoryEntry(directoryEntryBuffer);
-                buffer.put(directoryEntryBuffer, 0, directoryEntryBuffer.length);
-            }
-            buffer.position(0);
-            channel.write(buffer);
+    /**
+     * Writes entries into the root directory region without touching the rest of it.
+     * @param entries the bytes between its position and limit are written
+     * @param offset byte offset within the root directory to write to
+     */
+    public void writeRootDirectory(ByteBuffer entries, int offset) throws IOException {
+        if(offset < 0 || offset + entries.remaining() > rootDirectoryEntries * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY) {
+            throw new IllegalArgumentException("write operation would exceed the bounds of the root directory");
         }
-    }
-
-    @RequiredArgsConstructor
-    @Getter
-    private static class ClusterList {
-        private final int clusterNumber;
-        @Setter
-        private ClusterList next;
-        @Setter
-        private int size = 1;
-        public void incrementSize() {
-            size++;
+        if(pendingClusters != null) {
+            if(pendingRootDirectory == null) {
+                pendingRootDirectory = readRootDirectory();
+            }
+            int length = entries.remaining();
+            pendingRootDirectory.put(offset, entries, entries.position(), length);
+            pendingRootDirectoryStart = Math.min(pendingRootDirectoryStart, offset);
+            pendingRootDirectoryEnd = Math.max(pendingRootDirectoryEnd, offset + length);
+            return;
         }
+        writeThrough(entries, rootDirectoryOffset + offset);
     }
 
     private static final int BYTES_PER_ENTRY = 2;
+    private static final int END_OF_CHAIN_MINIMUM = 0xFFF8;
+    // changed FAT entries this close together are journaled as one write
+    private static final int JOURNAL_GAP_BYTES = 16;
+    private static final int FAT_LOCK_STRIPES = 64;
     private final ByteBuffer data;
+    @Getter(AccessLevel.PACKAGE)
     private final int bytesPerFat;
+    @Getter(AccessLevel.PACKAGE)
     private final int fatCopies;
+    @Getter(AccessLevel.PACKAGE)
     private final long fatOffset;
     @Getter
     private final int bytesPerCluster;
     private final int clusterCount;
-    private final AtomicReference<ClusterList> freeSpace = new AtomicReference<>();
-    private final File imageFile;
+    private FreeClusterMap freeClusters;
+    @Getter(AccessLevel.PACKAGE)
+    private final ImageStore store;
     private final int endOfRecordMarker;
     private final int mediaTypeMarker;
     private final int rootDirectoryEntries;
     private final long rootDirectoryOffset;
     private final long dataOffset;
 
+    /*
+        Writes made while a batch is open.  Clusters are kept in cluster number order so that endBatch can write
+        runs of adjacent clusters with one gathering write.  pendingClusters is null when no batch is open.
+     */
+    private TreeMap<Integer, ByteBuffer> pendingClusters;
+    private ByteBuffer pendingRootDirectory;
+    private int pendingRootDirectoryStart;
+    private int pendingRootDirectoryEnd;
+    private boolean pendingCommit;
+
+    /*
+        With a journal, FAT commits and the metadata writes of a batch go through it, and committedFat holds the FAT
+        as it is on disk so that only changed entries are journaled.
+     */
+    private MetadataJournal journal;
+    private byte[] committedFat;
+
+    /*
+        Entries are changed under the lock of their FAT sector's stripe and the sector is marked dirty, so threads
+        changing different parts of the FAT do not wait for each other, and a commit writes only the sectors that
+        changed.  Commits take turns on commitLock and copy each dirty sector into stagedFat under its stripe lock, so
+        every sector written is consistent even while other threads keep changing the FAT.
+     */
+    private final ReentrantLock[] sectorLocks = new ReentrantLock[FAT_LOCK_STRIPES];
+    private final AtomicLongArray dirtySectors;
+    private final Object commitLock = new Object();
+    private byte[] stagedFat;
+    private volatile ClusterListener clusterListener;
+
+    /**
+     * Opens an existing FAT.  Positions are absolute byte offsets into the store.
+     */
     public FAT16(
-            File imageFile,
-            FileChannel imageChannel,
+            ImageStore store,
             int bytesPerFat,
             int fatCopies,
             long fatOffset,
@@ -75,7 +106,7 @@ public class FAT16 implements FAT {
             long rootDirectoryOffset,
             long dataOffset
     ) throws IOException {
-        this.imageFile = imageFile;
+        this.store = store;
         this.bytesPerFat = bytesPerFat;
         this.fatCopies = fatCopies;
         this.fatOffset = fatOffset;
@@ -84,49 +115,19 @@ public class FAT16 implements FAT {
         this.rootDirectoryEntries = rootDirectoryEntries;
         this.rootDirectoryOffset = rootDirectoryOffset;
         this.dataOffset = dataOffset;
-        imageChannel.position(fatOffset);
         data = ByteBuffer.allocate(bytesPerFat);
-        imageChannel.read(data);
+        dirtySectors = new AtomicLongArray((bytesPerFat / Sector.BYTES_PER_SECTOR + 63) / 64);
+        Arrays.setAll(sectorLocks, i -> new ReentrantLock());
+        store.read(data, fatOffset);
 
-        freeSpace.set(getUnallocatedClusters());
+        freeClusters = getUnallocatedClusters();
         endOfRecordMarker = getEndOfRecordMarker();
         mediaTypeMarker = getMediaTypeMarker();
         data.position(0);
     }
 
     public FAT16(
-            File imageFile,
-            int bytesPerFat,
-            int fatCopies,
-            long fatOffset,
-            int bytesPerCluster,
-            int clusterCount,
-            int rootDirectoryEntries,
-            long rootDirectoryOffset,
-            long dataOffset) throws IOException {
-        try (var imageChannel = FileChannel.open(imageFile.toPath())) {
-            this.imageFile = imageFile;
-            this.bytesPerFat = bytesPerFat;
-            this.fatCopies = fatCopies;
-            this.fatOffset = fatOffset;
-            this.bytesPerCluster = bytesPerCluster;
-            this.clusterCount = clusterCount;
-            this.rootDirectoryEntries = rootDirectoryEntries;
-            this.rootDirectoryOffset = rootDirectoryOffset;
-            this.dataOffset = dataOffset;
-            imageChannel.position(fatOffset);
-            data = ByteBuffer.allocate(bytesPerFat);
-            imageChannel.read(data);
-
-            freeSpace.set(getUnallocatedClusters());
-            endOfRecordMarker = getEndOfRecordMarker();
-            mediaTypeMarker = getMediaTypeMarker();
-            data.position(0);
-        }
-    }
-
-    public FAT16(
-            File imageFile,
+            ImageStore store,
             int bytesPerFat,
             int fatCopies,
             long fatOffset,
@@ -135,7 +136,7 @@ public class FAT16 implements FAT {
             int rootDirectoryEntries,
             int mediaTypeMarker,
             int endOfRecordMarker) throws IOException {
-        this.imageFile = imageFile;
+        this.store = store;
         this.bytesPerFat = bytesPerFat;
         this.fatCopies = fatCopies;
         this.fatOffset = fatOffset;
@@ -147,27 +148,25 @@ public class FAT16 implements FAT {
         this.dataOffset = rootDirectoryOffset + ((long) rootDirectoryEntries * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY);
         this.mediaTypeMarker = mediaTypeMarker;
         data = ByteBuffer.allocate(bytesPerFat);
+        dirtySectors = new AtomicLongArray((bytesPerFat / Sector.BYTES_PER_SECTOR + 63) / 64);
+        Arrays.setAll(sectorLocks, i -> new ReentrantLock());
         initialize();
 
-        freeSpace.set(getUnallocatedClusters());
+        freeClusters = getUnallocatedClusters();
         data.position(0);
     }
 
     private void initialize() throws IOException {
-        try(var channel = openForWrite()) {
-            channel.position(fatOffset);
-            Arrays.fill(data.array(), (byte)0);
-            var mediaTypeAndEndOfRecord = new byte[4];
-            ByteUtils.writeWord(mediaTypeAndEndOfRecord, mediaTypeMarker, 0);
-            ByteUtils.writeWord(mediaTypeAndEndOfRecord, endOfRecordMarker, 2);
-            commit(channel);
-            channel.position(rootDirectoryOffset);
-            byte[] blankEntry = new byte[32];
-            Arrays.fill(blankEntry, (byte)0);
-            for(int i = 0; i < this.rootDirectoryEntries; i++) {
-                channel.write(ByteBuffer.wrap(blankEntry));
-            }
+        Arrays.fill(data.array(), (byte)0);
+        var mediaTypeAndEndOfRecord = new byte[4];
+        ByteUtils.writeWord(mediaTypeAndEndOfRecord, mediaTypeMarker, 0);
+        ByteUtils.writeWord(mediaTypeAndEndOfRecord, endOfRecordMarker, 2);
+        data.put(0, mediaTypeAndEndOfRecord);
+        for(int i = 0; i < dirtySectors.length(); i++) {
+            dirtySectors.set(i, -1L);
         }
+        writeFatCopies();
+        store.write(ByteBuffer.allocate(rootDirectoryEntries * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY), rootDirectoryOffset);
     }
 
     /**
@@ -186,118 +185,396 @@ public class FAT16 implements FAT {
     }
 
     public List<Integer> allocate(int clusterCount) {
-        int freeCusterCount = freeSpace.get().getSize();
-        if(clusterCount > freeCusterCount) {
-            throw new IllegalArgumentException(String.format("requested %d clusters but only %d are free", clusterCount, freeCusterCount));
+        return freeClusters.allocate(clusterCount);
+    }
+
+    /**
+     * Takes specific clusters out of the free space pool, for callers that choose where data goes.
+     * @throws IllegalArgumentException if any of the clusters is in use
+     */
+    public void claim(List<Integer> clusterNumbers) {
+        for(var clusterNumber : clusterNumbers) {
+            if(!freeClusters.isFree(clusterNumber)) {
+                throw new IllegalArgumentException(String.format("cluster %d is not free", clusterNumber));
+            }
         }
+        clusterNumbers.forEach(freeClusters::markUsed);
+    }
 
-        ClusterList freespaceHead;
-        ClusterList newHead;
+    /**
+     * @see FreeClusterMap#findFreeFromEnd(int, int, int)
+     */
+    public List<Integer> findFreeClustersFromEnd(int clusterCount, int avoidStart, int avoidEnd) {
+        return freeClusters.findFreeFromEnd(clusterCount, avoidStart, avoidEnd);
+    }
 
-        /*
-            Critical section: advances the newHead pointer until enough unallocated clusters
-            have been found and then attempts to set the free space linked list to the new head
-            value.  If the free space list has already been altered before this operation completes,
-            subsequent attempts will be made.
-         */
-        do {
-            freespaceHead = freeSpace.get();
-            newHead = freespaceHead;
-            for(int x = 0; x < clusterCount; x++) {
-                newHead = freespaceHead.getNext();
+    public boolean isFree(int clusterNumber) {
+        return freeClusters.isFree(clusterNumber);
+    }
+
+    public int getClusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * Starts holding cluster, root directory and FAT writes in memory.  Reads see the held writes.
+     */
+    @Override
+    public void beginBatch() {
+        if(pendingClusters != null) {
+            throw new IllegalStateException("A batch is already open");
+        }
+        pendingClusters = new TreeMap<>();
+        pendingRootDirectory = null;
+        pendingRootDirectoryStart = Integer.MAX_VALUE;
+        pendingRootDirectoryEnd = 0;
+        pendingCommit = false;
+    }
+
+    /**
+     * Writes everything held since {@link #beginBatch()}: each run of adjacent clusters with one write, then the
+     * changed span of the root directory, then the FAT if it was committed during the batch.
+     * <p>
+     * With a journal, clusters that are free in the FAT on disk are still written in place, since nothing refers to
+     * them until the batch commits, unless the journal still holds an older write to them from before they were
+     * freed.  Every other write, including the changed FAT entries, is committed to the journal as one group.
+     * <p>
+     * If a write fails the batch is closed and the FAT reloaded from disk, as {@link #abortBatch()} does.
+     */
+    @Override
+    public void endBatch() throws IOException {
+        requireBatch();
+        try {
+            List<MetadataJournal.Write> journaled = new ArrayList<>();
+            var run = new ArrayList<ByteBuffer>();
+            int runStart = 0;
+            for(var pending : pendingClusters.entrySet()) {
+                if(journal != null && !isWritableInPlace(pending.getKey())) {
+                    journaled.add(new MetadataJournal.Write(getClusterPosition(pending.getKey()), pending.getValue().clear()));
+                    continue;
+                }
+                if(!run.isEmpty() && pending.getKey() != runStart + run.size()) {
+                    writeClusterRun(runStart, run);
+                    run.clear();
+                }
+                if(run.isEmpty()) {
+                    runStart = pending.getKey();
+                }
+                run.add(pending.getValue().clear());
+            }
+            if(!run.isEmpty()) {
+                writeClusterRun(runStart, run);
+            }
+            if(pendingRootDirectoryEnd > pendingRootDirectoryStart) {
+                var entries = pendingRootDirectory.slice(pendingRootDirectoryStart, pendingRootDirectoryEnd - pendingRootDirectoryStart);
+                if(journal != null) {
+                    journaled.add(new MetadataJournal.Write(rootDirectoryOffset + pendingRootDirectoryStart, entries));
+                } else {
+                    store.write(entries, rootDirectoryOffset + pendingRootDirectoryStart);
+                }
             }
-            newHead.setSize(freespaceHead.getSize() - clusterCount);
-        } while(!freeSpace.compareAndSet(freespaceHead, newHead));
+            if(journal != null) {
+                synchronized (commitLock) {
+                    var sectors = pendingCommit ? stageDirtySectors() : new BitSet();
+                    journaled.addAll(getChangedFatEntries(sectors));
+                    journal.commit(journaled);
+                    markCommitted(sectors);
+                }
+            } else if(pendingCommit) {
+                writeFatCopies();
+            }
+        } catch (IOException | RuntimeException e) {
+            // part of the batch may be missing from the disk, so the in-memory FAT is dropped as abortBatch does
+            closeBatch();
+            reload();
+            throw e;
+        }
+        closeBatch();
+    }
 
-        List<Integer> result = new ArrayList<>(clusterCount);
+    /**
+     * Drops everything held since {@link #beginBatch()} and reloads the FAT from disk.
+     */
+    @Override
+    public void abortBatch() throws IOException {
+        requireBatch();
+        closeBatch();
+        reload();
+    }
 
-        while(freespaceHead != newHead) {
-            result.add(freespaceHead.getClusterNumber());
-            freespaceHead = freespaceHead.getNext();
+    /**
+     * Replaces the in-memory FAT with the first copy on disk, dropping changes that were not committed.
+     */
+    void reload() throws IOException {
+        data.clear();
+        store.read(data, fatOffset);
+        freeClusters = getUnallocatedClusters();
+        data.position(0);
+        for(int i = 0; i < dirtySectors.length(); i++) {
+            dirtySectors.set(i, 0);
+        }
+        if(committedFat != null) {
+            System.arraycopy(data.array(), 0, committedFat, 0, bytesPerFat);
+        }
+    }
+
+    /**
+     * Sends FAT commits and the metadata writes of batches through a journal, so the store no longer has to write
+     * synchronously.  Cluster and root directory writes made outside a batch still go straight to the store, unless
+     * the journal holds an older write to the same bytes; the journal forces them to disk before the next commit.
+     * Such a write is not in the same journal group as the FAT commit that follows it, so a change that needs both
+     * to survive a crash together, such as adding or removing a directory entry, must be made in a batch.
+     * @param journal null to write directly again
+     */
+    public void setJournal(MetadataJournal journal) throws IOException {
+        if(pendingClusters != null) {
+            throw new IllegalStateException("The journal can not be changed while a batch is open");
+        }
+        this.journal = journal;
+        if(journal == null) {
+            committedFat = null;
+        } else {
+            var onDisk = ByteBuffer.allocate(bytesPerFat);
+            store.read(onDisk, fatOffset);
+            committedFat = onDisk.array();
+        }
+    }
+
+    /**
+     * Freezes the FAT as it is in memory, committed or not, and the root directory as it is on disk.
+     * @throws IllegalStateException if a batch is open, since its cluster writes are not on disk yet
+     */
+    public FatSnapshot snapshot() throws IOException {
+        if(pendingClusters != null) {
+            throw new IllegalStateException("A snapshot can not be taken while a batch is open");
+        }
+        var entries = new char[bytesPerFat / BYTES_PER_ENTRY];
+        for(int i = 0; i < entries.length; i++) {
+            entries[i] = (char) getClusterEntry(i * BYTES_PER_ENTRY);
+        }
+        return new FatSnapshot(store, entries, readRootDirectory().array(), rootDirectoryEntries, bytesPerCluster, clusterCount, dataOffset);
+    }
+
+    /**
+     * A read-only view of the FAT as it is in memory, for comparing whole FATs at once.
+     */
+    ByteBuffer getEntries() {
+        return data.asReadOnlyBuffer();
+    }
+
+    boolean isBatchOpen() {
+        return pendingClusters != null;
+    }
+
+    private void requireBatch() {
+        if(pendingClusters == null) {
+            throw new IllegalStateException("No batch is open");
         }
-        return result;
     }
 
-    private FileChannel openForWrite() throws IOException {
-        return FileChannel.open(imageFile.toPath(), Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SYNC));
+    private void closeBatch() {
+        pendingClusters = null;
+        pendingRootDirectory = null;
+    }
+
+    private void writeClusterRun(int firstCluster, List<ByteBuffer> run) throws IOException {
+        store.write(run.toArray(ByteBuffer[]::new), getClusterPosition(firstCluster));
     }
 
     public void commit() throws IOException {
-        try(var channel = openForWrite()) {
-            commit(channel);
+        if(pendingClusters != null) {
+            pendingCommit = true;
+            return;
+        }
+        writeFatCopies();
+    }
+
+    /**
+     * Writes the dirty sectors of the FAT to every copy, one write per run of adjacent sectors, or commits them to the
+     * journal.
+     */
+    private void writeFatCopies() throws IOException {
+        synchronized (commitLock) {
+            var sectors = stageDirtySectors();
+            if(journal != null) {
+                journal.commit(getChangedFatEntries(sectors));
+                markCommitted(sectors);
+                return;
+            }
+            int first = sectors.nextSetBit(0);
+            while(first >= 0) {
+                int end = sectors.nextClearBit(first);
+                int offset = first * Sector.BYTES_PER_SECTOR;
+                int length = (end - first) * Sector.BYTES_PER_SECTOR;
+                for(int i = 0; i < fatCopies; i++) {
+                    store.write(ByteBuffer.wrap(stagedFat, offset, length), fatOffset + ((long) bytesPerFat * i) + offset);
+                }
+                first = sectors.nextSetBit(end);
+            }
+        }
+    }
+
+    /**
+     * Copies the dirty sectors into stagedFat, each under its stripe lock, and marks them clean.
+     * @return the sectors copied
+     */
+    private BitSet stageDirtySectors() {
+        if(stagedFat == null) {
+            stagedFat = new byte[bytesPerFat];
+        }
+        var sectors = new BitSet();
+        int sectorCount = bytesPerFat / Sector.BYTES_PER_SECTOR;
+        for(int word = 0; word < dirtySectors.length(); word++) {
+            for(long bits = dirtySectors.getAndSet(word, 0); bits != 0; bits &= bits - 1) {
+                int sector = (word << 6) + Long.numberOfTrailingZeros(bits);
+                if(sector >= sectorCount) {
+                    break;
+                }
+                var lock = sectorLocks[sector % FAT_LOCK_STRIPES];
+                lock.lock();
+                try {
+                    System.arraycopy(data.array(), sector * Sector.BYTES_PER_SECTOR, stagedFat, sector * Sector.BYTES_PER_SECTOR, Sector.BYTES_PER_SECTOR);
+                } finally {
+                    lock.unlock();
+                }
+                sectors.set(sector);
+            }
+        }
+        return sectors;
+    }
+
+    private void markCommitted(BitSet sectors) {
+        sectors.stream().forEach(sector -> System.arraycopy(stagedFat, sector * Sector.BYTES_PER_SECTOR, committedFat, sector * Sector.BYTES_PER_SECTOR, Sector.BYTES_PER_SECTOR));
+    }
+
+    /**
+     * A cluster can be written around the journal if nothing on disk refers to it and no record since the last
+     * checkpoint wrote it, such as a directory cluster that was changed and then freed; replaying that record would
+     * put the old bytes back over the new ones.
+     */
+    private boolean isWritableInPlace(int clusterNumber) {
+        int entryLocation = getClusterEntryLocation(clusterNumber);
+        return committedFat[entryLocation] == 0 && committedFat[entryLocation + 1] == 0
+                && !journal.isJournaled(getClusterPosition(clusterNumber), bytesPerCluster);
+    }
+
+    /**
+     * Writes straight to the store, or through the journal if it still holds an older write to the same bytes.
+     */
+    private void writeThrough(ByteBuffer source, long position) throws IOException {
+        var current = journal;
+        if(current != null && current.isJournaled(position, source.remaining())) {
+            current.commit(List.of(new MetadataJournal.Write(position, source)));
+            return;
         }
+        store.write(source, position);
     }
 
-    private void commit(FileChannel channel) throws IOException {
-        for (int i = 0; i < fatCopies; i++) {
-            commit(channel, fatOffset + ((long) bytesPerFat * i));
+    /**
+     * Collects the runs of staged entries that differ from the FAT on disk as writes to every copy.
+     */
+    private List<MetadataJournal.Write> getChangedFatEntries(BitSet sectors) {
+        List<MetadataJournal.Write> result = new ArrayList<>();
+        var staged = ByteBuffer.wrap(stagedFat);
+        var committed = ByteBuffer.wrap(committedFat);
+        int first = sectors.nextSetBit(0);
+        while(first >= 0) {
+            int limit = sectors.nextClearBit(first) * Sector.BYTES_PER_SECTOR;
+            int offset = first * Sector.BYTES_PER_SECTOR;
+            while(offset < limit) {
+                int mismatch = staged.slice(offset, limit - offset).mismatch(committed.slice(offset, limit - offset));
+                if(mismatch < 0) {
+                    break;
+                }
+                int start = (offset + mismatch) / BYTES_PER_ENTRY * BYTES_PER_ENTRY;
+                int end = start + BYTES_PER_ENTRY;
+                for(int next = end; next < limit && next - end < JOURNAL_GAP_BYTES; next += BYTES_PER_ENTRY) {
+                    if(stagedFat[next] != committedFat[next] || stagedFat[next + 1] != committedFat[next + 1]) {
+                        end = next + BYTES_PER_ENTRY;
+                    }
+                }
+                for(int i = 0; i < fatCopies; i++) {
+                    result.add(new MetadataJournal.Write(fatOffset + (long) bytesPerFat * i + start, staged.slice(start, end - start)));
+                }
+                offset = end;
+            }
+            first = sectors.nextSetBit(limit / Sector.BYTES_PER_SECTOR);
         }
+        return result;
     }
 
     public void store(List<Integer> clusterNumbers) {
         for (int i = 0; i < clusterNumbers.size(); i++) {
             int currentClusterNumber = clusterNumbers.get(i);
             int nextClusterNumber = i + 1 < clusterNumbers.size() ? clusterNumbers.get(i + 1) : endOfRecordMarker;
-            data.position((currentClusterNumber * BYTES_PER_ENTRY));
-            byte low = (byte)(nextClusterNumber & 0xFF);
-            byte high = (byte)((nextClusterNumber & 0xFF00) >> 8);
-            data.put(new byte[] { high, low });
+            putEntry(getClusterEntryLocation(currentClusterNumber), nextClusterNumber);
+        }
+        var listener = clusterListener;
+        if(listener != null) {
+            listener.clustersStored(clusterNumbers);
         }
     }
 
+    /**
+     * Marks clusters free in the FAT and the free cluster map.  Freeing a whole tree at once costs one update per
+     * cluster; nothing is written until the FAT is committed.
+     */
     public void free(List<Integer> clusterNumbers) {
-        ClusterList freespaceHead;
         for(var clusterNumber : clusterNumbers) {
-            data.position((clusterNumber * BYTES_PER_ENTRY));
-            data.putShort((short) 0);
+            putEntry(getClusterEntryLocation(clusterNumber), 0);
+            freeClusters.markFree(clusterNumber);
+        }
+        var listener = clusterListener;
+        if(listener != null) {
+            listener.clustersFreed(clusterNumbers);
         }
-        ClusterList newFreespace;
-        do {
-            freespaceHead = freeSpace.get();
-            newFreespace = getUnallocatedClusters();
-        } while(!freeSpace.compareAndSet(freespaceHead, newFreespace));
     }
 
-    private void commit(FileChannel imageFileChannel, long fatOffset) throws IOException {
-        imageFileChannel.position(fatOffset);
-        data.position(0);
-        imageFileChannel.write(data);
+    /**
+     * @param listener told about every chain stored and every cluster freed, null for none
+     */
+    public void setClusterListener(ClusterListener listener) {
+        this.clusterListener = listener;
+    }
+
+    private void putEntry(int entryLocation, int value) {
+        int sector = entryLocation / Sector.BYTES_PER_SECTOR;
+        var lock = sectorLocks[sector % FAT_LOCK_STRIPES];
+        lock.lock();
+        try {
+            // FAT entries are little endian
+            data.put(entryLocation, (byte)(value & 0xFF));
+            data.put(entryLocation + 1, (byte)((value & 0xFF00) >> 8));
+            dirtySectors.getAndUpdate(sector >>> 6, word -> word | (1L << (sector & 63)));
+        } finally {
+            lock.unlock();
+        }
     }
 
     public long getFreeSpace() {
-        return (long) freeSpace.get().getSize() * bytesPerCluster;
-    }
-
-    private ClusterList getUnallocatedClusters() {
-        data.position(2 * BYTES_PER_ENTRY);
-        int maxPosition = (clusterCount + 1) * BYTES_PER_ENTRY;
-        int clusterNumber = 2;
-        ClusterList head = null;
-        ClusterList current = null;
-        byte[] dword = new byte[2];
-        while(data.position() < maxPosition) {
-            data.get(dword);
-            if(dword[0] == 0 && dword[1] == 0) {
-                if(head == null) {
-                    head = new ClusterList(clusterNumber);;
-                    current = head;
-                } else {
-                    current.setNext(new ClusterList(clusterNumber));
-                    current = current.getNext();
-                    head.incrementSize();
-                }
+        return (long) freeClusters.getFreeCount() * bytesPerCluster;
+    }
+
+    /*
+        The constructors call this and the marker getters, so they read entries through the private readEntry rather
+        than the public methods a subclass could override before it is initialized.
+     */
+    private FreeClusterMap getUnallocatedClusters() {
+        var result = new FreeClusterMap(clusterCount);
+        for(int clusterNumber = 2; clusterNumber < clusterCount + 2; clusterNumber++) {
+            if(readEntry(clusterNumber * BYTES_PER_ENTRY) == 0) {
+                result.markFree(clusterNumber);
             }
-            clusterNumber++;
         }
-        return head;
+        return result;
     }
 
     private int getEndOfRecordMarker() {
-        return (int) parseLong(data, 2, 2);
+        return readEntry(2);
     }
 
     private int getMediaTypeMarker() {
-        return (int) parseLong(data, 0, 2);
+        return readEntry(0);
     }
 
     /**
@@ -310,21 +587,36 @@ public class FAT16 implements FAT {
         return clusterNumber * BYTES_PER_ENTRY;
     }
 
+    /**
+     * Reads a FAT entry with absolute gets, so chains can be followed from several threads at once.
+     */
     public int getClusterEntry(int clusterEntryCoordinates) {
-        return (int) parseLong(data, clusterEntryCoordinates, 2);
+        return readEntry(clusterEntryCoordinates);
+    }
+
+    private int readEntry(int entryLocation) {
+        return (data.get(entryLocation) & 0xFF) | ((data.get(entryLocation + 1) & 0xFF) << 8);
     }
 
     public int getNextClusterNumber(int clusterNumber) {
         return getClusterEntry(getClusterEntryLocation(clusterNumber));
     }
 
+    /**
+     * Follows a cluster chain.  Any value from 0xFFF8 up ends a chain, as does the volume's own end of chain marker.
+     * @throws IllegalStateException if the chain runs into a free, reserved or out of range cluster, or is longer
+     * than the volume, which means it loops
+     */
     public List<Integer> getClusters(int firstCluster) {
-        List<Integer> clusterChain = new LinkedList<>();
+        List<Integer> clusterChain = new ArrayList<>();
         int cluster = firstCluster;
         do {
+            if(cluster < 2 || cluster >= clusterCount + 2 || clusterChain.size() > clusterCount) {
+                throw new IllegalStateException(String.format("cluster chain starting at %d is broken at cluster %d", firstCluster, cluster));
+            }
             clusterChain.add(cluster);
             cluster = getNextClusterNumber(cluster);
-        } while (cluster != getEndOfRecordMarker());
+        } while (cluster != endOfRecordMarker && cluster < END_OF_CHAIN_MINIMUM);
         return clusterChain;
     }
 
@@ -334,42 +626,105 @@ public class FAT16 implements FAT {
     }
 
     public ByteBuffer readCluster(int clusterNumber) throws IOException {
+        var result = ByteBuffer.allocate(bytesPerCluster);
+        readCluster(clusterNumber, result);
+        return result;
+    }
+
+    /**
+     * Reads a cluster into an existing buffer so that scans can reuse one buffer for every cluster.
+     * @param target buffer of at least bytesPerCluster bytes.  It is cleared before reading and left with its
+     *               position at 0 and its limit at bytesPerCluster.
+     */
+    public void readCluster(int clusterNumber, ByteBuffer target) throws IOException {
         if(clusterNumber < 2) {
             throw  new IllegalArgumentException("Cluster Number must be 2 or greater");
         }
 
-        try(var channel = FileChannel.open(imageFile.toPath())) {
-            channel.position(getClusterPosition(clusterNumber));
-            var result = ByteBuffer.allocate(bytesPerCluster);
-            channel.read(result);
-            return result;
+        target.clear().limit(bytesPerCluster);
+        var pending = pendingClusters == null ? null : pendingClusters.get(clusterNumber);
+        if(pending != null) {
+            target.put(0, pending, 0, bytesPerCluster);
+            return;
+        }
+        store.read(target, getClusterPosition(clusterNumber));
+        target.flip();
+    }
+
+    /**
+     * Reads consecutive clusters with one read, for bulk copies.
+     * @param target buffer of at least clusterCount clusters.  It is left with its position at 0 and its limit at
+     *               the end of the data read.
+     */
+    public void readClusters(int firstCluster, int clusterCount, ByteBuffer target) throws IOException {
+        checkClusterRun(firstCluster, clusterCount);
+        target.clear().limit(clusterCount * bytesPerCluster);
+        store.read(target, getClusterPosition(firstCluster));
+        target.flip();
+    }
+
+    /**
+     * Writes consecutive clusters with one write, for bulk copies.
+     * @param source the bytes between its position and limit are written, a whole number of clusters
+     */
+    public void writeClusters(ByteBuffer source, int firstCluster) throws IOException {
+        checkClusterRun(firstCluster, source.remaining() / bytesPerCluster);
+        writeThrough(source, getClusterPosition(firstCluster));
+    }
+
+    private void checkClusterRun(int firstCluster, int count) {
+        if(pendingClusters != null) {
+            throw new IllegalStateException("Clusters cannot be copied in bulk while a batch is open");
+        }
+        if(firstCluster < 2 || firstCluster + count > clusterCount + 2) {
+            throw new IllegalArgumentException(String.format("clusters %d to %d are not data clusters", firstCluster, firstCluster + count - 1));
         }
     }
 
     public void writeCluster(ByteBuffer clusterData, int clusterNumber) throws IOException {
-        try(var channel = FileChannel.open(imageFile.toPath(), Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SYNC))) {
-            clusterData.position(0);
-            var toWrite = clusterData.slice(0, bytesPerCluster);
-            channel.position(getClusterPosition(clusterNumber));
-            channel.write(toWrite);
+        if(pendingClusters != null) {
+            pendingClusters.computeIfAbsent(clusterNumber, c -> ByteBuffer.allocate(bytesPerCluster))
+                    .put(0, clusterData, 0, bytesPerCluster);
+            return;
         }
+        writeThrough(clusterData.slice(0, bytesPerCluster), getClusterPosition(clusterNumber));
     }
 
-    @Override
-    public DirectoryBase getRootDirectory() throws IOException {
-        return new RootDirectory(this, getRootDirectoryEntries(), rootDirectoryEntries);
+    /**
+     * Writes part of a cluster, such as a single directory entry, without touching the rest of it.
+     * @param clusterData the bytes between its position and limit are written
+     * @param offset byte offset within the cluster to write to
+     */
+    public void writeCluster(ByteBuffer clusterData, int clusterNumber, int offset) throws IOException {
+        if(clusterNumber < 2) {
+            throw  new IllegalArgumentException("Cluster Number must be 2 or greater");
+        }
+        if(offset < 0 || offset + clusterData.remaining() > bytesPerCluster) {
+            throw new IllegalArgumentException("write operation would exceed the bounds of the cluster");
+        }
+        if(pendingClusters != null) {
+            var pending = pendingClusters.get(clusterNumber);
+            if(pending == null) {
+                pending = readCluster(clusterNumber);
+                pendingClusters.put(clusterNumber, pending);
+            }
+            pending.put(offset, clusterData, clusterData.position(), clusterData.remaining());
+            return;
+        }
+        writeThrough(clusterData, getClusterPosition(clusterNumber) + offset);
     }
 
-    private List<DirectoryItemEntry> getRootDirectoryEntries() throws IOException {
-        return DirectoryItemEntry.fromBuffer(readRootDirectory(), 0).toList();
+    @Override
+    public DirectoryBase getRootDirectory() throws IOException {
+        return new RootDirectory(this, readRootDirectory(), rootDirectoryEntries);
     }
 
-    private ByteBuffer readRootDirectory() throws IOException {
-        try(var channel = FileChannel.open(imageFile.toPath())) {
-            channel.position(rootDirectoryOffset);
-            var result = ByteBuffer.allocate(rootDirectoryEntries * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY);
-            channel.read(result);
-            return result;
+    public ByteBuffer readRootDirectory() throws IOException {
+        if(pendingRootDirectory != null) {
+            return ByteBuffer.allocate(pendingRootDirectory.capacity()).put(0, pendingRootDirectory, 0, pendingRootDirectory.capacity());
         }
+        var result = ByteBuffer.allocate(rootDirectoryEntries * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY);
+        store.read(result, rootDirectoryOffset);
+        return result;
     }
 }
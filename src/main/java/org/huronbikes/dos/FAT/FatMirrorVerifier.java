@@ -0,0 +1,155 @@
+package org.huronbikes.dos.FAT;
+
+import lombok.Builder;
+import org.huronbikes.dos.Image.FileImageStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the copies of a FAT16 volume's FAT on disk and optionally repairs the ones that differ.  On a plain image
+ * file the FAT region is memory mapped and compared in place; other stores, such as overlays and compressed
+ * containers, have no file to map, so the region is read from them with one read instead.  Each mirror is compared
+ * with the first copy using {@link ByteBuffer#mismatch}, which compares many bytes at a time, so copies that agree are
+ * checked at close to memory speed and only the differing entries are looked at one by one.  Repairs write only the
+ * entries that change, through the store rather than the mapping.
+ * <pre>
+ * var report = FatMirrorVerifier.builder().fat(fat).repair(true).build().verify();
+ * </pre>
+ */
+@Builder
+public class FatMirrorVerifier {
+    private static final int BYTES_PER_ENTRY = 2;
+
+    private final FAT16 fat;
+
+    /**
+     * Rewrite every entry where a copy differs from the value chosen by the repair source.
+     */
+    @Builder.Default
+    private final boolean repair = false;
+
+    @Builder.Default
+    private final RepairSource repairSource = RepairSource.MAJORITY;
+
+    public enum RepairSource {
+        /**
+         * Each differing entry takes the value most copies agree on.  Ties go to the first copy.
+         */
+        MAJORITY,
+        /**
+         * Each differing entry takes the value of the first copy.
+         */
+        PRIMARY
+    }
+
+    /**
+     * An entry where the copies disagree.
+     * @param values the entry's value in each copy, in copy order
+     * @param chosen the value the repair source picks
+     */
+    public record Difference(int cluster, List<Integer> values, int chosen) {
+    }
+
+    /**
+     * @param copiesRepaired the copies that had at least one entry rewritten
+     * @param primaryChanged true if the first copy was rewritten and the FAT was reloaded from it
+     */
+    public record Report(int copies, List<Difference> differences, List<Integer> copiesRepaired, boolean primaryChanged) {
+        public boolean isConsistent() {
+            return differences.isEmpty();
+        }
+    }
+
+    public Report verify() throws IOException {
+        if(repair && fat.isBatchOpen()) {
+            throw new IllegalStateException("FAT mirrors can not be repaired while a batch is open");
+        }
+        int copies = fat.getFatCopies();
+        int bytesPerFat = fat.getBytesPerFat();
+        var store = fat.getStore();
+        ByteBuffer region;
+        if(store instanceof FileImageStore fileStore) {
+            region = fileStore.map(fat.getFatOffset(), (long) bytesPerFat * copies);
+        } else {
+            region = ByteBuffer.allocateDirect(bytesPerFat * copies);
+            store.read(region, fat.getFatOffset());
+        }
+        var fats = new ByteBuffer[copies];
+        for(int i = 0; i < copies; i++) {
+            // FAT entries are little endian
+            fats[i] = region.slice(i * bytesPerFat, bytesPerFat).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        var differingEntries = new BitSet(bytesPerFat / BYTES_PER_ENTRY);
+        for(int i = 1; i < copies; i++) {
+            findDifferences(fats[0], fats[i], differingEntries);
+        }
+
+        List<Difference> differences = new ArrayList<>(differingEntries.cardinality());
+        var repairedCopies = new BitSet(copies);
+        for(int entry = differingEntries.nextSetBit(0); entry >= 0; entry = differingEntries.nextSetBit(entry + 1)) {
+            int offset = entry * BYTES_PER_ENTRY;
+            List<Integer> values = new ArrayList<>(copies);
+            for(var copy : fats) {
+                values.add(Short.toUnsignedInt(copy.getShort(offset)));
+            }
+            int chosen = choose(values);
+            differences.add(new Difference(entry, List.copyOf(values), chosen));
+            if(repair) {
+                for(int i = 0; i < copies; i++) {
+                    if(values.get(i) != chosen) {
+                        var value = ByteBuffer.allocate(BYTES_PER_ENTRY).order(ByteOrder.LITTLE_ENDIAN).putShort(0, (short) chosen);
+                        store.write(value, fat.getFatOffset() + (long) i * bytesPerFat + offset);
+                        repairedCopies.set(i);
+                    }
+                }
+            }
+        }
+        boolean primaryChanged = repairedCopies.get(0);
+        if(primaryChanged) {
+            fat.reload();
+        }
+        return new Report(copies, differences, repairedCopies.stream().boxed().toList(), primaryChanged);
+    }
+
+    /**
+     * Marks the entries where two copies differ.  Each mismatch skips ahead to the byte after the differing entry, so
+     * the number of comparisons grows with the number of differences rather than the size of the FAT.
+     */
+    private static void findDifferences(ByteBuffer primary, ByteBuffer mirror, BitSet differingEntries) {
+        int length = primary.limit();
+        int offset = 0;
+        while(offset < length) {
+            int mismatch = primary.slice(offset, length - offset).mismatch(mirror.slice(offset, length - offset));
+            if(mismatch < 0) {
+                return;
+            }
+            int entry = (offset + mismatch) / BYTES_PER_ENTRY;
+            differingEntries.set(entry);
+            offset = (entry + 1) * BYTES_PER_ENTRY;
+        }
+    }
+
+    private int choose(List<Integer> values) {
+        int primary = values.getFirst();
+        if(repairSource == RepairSource.PRIMARY) {
+            return primary;
+        }
+        Map<Integer, Integer> counts = new HashMap<>();
+        values.forEach(value -> counts.merge(value, 1, Integer::sum));
+        int chosen = primary;
+        for(var count : counts.entrySet()) {
+            if(count.getValue() > counts.get(chosen)) {
+                chosen = count.getKey();
+            }
+        }
+        return chosen;
+    }
+}
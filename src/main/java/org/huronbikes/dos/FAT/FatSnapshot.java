@@ -0,0 +1,180 @@
+package org.huronbikes.dos.FAT;
+
+import lombok.Getter;
+import org.huronbikes.dos.Directory.DirectoryBase;
+import org.huronbikes.dos.Directory.DirectoryItemEntry;
+import org.huronbikes.dos.Directory.RootDirectory;
+import org.huronbikes.dos.Image.ImageStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read-only view of a FAT16 volume frozen at the moment it was taken.  The FAT is copied into a plain array and the
+ * root directory into bytes that are only ever read through fresh read-only views, so nothing is shared that has a
+ * position or can change.  Any number of threads can follow chains, list directories and read files at once without
+ * locking; cluster reads go straight to the store with positional reads.
+ * <p>
+ * The FAT and root directory never change, but clusters are read from the store as it is now.  Writers that keep
+ * going on the volume after the snapshot is taken should work through an overlay so the snapshot's clusters stay put.
+ */
+public class FatSnapshot implements FAT {
+    private static final int END_OF_CHAIN_MINIMUM = 0xFFF8;
+
+    private final ImageStore store;
+    private final char[] entries;
+    private final byte[] rootDirectory;
+    private final int rootDirectoryEntries;
+    @Getter
+    private final int bytesPerCluster;
+    @Getter
+    private final int clusterCount;
+    private final int endOfRecordMarker;
+    private final long dataOffset;
+
+    FatSnapshot(ImageStore store, char[] entries, byte[] rootDirectory, int rootDirectoryEntries, int bytesPerCluster, int clusterCount, long dataOffset) {
+        this.store = store;
+        this.entries = entries;
+        this.rootDirectory = rootDirectory;
+        this.rootDirectoryEntries = rootDirectoryEntries;
+        this.bytesPerCluster = bytesPerCluster;
+        this.clusterCount = clusterCount;
+        this.endOfRecordMarker = entries[1];
+        this.dataOffset = dataOffset;
+    }
+
+    public int getNextClusterNumber(int clusterNumber) {
+        return entries[clusterNumber];
+    }
+
+    public boolean isFree(int clusterNumber) {
+        return entries[clusterNumber] == 0;
+    }
+
+    /**
+     * Follows a cluster chain.
+     * @throws IllegalStateException if the chain is broken or loops
+     */
+    @Override
+    public List<Integer> getClusters(int firstCluster) {
+        List<Integer> clusterChain = new ArrayList<>();
+        int cluster = firstCluster;
+        do {
+            if(cluster < 2 || cluster >= clusterCount + 2 || clusterChain.size() > clusterCount) {
+                throw new IllegalStateException(String.format("cluster chain starting at %d is broken at cluster %d", firstCluster, cluster));
+            }
+            clusterChain.add(cluster);
+            cluster = entries[cluster];
+        } while (cluster != endOfRecordMarker && cluster < END_OF_CHAIN_MINIMUM);
+        return clusterChain;
+    }
+
+    @Override
+    public ByteBuffer readCluster(int clusterNumber) throws IOException {
+        var result = ByteBuffer.allocate(bytesPerCluster);
+        readCluster(clusterNumber, result);
+        return result;
+    }
+
+    @Override
+    public void readCluster(int clusterNumber, ByteBuffer target) throws IOException {
+        if(clusterNumber < 2 || clusterNumber >= clusterCount + 2) {
+            throw new IllegalArgumentException(String.format("cluster %d is not a data cluster", clusterNumber));
+        }
+        target.clear().limit(bytesPerCluster);
+        store.read(target, getClusterPosition(clusterNumber));
+        target.flip();
+    }
+
+    /**
+     * Reads a whole file, with one read for each run of adjacent clusters in its chain.
+     */
+    public byte[] readFile(DirectoryItemEntry entry) throws IOException {
+        var result = new byte[(int) entry.getFileSize()];
+        if(result.length == 0) {
+            return result;
+        }
+        var chain = getClusters(entry.getFirstCluster());
+        var target = ByteBuffer.wrap(result);
+        int runStart = 0;
+        while(runStart < chain.size() && target.hasRemaining()) {
+            int runEnd = runStart + 1;
+            while(runEnd < chain.size() && chain.get(runEnd) == chain.get(runEnd - 1) + 1) {
+                runEnd++;
+            }
+            int length = (int) Math.min((long) (runEnd - runStart) * bytesPerCluster, target.remaining());
+            store.read(target.slice(target.position(), length), getClusterPosition(chain.get(runStart)));
+            target.position(target.position() + length);
+            runStart = runEnd;
+        }
+        return result;
+    }
+
+    /**
+     * Each call returns a new root directory over the frozen root directory bytes, so threads do not share one.
+     */
+    @Override
+    public DirectoryBase getRootDirectory() {
+        return new RootDirectory(this, ByteBuffer.wrap(rootDirectory).asReadOnlyBuffer(), rootDirectoryEntries);
+    }
+
+    private long getClusterPosition(int clusterNumber) {
+        return dataOffset + (long) (clusterNumber - 2) * bytesPerCluster;
+    }
+
+    @Override
+    public void writeCluster(ByteBuffer buffer, int clusterNumber) {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeCluster(ByteBuffer buffer, int clusterNumber, int offset) {
+        throw readOnly();
+    }
+
+    @Override
+    public List<Integer> allocate(int clusterCount) {
+        throw readOnly();
+    }
+
+    @Override
+    public List<Integer> allocate(long fileSize) {
+        throw readOnly();
+    }
+
+    @Override
+    public void store(List<Integer> cluster) {
+        throw readOnly();
+    }
+
+    @Override
+    public void commit() {
+        throw readOnly();
+    }
+
+    @Override
+    public void free(List<Integer> cluster) {
+        throw readOnly();
+    }
+
+    @Override
+    public void beginBatch() {
+        throw readOnly();
+    }
+
+    @Override
+    public void endBatch() {
+        throw readOnly();
+    }
+
+    @Override
+    public void abortBatch() {
+        throw readOnly();
+    }
+
+    private static IllegalStateException readOnly() {
+        return new IllegalStateException("A snapshot is read only");
+    }
+}
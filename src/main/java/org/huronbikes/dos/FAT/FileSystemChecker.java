@@ -0,0 +1,225 @@
+package org.huronbikes.dos.FAT;
+
+import lombok.Builder;
+import org.huronbikes.dos.Directory.DirectoryBase;
+import org.huronbikes.dos.Directory.DirectoryItemEntry;
+import org.huronbikes.dos.Directory.DirectoryVisitor;
+import org.huronbikes.dos.Directory.DirectoryWalker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Checks a FAT16 volume for consistency between its directory tree and its FAT.  The tree is walked in parallel and
+ * every cluster a file or directory uses is claimed in a {@link ClusterOwnerIndex}, so a second claim on a cluster
+ * finds a cross-link and names the file that has it.  The FAT is then swept in parallel for clusters that are
+ * allocated but were never claimed.  Time and memory grow linearly with the size of the volume: about 4 bytes per
+ * cluster, plus the problems found.
+ * <p>
+ * Clusters of a file past the length its size calls for are not claimed, so they are also reported as lost.
+ */
+@Builder
+public class FileSystemChecker {
+    private static final int BAD_CLUSTER = 0xFFF7;
+    private static final int END_OF_CHAIN_MINIMUM = 0xFFF8;
+
+    private final FAT16 fat;
+
+    /**
+     * Free lost chains and cut chains short where they are broken or longer than their file, then commit the FAT
+     * once.  Cross-links and bad . or .. entries are only reported.
+     */
+    @Builder.Default
+    private final boolean repair = false;
+
+    @Builder.Default
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    public enum ProblemType {
+        /**
+         * A cluster is used by more than one chain, or a chain loops back on itself.
+         */
+        CROSS_LINKED,
+        /**
+         * A chain runs into a free, bad or out of range cluster before it ends.
+         */
+        BROKEN_CHAIN,
+        /**
+         * A file's chain is longer or shorter than its size calls for.
+         */
+        SIZE_MISMATCH,
+        BAD_CURRENT_DIRECTORY_ENTRY,
+        BAD_PARENT_DIRECTORY_ENTRY,
+        /**
+         * A chain of allocated clusters that no file or directory uses.
+         */
+        LOST_CHAIN
+    }
+
+    /**
+     * @param path the file or directory affected, null for lost chains
+     * @param cluster the cluster where the problem was found
+     */
+    public record Problem(ProblemType type, String path, int cluster, String detail) {
+    }
+
+    /**
+     * @param repaired true if repairs were written
+     */
+    public record Report(List<Problem> problems, int directoryCount, int fileCount, long clustersInUse, long lostClusters, boolean repaired) {
+        public boolean isClean() {
+            return problems.isEmpty();
+        }
+    }
+
+    /**
+     * A chain to cut short at repair time; its last cluster becomes the end of the chain.
+     */
+    private record Truncation(List<Integer> chain) {
+    }
+
+    public Report check() throws IOException {
+        int clusterCount = fat.getClusterCount();
+        int bytesPerCluster = fat.getBytesPerCluster();
+        var owners = new ClusterOwnerIndex(fat);
+        List<Problem> problems = Collections.synchronizedList(new ArrayList<>());
+        List<Truncation> truncations = Collections.synchronizedList(new ArrayList<>());
+        Set<Integer> brokenDirectories = ConcurrentHashMap.newKeySet();
+        Map<String, Integer> directoryClusters = new ConcurrentHashMap<>();
+        var directoryCount = new AtomicInteger();
+        var fileCount = new AtomicInteger();
+
+        var visitor = new DirectoryVisitor() {
+            @Override
+            public boolean preVisitDirectory(String path, DirectoryBase directory, int depth) throws IOException {
+                directoryClusters.put(path, directory.getFirstClusterNumber());
+                if(depth > 0) {
+                    int separator = path.lastIndexOf('/');
+                    int parentCluster = directoryClusters.getOrDefault(separator < 0 ? "" : path.substring(0, separator), 0);
+                    checkDotEntry(path, directory, DirectoryBase.CURRENT_DIRECTORY_NAME, directory.getFirstClusterNumber(), ProblemType.BAD_CURRENT_DIRECTORY_ENTRY, problems);
+                    checkDotEntry(path, directory, DirectoryBase.PARENT_DIRECTORY_NAME, parentCluster, ProblemType.BAD_PARENT_DIRECTORY_ENTRY, problems);
+                }
+                return true;
+            }
+
+            @Override
+            public void visitEntry(String path, DirectoryItemEntry entry, int depth) {
+                boolean directory = entry.getAttributes().isDirectory();
+                (directory ? directoryCount : fileCount).incrementAndGet();
+                long limit = directory ? Long.MAX_VALUE : (entry.getFileSize() + bytesPerCluster - 1) / bytesPerCluster;
+                if(entry.getFirstCluster() == 0) {
+                    if(directory) {
+                        problems.add(new Problem(ProblemType.BROKEN_CHAIN, path, 0, "directory without clusters"));
+                    } else if(limit > 0) {
+                        problems.add(new Problem(ProblemType.SIZE_MISMATCH, path, 0, String.format("%d bytes but no clusters", entry.getFileSize())));
+                    }
+                    return;
+                }
+                // a file that points at a cluster keeps at least that one, even with a size of 0; freeing it would
+                // leave the entry pointing at a free cluster
+                int id = owners.register(path, entry);
+                if(!claimChain(path, id, entry.getFirstCluster(), Math.max(limit, 1), owners, problems, truncations) && directory) {
+                    brokenDirectories.add(entry.getFirstCluster());
+                }
+            }
+        };
+
+        DirectoryWalker.builder()
+                .pool(pool)
+                .descendFilter(entry -> !brokenDirectories.contains(entry.getFirstCluster()))
+                .build()
+                .walk(fat.getRootDirectory(), visitor);
+
+        // sweep the FAT for allocated clusters that nothing claimed
+        var lost = IntStream.range(2, clusterCount + 2).parallel()
+                .filter(cluster -> !owners.isOwned(cluster) && !fat.isFree(cluster) && fat.getNextClusterNumber(cluster) != BAD_CLUSTER)
+                .boxed()
+                .toList();
+        if(!lost.isEmpty()) {
+            var lostSet = new BitSet(clusterCount + 2);
+            lost.forEach(lostSet::set);
+            var pointedTo = new BitSet(clusterCount + 2);
+            for(int cluster : lost) {
+                int next = fat.getNextClusterNumber(cluster);
+                if(next < clusterCount + 2 && lostSet.get(next)) {
+                    pointedTo.set(next);
+                }
+            }
+            for(int cluster : lost) {
+                if(!pointedTo.get(cluster)) {
+                    problems.add(new Problem(ProblemType.LOST_CHAIN, null, cluster, "allocated but not used by any file"));
+                }
+            }
+        }
+
+        long clustersInUse = IntStream.range(2, clusterCount + 2).parallel().filter(owners::isOwned).count();
+        boolean repaired = false;
+        if(repair && (!lost.isEmpty() || !truncations.isEmpty())) {
+            for(var truncation : truncations) {
+                fat.store(truncation.chain());
+            }
+            fat.free(lost);
+            fat.commit();
+            repaired = true;
+        }
+        return new Report(List.copyOf(problems), directoryCount.get(), fileCount.get(), clustersInUse, lost.size(), repaired);
+    }
+
+    /**
+     * Follows a chain, claiming up to limit of its clusters.
+     * @return false if the chain is broken or cross-linked
+     */
+    private boolean claimChain(String path, int id, int firstCluster, long limit, ClusterOwnerIndex owners, List<Problem> problems, List<Truncation> truncations) {
+        int clusterCount = fat.getClusterCount();
+        List<Integer> chain = new ArrayList<>();
+        int cluster = firstCluster;
+        while(true) {
+            if(cluster < 2 || cluster >= clusterCount + 2 || fat.isFree(cluster)) {
+                problems.add(new Problem(ProblemType.BROKEN_CHAIN, path, cluster, String.format("chain ends in %s cluster %d", cluster == BAD_CLUSTER ? "bad" : "unusable", cluster)));
+                if(!chain.isEmpty()) {
+                    truncations.add(new Truncation(chain));
+                }
+                return false;
+            }
+            if(chain.size() == limit) {
+                problems.add(new Problem(ProblemType.SIZE_MISMATCH, path, cluster, String.format("chain is longer than the %d clusters the size calls for", limit)));
+                truncations.add(new Truncation(chain));
+                return true;
+            }
+            int previous = owners.claim(id, cluster);
+            if(previous != ClusterOwnerIndex.NO_OWNER) {
+                var detail = previous == id ? "chain loops back to this cluster" : String.format("cluster is already used by %s", owners.getOwner(cluster).path());
+                problems.add(new Problem(ProblemType.CROSS_LINKED, path, cluster, detail));
+                return false;
+            }
+            chain.add(cluster);
+            int next = fat.getNextClusterNumber(cluster);
+            if(next >= END_OF_CHAIN_MINIMUM) {
+                break;
+            }
+            cluster = next;
+        }
+        if(limit != Long.MAX_VALUE && chain.size() < limit) {
+            problems.add(new Problem(ProblemType.SIZE_MISMATCH, path, chain.getLast(), String.format("chain is %d clusters but the size calls for %d", chain.size(), limit)));
+        }
+        return true;
+    }
+
+    private void checkDotEntry(String path, DirectoryBase directory, String name, int expectedCluster, ProblemType type, List<Problem> problems) throws IOException {
+        var entry = directory.getEntry(name);
+        if(entry == null) {
+            problems.add(new Problem(type, path, directory.getFirstClusterNumber(), String.format("%s entry is missing", name)));
+        } else if(entry.getFirstCluster() != expectedCluster) {
+            problems.add(new Problem(type, path, directory.getFirstClusterNumber(), String.format("%s entry points at cluster %d instead of %d", name, entry.getFirstCluster(), expectedCluster)));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.huronbikes.dos.FAT;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks the free clusters of a volume as a bitmap, one bit per cluster number, with a count of the free clusters.
+ * Allocation is next fit: each search starts where the previous allocation ended, which keeps consecutive
+ * allocations contiguous without rescanning the clusters that were just handed out.
+ * <p>
+ * The map takes no locks.  Bits live in an atomic array and are taken with compare and set, a whole word at a time,
+ * and an allocation first reserves its clusters from the free count, so threads allocating at once never hand out the
+ * same cluster and never wait for each other; two threads that race for a word simply move on to the next one.
+ */
+class FreeClusterMap {
+    private static final int FIRST_CLUSTER = 2;
+    private final AtomicLongArray free;
+    private final int endCluster;
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final AtomicInteger nextFit = new AtomicInteger(FIRST_CLUSTER);
+
+    /**
+     * @param clusterCount the number of data clusters, numbered from 2
+     */
+    FreeClusterMap(int clusterCount) {
+        this.endCluster = clusterCount + FIRST_CLUSTER;
+        this.free = new AtomicLongArray((endCluster + 63) / 64);
+    }
+
+    void markFree(int clusterNumber) {
+        checkCluster(clusterNumber);
+        long bit = 1L << (clusterNumber & 63);
+        long word = free.getAndUpdate(clusterNumber >>> 6, w -> w | bit);
+        if((word & bit) == 0) {
+            freeCount.incrementAndGet();
+        }
+    }
+
+    void markUsed(int clusterNumber) {
+        checkCluster(clusterNumber);
+        long bit = 1L << (clusterNumber & 63);
+        long word = free.getAndUpdate(clusterNumber >>> 6, w -> w & ~bit);
+        if((word & bit) != 0) {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    boolean isFree(int clusterNumber) {
+        return (free.get(clusterNumber >>> 6) & (1L << (clusterNumber & 63))) != 0;
+    }
+
+    int getFreeCount() {
+        return freeCount.get();
+    }
+
+    /**
+     * Takes clusters out of the free map.
+     * @return the cluster numbers, in the order they should be chained
+     */
+    List<Integer> allocate(int clusterCount) {
+        reserve(clusterCount);
+        List<Integer> result = new ArrayList<>(clusterCount);
+        int start = nextFit.get();
+        int index = start >>> 6;
+        long mask = -1L << (start & 63);
+        int wordsSearched = 0;
+        while(result.size() < clusterCount) {
+            // a cluster taken by markUsed is briefly still counted as free, so give up after two passes
+            if(wordsSearched > 2 * free.length()) {
+                result.forEach(this::markFree);
+                freeCount.addAndGet(clusterCount - result.size());
+                throw new IllegalStateException(String.format("could not find %d free clusters", clusterCount));
+            }
+            long word = free.get(index);
+            long available = word & mask;
+            long take = 0;
+            for(int needed = clusterCount - result.size(); needed > 0 && available != 0; needed--) {
+                long lowest = Long.lowestOneBit(available);
+                take |= lowest;
+                available &= ~lowest;
+            }
+            if(take != 0 && !free.compareAndSet(index, word, word & ~take)) {
+                // another thread changed the word; look at it again
+                continue;
+            }
+            for(long bits = take; bits != 0; bits &= bits - 1) {
+                result.add((index << 6) + Long.numberOfTrailingZeros(bits));
+            }
+            index = index + 1 < free.length() ? index + 1 : 0;
+            mask = -1L;
+            wordsSearched++;
+        }
+        if(!result.isEmpty()) {
+            int last = result.getLast();
+            nextFit.set(last + 1 < endCluster ? last + 1 : FIRST_CLUSTER);
+        }
+        return result;
+    }
+
+    /**
+     * Finds free clusters without taking them, searching down from the end of the volume so that the clusters found
+     * are out of the way of data being packed towards the start.
+     * @param avoidStart first cluster of a range that must not be used
+     * @param avoidEnd cluster after the range that must not be used
+     * @return the clusters in ascending order, or null if there are not enough free clusters outside the range
+     */
+    List<Integer> findFreeFromEnd(int clusterCount, int avoidStart, int avoidEnd) {
+        List<Integer> result = new ArrayList<>(clusterCount);
+        int cluster = endCluster - 1;
+        while(result.size() < clusterCount) {
+            cluster = previousFree(cluster);
+            if(cluster < FIRST_CLUSTER) {
+                return null;
+            }
+            if(cluster >= avoidStart && cluster < avoidEnd) {
+                cluster = avoidStart - 1;
+                continue;
+            }
+            result.add(cluster);
+            cluster--;
+        }
+        return result.reversed();
+    }
+
+    private void reserve(int clusterCount) {
+        while(true) {
+            int available = freeCount.get();
+            if(clusterCount > available) {
+                throw new IllegalArgumentException(String.format("requested %d clusters but only %d are free", clusterCount, available));
+            }
+            if(freeCount.compareAndSet(available, available - clusterCount)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the highest free cluster at or below the given one, or -1
+     */
+    private int previousFree(int clusterNumber) {
+        if(clusterNumber < 0) {
+            return -1;
+        }
+        int index = clusterNumber >>> 6;
+        long word = free.get(index) & (-1L >>> (63 - (clusterNumber & 63)));
+        while(word == 0) {
+            if(--index < 0) {
+                return -1;
+            }
+            word = free.get(index);
+        }
+        return (index << 6) + 63 - Long.numberOfLeadingZeros(word);
+    }
+
+    private void checkCluster(int clusterNumber) {
+        if(clusterNumber < FIRST_CLUSTER || clusterNumber >= endCluster) {
+            throw new IllegalArgumentException(String.format("cluster %d is not a data cluster", clusterNumber));
+        }
+    }
+}
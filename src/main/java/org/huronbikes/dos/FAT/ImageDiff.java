@@ -0,0 +1,388 @@
+package org.huronbikes.dos.FAT;
+
+import lombok.Builder;
+import org.huronbikes.dos.Directory.DirectoryItemEntry;
+import org.huronbikes.dos.Directory.DirectoryWalker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+/**
+ * Compares two FAT16 volumes cluster by cluster and reports the files that were added, removed or modified between
+ * them, with the byte ranges that differ.  The volumes must use the same cluster size, as an image and a copy of it
+ * do.
+ * <p>
+ * The FATs are compared in memory and the data regions are read side by side in large chunks, in parallel, and
+ * compared with {@link ByteBuffer#mismatch}, which compares many bytes at a time; clusters free in both volumes are
+ * not read at all.  Changed clusters are mapped back to files through a {@link ClusterOwnerIndex} of each volume,
+ * filled by one parallel walk of each tree, and only the files that own a changed cluster, or whose chain or size changed,
+ * are looked at again.  Comparing two images costs about one sequential read of each.
+ * <pre>
+ * var report = ImageDiff.builder().before(original).after(copy).build().compare();
+ * </pre>
+ */
+@Builder
+public class ImageDiff {
+    private static final int DEFAULT_CHUNK_BYTES = 4 * 1024 * 1024;
+    private static final int BYTES_PER_ENTRY = 2;
+
+    private final FAT16 before;
+
+    private final FAT16 after;
+
+    /**
+     * How much of each data region is read and compared at a time.  Rounded down to whole clusters.
+     */
+    @Builder.Default
+    private final int chunkBytes = DEFAULT_CHUNK_BYTES;
+
+    @Builder.Default
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    public enum ChangeType {
+        ADDED,
+        REMOVED,
+        /**
+         * A file present in both volumes whose content differs.  Directories are never reported as modified; their
+         * changes show up as the entries added to or removed from them.
+         */
+        MODIFIED
+    }
+
+    /**
+     * Bytes of a file from start up to, but not including, end.
+     */
+    public record ByteRange(long start, long end) {
+        public long length() {
+            return end - start;
+        }
+    }
+
+    /**
+     * @param sizeBefore the size in the first volume, 0 for added entries and directories
+     * @param sizeAfter the size in the second volume, 0 for removed entries and directories
+     * @param ranges for modified files, the ranges whose bytes differ, including any bytes one side has and the
+     *               other does not; for added and removed files, the whole file
+     */
+    public record Change(ChangeType type, String path, boolean directory, long sizeBefore, long sizeAfter, List<ByteRange> ranges) {
+    }
+
+    /**
+     * @param changes sorted by path
+     * @param changedClusters clusters whose content or FAT entry differs between the volumes
+     * @param bytesRead bytes read from both volumes to find the changed clusters
+     */
+    public record Report(List<Change> changes, int changedClusters, long bytesRead, long elapsedNanos) {
+        public boolean isIdentical() {
+            return changes.isEmpty();
+        }
+    }
+
+    /**
+     * A file or directory of one volume and the clusters its size calls for, in file order.
+     */
+    private record Item(String path, DirectoryItemEntry entry, int[] chain) {
+        boolean isDirectory() {
+            return entry.getAttributes().isDirectory();
+        }
+    }
+
+    /**
+     * The entries of one volume, sorted by path, and the owner of each cluster they use.
+     */
+    private record Tree(List<Item> items, ClusterOwnerIndex owners) {
+    }
+
+    public Report compare() throws IOException {
+        if(before.getBytesPerCluster() != after.getBytesPerCluster()) {
+            throw new IllegalArgumentException(String.format("cluster sizes differ: %d and %d bytes", before.getBytesPerCluster(), after.getBytesPerCluster()));
+        }
+        long began = System.nanoTime();
+        var bytesRead = new AtomicLong();
+        var changed = findChangedClusters(bytesRead);
+
+        var beforeTree = index(before);
+        var afterTree = index(after);
+        var beforeItems = beforeTree.items();
+        var afterItems = afterTree.items();
+
+        // the files owning a changed cluster on either side are the only ones whose content can differ in place
+        Set<String> candidates = new HashSet<>();
+        addOwners(candidates, before, beforeTree.owners(), changed);
+        addOwners(candidates, after, afterTree.owners(), changed);
+
+        Map<String, Item> beforeByPath = new HashMap<>();
+        beforeItems.forEach(item -> beforeByPath.put(item.path(), item));
+        Set<String> afterPaths = new HashSet<>();
+        afterItems.forEach(item -> afterPaths.add(item.path()));
+        List<Change> changes = new ArrayList<>();
+        for(var item : beforeItems) {
+            if(!afterPaths.contains(item.path())) {
+                changes.add(whole(ChangeType.REMOVED, item, true));
+            }
+        }
+        for(var item : afterItems) {
+            var old = beforeByPath.get(item.path());
+            if(old == null || old.isDirectory() != item.isDirectory()) {
+                if(old != null) {
+                    changes.add(whole(ChangeType.REMOVED, old, true));
+                }
+                changes.add(whole(ChangeType.ADDED, item, false));
+            } else if(!item.isDirectory()
+                    && (candidates.contains(item.path())
+                        || old.entry().getFileSize() != item.entry().getFileSize()
+                        || !Arrays.equals(old.chain(), item.chain()))) {
+                var ranges = compareFile(old, item, changed);
+                if(!ranges.isEmpty()) {
+                    changes.add(new Change(ChangeType.MODIFIED, item.path(), false, old.entry().getFileSize(), item.entry().getFileSize(), ranges));
+                }
+            }
+        }
+        changes.sort(Comparator.comparing(Change::path).thenComparing(Change::type));
+        return new Report(List.copyOf(changes), changed.cardinality(), bytesRead.get(), System.nanoTime() - began);
+    }
+
+    /**
+     * Compares the FATs and the data regions of the two volumes.  Clusters only one volume has count as changed if
+     * that volume uses them.
+     */
+    private BitSet findChangedClusters(AtomicLong bytesRead) throws IOException {
+        int bytesPerCluster = before.getBytesPerCluster();
+        int common = Math.min(before.getClusterCount(), after.getClusterCount());
+        int end = Math.max(before.getClusterCount(), after.getClusterCount()) + 2;
+        var changed = new AtomicLongArray((end + 63) / 64);
+
+        var beforeFat = before.getEntries();
+        var afterFat = after.getEntries();
+        int fatBytes = (common + 2) * BYTES_PER_ENTRY;
+        int offset = 2 * BYTES_PER_ENTRY;
+        while(offset < fatBytes) {
+            int mismatch = beforeFat.slice(offset, fatBytes - offset).mismatch(afterFat.slice(offset, fatBytes - offset));
+            if(mismatch < 0) {
+                break;
+            }
+            int cluster = (offset + mismatch) / BYTES_PER_ENTRY;
+            set(changed, cluster);
+            offset = (cluster + 1) * BYTES_PER_ENTRY;
+        }
+        var larger = before.getClusterCount() > common ? before : after;
+        for(int cluster = common + 2; cluster < end; cluster++) {
+            if(!larger.isFree(cluster)) {
+                set(changed, cluster);
+            }
+        }
+
+        int chunkClusters = Math.max(1, chunkBytes / bytesPerCluster);
+        int chunks = (common + chunkClusters - 1) / chunkClusters;
+        // buffer pairs are handed from one chunk to the next and dropped with the queue once this call returns, so at
+        // most one pair per worker is allocated and none outlives the comparison
+        Queue<ByteBuffer[]> buffers = new ConcurrentLinkedQueue<>();
+        try {
+            pool.submit(() -> IntStream.range(0, chunks).parallel().forEach(chunk -> {
+                int first = 2 + chunk * chunkClusters;
+                int count = Math.min(chunkClusters, common + 2 - first);
+                // read only the span between the first and last cluster either volume uses
+                while(count > 0 && isFreeInBoth(first)) {
+                    first++;
+                    count--;
+                }
+                while(count > 0 && isFreeInBoth(first + count - 1)) {
+                    count--;
+                }
+                if(count == 0) {
+                    return;
+                }
+                var pair = buffers.poll();
+                if(pair == null) {
+                    pair = new ByteBuffer[] {
+                            ByteBuffer.allocateDirect(chunkClusters * bytesPerCluster),
+                            ByteBuffer.allocateDirect(chunkClusters * bytesPerCluster)
+                    };
+                }
+                try {
+                    before.readClusters(first, count, pair[0]);
+                    after.readClusters(first, count, pair[1]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                bytesRead.addAndGet(2L * count * bytesPerCluster);
+                int length = count * bytesPerCluster;
+                int position = 0;
+                while(position < length) {
+                    int mismatch = pair[0].slice(position, length - position).mismatch(pair[1].slice(position, length - position));
+                    if(mismatch < 0) {
+                        break;
+                    }
+                    int index = (position + mismatch) / bytesPerCluster;
+                    if(!isFreeInBoth(first + index)) {
+                        set(changed, first + index);
+                    }
+                    position = (index + 1) * bytesPerCluster;
+                }
+                buffers.offer(pair);
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while comparing clusters", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw new IllegalStateException("comparing clusters failed", e.getCause());
+        }
+
+        var result = new BitSet(end);
+        for(int i = 0; i < changed.length(); i++) {
+            long word = changed.get(i);
+            for(; word != 0; word &= word - 1) {
+                result.set((i << 6) + Long.numberOfTrailingZeros(word));
+            }
+        }
+        return result;
+    }
+
+    private boolean isFreeInBoth(int cluster) {
+        return before.isFree(cluster) && after.isFree(cluster);
+    }
+
+    private static void set(AtomicLongArray bits, int cluster) {
+        long bit = 1L << (cluster & 63);
+        bits.getAndUpdate(cluster >>> 6, word -> word | bit);
+    }
+
+    /**
+     * Walks a volume's tree, collecting every entry with the clusters it uses and claiming those clusters for it.
+     */
+    private Tree index(FAT16 fat) throws IOException {
+        var collected = new ConcurrentHashMap<String, Item>();
+        var owners = new ClusterOwnerIndex(fat);
+        DirectoryWalker.builder()
+                .pool(pool)
+                .build()
+                .walk(fat.getRootDirectory(), (path, entry, depth) -> {
+                    var item = new Item(path, entry, chain(fat, entry));
+                    collected.put(path, item);
+                    if(entry.getFirstCluster() >= 2) {
+                        int id = owners.register(path, entry);
+                        // a cross-linked cluster stays with the owner that claimed it first
+                        for(int cluster : item.chain()) {
+                            owners.claim(id, cluster);
+                        }
+                    }
+                });
+        List<Item> items = new ArrayList<>(collected.values());
+        items.sort(Comparator.comparing(Item::path));
+        return new Tree(items, owners);
+    }
+
+    /**
+     * Follows an entry's chain for as many clusters as its size calls for, stopping early where it is broken.
+     */
+    private static int[] chain(FAT16 fat, DirectoryItemEntry entry) {
+        int bytesPerCluster = fat.getBytesPerCluster();
+        long limit = entry.getAttributes().isDirectory()
+                ? fat.getClusterCount()
+                : (entry.getFileSize() + bytesPerCluster - 1) / bytesPerCluster;
+        List<Integer> clusters = new ArrayList<>();
+        int cluster = entry.getFirstCluster();
+        while(clusters.size() < limit && cluster >= 2 && cluster < fat.getClusterCount() + 2 && !fat.isFree(cluster)) {
+            clusters.add(cluster);
+            cluster = fat.getNextClusterNumber(cluster);
+        }
+        return clusters.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Adds the paths of the entries using any of the clusters, putting each path together once.
+     */
+    private static void addOwners(Set<String> candidates, FAT16 fat, ClusterOwnerIndex owners, BitSet clusters) {
+        int end = fat.getClusterCount() + 2;
+        Set<Integer> seen = new HashSet<>();
+        for(int cluster = clusters.nextSetBit(2); cluster >= 0 && cluster < end; cluster = clusters.nextSetBit(cluster + 1)) {
+            int id = owners.getOwnerId(cluster);
+            if(id != ClusterOwnerIndex.NO_OWNER && seen.add(id)) {
+                candidates.add(owners.getOwner(cluster).path());
+            }
+        }
+    }
+
+    private static Change whole(ChangeType type, Item item, boolean removed) {
+        long size = item.isDirectory() ? 0 : item.entry().getFileSize();
+        var ranges = size == 0 ? List.<ByteRange>of() : List.of(new ByteRange(0, size));
+        return new Change(type, item.path(), item.isDirectory(), removed ? size : 0, removed ? 0 : size, ranges);
+    }
+
+    /**
+     * Compares a file cluster by cluster in file order.  Clusters the file keeps in place are only read if their
+     * content changed; clusters that moved are always read.
+     */
+    private List<ByteRange> compareFile(Item old, Item current, BitSet changed) throws IOException {
+        int bytesPerCluster = before.getBytesPerCluster();
+        long oldSize = old.entry().getFileSize();
+        long newSize = current.entry().getFileSize();
+        long common = Math.min(oldSize, newSize);
+        int clusters = (int) ((common + bytesPerCluster - 1) / bytesPerCluster);
+        var oldData = ByteBuffer.allocate(bytesPerCluster);
+        var newData = ByteBuffer.allocate(bytesPerCluster);
+        List<ByteRange> ranges = new ArrayList<>();
+        for(int i = 0; i < clusters; i++) {
+            long start = (long) i * bytesPerCluster;
+            int length = (int) Math.min(bytesPerCluster, common - start);
+            if(i >= old.chain().length || i >= current.chain().length) {
+                // one chain is broken; everything past it counts as changed
+                addRange(ranges, start, common);
+                break;
+            }
+            int oldCluster = old.chain()[i];
+            int newCluster = current.chain()[i];
+            if(oldCluster == newCluster && !changed.get(oldCluster)) {
+                continue;
+            }
+            before.readCluster(oldCluster, oldData);
+            after.readCluster(newCluster, newData);
+            int first = oldData.slice(0, length).mismatch(newData.slice(0, length));
+            if(first < 0) {
+                continue;
+            }
+            int last = length - 1;
+            while(oldData.get(last) == newData.get(last)) {
+                last--;
+            }
+            addRange(ranges, start + first, start + last + 1);
+        }
+        if(oldSize != newSize) {
+            addRange(ranges, common, Math.max(oldSize, newSize));
+        }
+        return List.copyOf(ranges);
+    }
+
+    /**
+     * Adds a range, joining it to the previous one when they touch.
+     */
+    private static void addRange(List<ByteRange> ranges, long start, long end) {
+        if(!ranges.isEmpty() && ranges.getLast().end() >= start) {
+            var previous = ranges.removeLast();
+            ranges.add(new ByteRange(previous.start(), Math.max(previous.end(), end)));
+        } else {
+            ranges.add(new ByteRange(start, end));
+        }
+    }
+}
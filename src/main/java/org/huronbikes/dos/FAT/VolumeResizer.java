@@ -0,0 +1,266 @@
+package org.huronbikes.dos.FAT;
+
+import lombok.Builder;
+import org.huronbikes.dos.CHS;
+import org.huronbikes.dos.DiskImage;
+import org.huronbikes.dos.MasterBootRecord;
+import org.huronbikes.dos.PartitionTableEntry;
+import org.huronbikes.dos.PartitionType;
+import org.huronbikes.dos.Sector;
+import org.huronbikes.dos.VolumeBootRecord;
+import org.huronbikes.dos.VolumeContext;
+import org.huronbikes.dos.Image.ImageStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Grows or shrinks a FAT16 primary partition in place, keeping its cluster size.
+ * <p>
+ * Shrinking moves only the clusters past the new end of the volume, to free clusters below it; the rest of every
+ * chain stays where it is.  Growing keeps the FAT as it is when it has room for the new clusters, so nothing but the
+ * metadata is written.  Otherwise the FAT grows and the root directory and the used part of the data region are
+ * shifted up behind it with large sequential copies.  Cluster numbers never change, so a shift needs no other fix-ups.
+ * <p>
+ * The volume must not be open while it is resized.  Shrinking is safe to interrupt while clusters are being moved;
+ * the layout change itself is a handful of writes at the end.
+ */
+@Builder
+public class VolumeResizer {
+    private static final int MIN_CLUSTERS = 4085;
+    private static final int MAX_CLUSTERS = 65524;
+    private static final int BYTES_PER_ENTRY = 2;
+    private static final int BAD_CLUSTER = 0xFFF7;
+
+    private final ImageStore store;
+    private final DiskImage.Partition partition;
+    private final long newSectorCount;
+
+    /**
+     * The most clusters copied with one read and one write.
+     */
+    @Builder.Default
+    private final int bufferClusters = 256;
+
+    /**
+     * @param clustersMoved clusters relocated below the new end of a shrunk volume
+     * @param bytesShifted bytes of root directory and data moved to make room for a larger FAT
+     * @param elapsedNanos time spent moving data
+     */
+    public record Report(long oldSectorCount, long newSectorCount, int oldClusterCount, int newClusterCount,
+                         int oldSectorsPerFat, int newSectorsPerFat, int itemsMoved, long clustersMoved,
+                         long bytesMoved, long bytesShifted, long elapsedNanos) {
+        /**
+         * Throughput of the data movement, the relocation benchmark for this resize.
+         */
+        public double getMegabytesPerSecond() {
+            long bytes = bytesMoved + bytesShifted;
+            return elapsedNanos == 0 ? 0 : bytes / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+        }
+    }
+
+    public Report run() throws IOException {
+        if(partition.logical()) {
+            throw new IllegalArgumentException("only primary partitions can be resized");
+        }
+        var vbrBuffer = ByteBuffer.allocate(Sector.BYTES_PER_SECTOR);
+        store.read(vbrBuffer, partition.getOffset());
+        var volumeBootRecord = new VolumeBootRecord(vbrBuffer);
+        if(volumeBootRecord.getBytesPerSector() != Sector.BYTES_PER_SECTOR) {
+            throw new IllegalArgumentException(String.format("volumes with %d byte sectors can not be resized", volumeBootRecord.getBytesPerSector()));
+        }
+
+        long oldSectorCount = volumeBootRecord.getTotalSectorCount();
+        int oldClusterCount = volumeBootRecord.getClusterCount();
+        int oldSectorsPerFat = volumeBootRecord.getSectorsPerFat();
+        int newSectorsPerFat = oldSectorsPerFat;
+        long newClusterCount = clustersFor(volumeBootRecord, newSectorsPerFat);
+        if(newClusterCount + 2 > (long) newSectorsPerFat * Sector.BYTES_PER_SECTOR / BYTES_PER_ENTRY) {
+            newSectorsPerFat = requiredSectorsPerFat(volumeBootRecord);
+            newClusterCount = clustersFor(volumeBootRecord, newSectorsPerFat);
+        }
+        if(newClusterCount < MIN_CLUSTERS || newClusterCount > MAX_CLUSTERS) {
+            throw new IllegalArgumentException(String.format("%d sectors would give %d clusters; FAT16 with %d sectors per cluster needs between %d and %d",
+                    newSectorCount, newClusterCount, volumeBootRecord.getSectorsPerCluster(), MIN_CLUSTERS, MAX_CLUSTERS));
+        }
+        long newEnd = partition.firstSector() + newSectorCount;
+        long limit = nextPartitionStart();
+        if(newEnd > limit) {
+            throw new IllegalArgumentException(String.format("the partition would run into the partition at sector %d", limit));
+        }
+
+        var fat = (FAT16) VolumeContext.getFAT(volumeBootRecord, store, partition.getOffset());
+        long started = System.nanoTime();
+        long oldEnd = (partition.firstSector() + oldSectorCount) * Sector.BYTES_PER_SECTOR;
+        if(newEnd * Sector.BYTES_PER_SECTOR > store.size()) {
+            store.setSize(newEnd * Sector.BYTES_PER_SECTOR);
+        }
+
+        int itemsMoved = 0;
+        long clustersMoved = 0;
+        int boundary = (int) newClusterCount + 2;
+        if(newClusterCount < oldClusterCount) {
+            var relocator = new ClusterRelocator(fat, bufferClusters);
+            checkSpaceBelow(fat, relocator, boundary);
+            for(var item : relocator.getItems()) {
+                int moved = relocator.moveBelow(item, boundary);
+                itemsMoved += moved > 0 ? 1 : 0;
+                clustersMoved += moved;
+            }
+        }
+
+        var oldFat = ByteBuffer.allocate(oldSectorsPerFat * Sector.BYTES_PER_SECTOR);
+        store.read(oldFat, fat.getFatOffset());
+        long bytesShifted = 0;
+        if(newSectorsPerFat != oldSectorsPerFat) {
+            bytesShifted = shiftDataRegion(fat, volumeBootRecord, newSectorsPerFat - oldSectorsPerFat);
+        }
+        long elapsed = System.nanoTime() - started;
+
+        writeFats(fat, oldFat, newSectorsPerFat, boundary, volumeBootRecord.getNumberOfFatCopies());
+        volumeBootRecord.setSectorsPerFat(newSectorsPerFat);
+        if(newSectorCount < 0x10000) {
+            volumeBootRecord.setSectorCount((int) newSectorCount);
+            volumeBootRecord.setDwordSectorCount(0);
+        } else {
+            volumeBootRecord.setSectorCount(0);
+            volumeBootRecord.setDwordSectorCount(newSectorCount);
+        }
+        store.write(vbrBuffer.clear(), partition.getOffset());
+        updatePartitionTable(volumeBootRecord);
+        if(store.size() == oldEnd && newEnd * Sector.BYTES_PER_SECTOR < oldEnd) {
+            // the partition ended the image, so the image shrinks with it
+            store.setSize(newEnd * Sector.BYTES_PER_SECTOR);
+        }
+
+        return new Report(oldSectorCount, newSectorCount, oldClusterCount, (int) newClusterCount, oldSectorsPerFat,
+                newSectorsPerFat, itemsMoved, clustersMoved, clustersMoved * fat.getBytesPerCluster(), bytesShifted, elapsed);
+    }
+
+    private long clustersFor(VolumeBootRecord volumeBootRecord, int sectorsPerFat) {
+        long dataSectors = newSectorCount - volumeBootRecord.getReservedSectors()
+                - (long) volumeBootRecord.getNumberOfFatCopies() * sectorsPerFat
+                - volumeBootRecord.getRootDirectorySectorCount();
+        return dataSectors / volumeBootRecord.getSectorsPerCluster();
+    }
+
+    /**
+     * FATSz from Microsoft's FAT specification: slightly generous, never too small.
+     */
+    private int requiredSectorsPerFat(VolumeBootRecord volumeBootRecord) {
+        long available = newSectorCount - (volumeBootRecord.getReservedSectors() + volumeBootRecord.getRootDirectorySectorCount());
+        long divisor = ((long) Sector.BYTES_PER_SECTOR / BYTES_PER_ENTRY * volumeBootRecord.getSectorsPerCluster()) + volumeBootRecord.getNumberOfFatCopies();
+        return (int) ((available + divisor - 1) / divisor);
+    }
+
+    private long nextPartitionStart() throws IOException {
+        var masterBootRecord = readMasterBootRecord();
+        long limit = Long.MAX_VALUE;
+        for(int i = 0; i < 4; i++) {
+            var entry = masterBootRecord.getPartitionTableEntry(i);
+            if(i != partition.number() && entry.getPartitionType() != PartitionType.EMPTY && entry.getLbaStart() > partition.firstSector()) {
+                limit = Math.min(limit, entry.getLbaStart());
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * @throws IllegalStateException if the clusters in use past the boundary do not fit below it, or if some of them
+     *                               belong to no file
+     */
+    private void checkSpaceBelow(FAT16 fat, ClusterRelocator relocator, int boundary) {
+        int inUseAbove = 0;
+        int freeBelow = 0;
+        for(int cluster = 2; cluster < fat.getClusterCount() + 2; cluster++) {
+            boolean free = fat.isFree(cluster);
+            if(cluster >= boundary && !free && fat.getNextClusterNumber(cluster) != BAD_CLUSTER) {
+                inUseAbove++;
+            } else if(cluster < boundary && free) {
+                freeBelow++;
+            }
+        }
+        if(inUseAbove > freeBelow) {
+            throw new IllegalStateException(String.format("%d clusters past the new end are in use but only %d are free below it", inUseAbove, freeBelow));
+        }
+        for(int cluster = boundary; cluster < fat.getClusterCount() + 2; cluster++) {
+            if(relocator.isUnowned(cluster) && fat.getNextClusterNumber(cluster) != BAD_CLUSTER) {
+                throw new IllegalStateException(String.format("cluster %d is allocated but belongs to no file; check and repair the volume first", cluster));
+            }
+        }
+    }
+
+    /**
+     * Moves the root directory and every cluster up to the last one in use forward by the growth of the FATs,
+     * copying from the end backwards so that the overlapping ranges are never overwritten before they are read.
+     * @return the number of bytes moved
+     */
+    private long shiftDataRegion(FAT16 fat, VolumeBootRecord volumeBootRecord, int fatGrowth) throws IOException {
+        long shift = (long) fatGrowth * volumeBootRecord.getNumberOfFatCopies() * Sector.BYTES_PER_SECTOR;
+        int lastUsed = 1;
+        for(int cluster = fat.getClusterCount() + 1; cluster >= 2; cluster--) {
+            if(!fat.isFree(cluster)) {
+                lastUsed = cluster;
+                break;
+            }
+        }
+        long start = fat.getFatOffset() + (long) fat.getBytesPerFat() * fat.getFatCopies();
+        long end = start + volumeBootRecord.getRootDirectorySectorCount() * Sector.BYTES_PER_SECTOR
+                + (long) (lastUsed - 1) * fat.getBytesPerCluster();
+        var buffer = ByteBuffer.allocate(bufferClusters * fat.getBytesPerCluster());
+        long position = end;
+        while(position > start) {
+            int length = (int) Math.min(buffer.capacity(), position - start);
+            position -= length;
+            buffer.clear().limit(length);
+            store.read(buffer, position);
+            store.write(buffer.flip(), position + shift);
+        }
+        return end - start;
+    }
+
+    /**
+     * Writes every copy of the new FAT with one write.  Entries past the new end of the volume are dropped, and a
+     * larger FAT is padded with free entries.
+     */
+    private void writeFats(FAT16 fat, ByteBuffer oldFat, int sectorsPerFat, int boundary, int copies) throws IOException {
+        int bytesPerFat = sectorsPerFat * Sector.BYTES_PER_SECTOR;
+        int keep = Math.min(oldFat.capacity(), boundary * BYTES_PER_ENTRY);
+        var fats = ByteBuffer.allocate(bytesPerFat * copies);
+        for(int i = 0; i < copies; i++) {
+            fats.put(i * bytesPerFat, oldFat, 0, keep);
+        }
+        store.write(fats, fat.getFatOffset());
+    }
+
+    private void updatePartitionTable(VolumeBootRecord volumeBootRecord) throws IOException {
+        var masterBootRecord = readMasterBootRecord();
+        var entry = partition.entry();
+        long lastSector = partition.firstSector() + newSectorCount - 1;
+        int heads = volumeBootRecord.getNumberOfHeads();
+        int sectorsPerTrack = volumeBootRecord.getSectorsPerTrack();
+        var type = entry.getPartitionType();
+        // only the plain FAT16 types depend on the size; hidden and LBA types are kept
+        if(type == PartitionType.FAT16_SMALL || type == PartitionType.FAT16_BIG) {
+            if(lastSector / ((long) heads * sectorsPerTrack) > CHS.MAX_CYLINDER) {
+                type = PartitionType.WIN95_FAT16_LBA;
+            } else {
+                type = newSectorCount < 0x10000 ? PartitionType.FAT16_SMALL : PartitionType.FAT16_BIG;
+            }
+        }
+        masterBootRecord.setPartitionTableEntry(partition.number(), new PartitionTableEntry(
+                entry.isActive(),
+                entry.getStart(),
+                CHS.fromLba(lastSector, heads, sectorsPerTrack),
+                type,
+                entry.getLbaStart(),
+                newSectorCount));
+        store.write(masterBootRecord.toBytes(), 0);
+    }
+
+    private MasterBootRecord readMasterBootRecord() throws IOException {
+        var buffer = ByteBuffer.allocate(Sector.BYTES_PER_SECTOR);
+        store.read(buffer, 0);
+        return new MasterBootRecord(buffer.array());
+    }
+}
@@ -0,0 +1,572 @@
+package org.huronbikes.dos.Image;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An image kept in a compressed container file.  The image is cut into fixed-size blocks, each compressed on its own
+ * with {@link Deflater}, so any block can be read without the ones before it; an in-memory index holds the offset of
+ * every block for lookups in constant time, and recently read blocks are kept decompressed in a small LRU cache.
+ * Blocks of zeros take no space beyond a record header, so mostly empty images shrink by orders of magnitude.
+ * <p>
+ * The container is an append-only log: a short header, then records of a block number, a length, a checksum and the
+ * data.  A write compresses each block it touches again and appends it; the old copy stays behind as garbage until
+ * {@link #compact(File)} writes a fresh container.  {@link #force()} and {@link #close()} append the index and point
+ * the header at it.  Opening a container reads that index and replays the records written after it, so only writes
+ * that were never forced can be lost in a crash, and a record cut short is ignored.
+ */
+public class CompressedImageStore implements ImageStore {
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final int DEFAULT_CACHE_BLOCKS = 64;
+    private static final byte[] MAGIC = "FATCMPRS".getBytes(StandardCharsets.US_ASCII);
+    private static final int BLOCK_SIZE_OFFSET = 8;
+    private static final int INDEX_OFFSET_OFFSET = 16;
+    private static final int HEADER_LENGTH = 32;
+    // block number, payload length, checksum
+    private static final int RECORD_HEADER_LENGTH = 16;
+    private static final long INDEX_RECORD = -1;
+    private static final long SIZE_RECORD = -2;
+    private static final long ZERO_BLOCK = 0;
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    @Getter
+    private final File containerFile;
+    private final FileChannel channel;
+    private final boolean readOnly;
+    @Getter
+    private final int blockSize;
+    private final byte[] zeros;
+    private final Deflater deflater = new Deflater();
+    private final byte[] compressed;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Integer, byte[]> cache;
+    // block number to the offset of its newest record, ZERO_BLOCK for blocks that read as zeros
+    private long[] index = new long[0];
+    private long size;
+    private long end;
+    private boolean indexWritten = true;
+
+    public CompressedImageStore(File containerFile) throws IOException {
+        this(containerFile, false, DEFAULT_CACHE_BLOCKS);
+    }
+
+    /**
+     * Opens an existing container.
+     * @param cacheBlocks the most decompressed blocks kept in memory
+     */
+    public CompressedImageStore(File containerFile, boolean readOnly, int cacheBlocks) throws IOException {
+        this.containerFile = containerFile;
+        this.readOnly = readOnly;
+        this.channel = readOnly
+                ? FileChannel.open(containerFile.toPath(), StandardOpenOption.READ)
+                : FileChannel.open(containerFile.toPath(), Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE));
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > cacheBlocks;
+            }
+        };
+        try {
+            var header = ByteBuffer.allocate(HEADER_LENGTH);
+            readFully(header, 0);
+            if(!Arrays.equals(header.array(), 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+                throw new IllegalArgumentException(String.format("%s is not a compressed image", containerFile));
+            }
+            this.blockSize = header.getInt(BLOCK_SIZE_OFFSET);
+            if(blockSize < 512 || Integer.bitCount(blockSize) != 1) {
+                throw new IllegalArgumentException(String.format("%s has a bad block size of %d", containerFile, blockSize));
+            }
+            this.zeros = new byte[blockSize];
+            this.compressed = new byte[blockSize];
+            load(header.getLong(INDEX_OFFSET_OFFSET));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            deflater.end();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an empty container for an image of the given size, which reads as zeros.
+     * @param blockSize the unit of compression and of random access, a power of two of at least 512 bytes
+     */
+    public static CompressedImageStore create(File containerFile, long size, int blockSize) throws IOException {
+        if(blockSize < 512 || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("block size must be a power of two of at least 512 bytes");
+        }
+        try(var file = new RandomAccessFile(containerFile, "rw")) {
+            file.setLength(0);
+            var header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(0, MAGIC);
+            header.putInt(BLOCK_SIZE_OFFSET, blockSize);
+            file.write(header.array());
+        }
+        var store = new CompressedImageStore(containerFile, false, DEFAULT_CACHE_BLOCKS);
+        try {
+            store.setSize(size);
+            store.force();
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * Compresses an image into a new container.
+     */
+    public static CompressedImageStore compress(ImageStore source, File containerFile, int blockSize) throws IOException {
+        var store = create(containerFile, source.size(), blockSize);
+        try {
+            store.copyFrom(source);
+            store.force();
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * @return true if the file starts like a compressed container
+     */
+    public static boolean isContainer(File file) throws IOException {
+        if(file.length() < HEADER_LENGTH) {
+            return false;
+        }
+        try(var input = new RandomAccessFile(file, "r")) {
+            var magic = new byte[MAGIC.length];
+            input.readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer target, long position) throws IOException {
+        lock.readLock().lock();
+        try {
+            long readEnd = Math.min(position + target.remaining(), size);
+            int total = 0;
+            while(position < readEnd) {
+                int block = (int) (position / blockSize);
+                int offsetInBlock = (int) (position % blockSize);
+                int length = (int) Math.min(blockSize - offsetInBlock, readEnd - position);
+                var data = getBlock(block);
+                target.put(data == null ? zeros : data, offsetInBlock, length);
+                position += length;
+                total += length;
+            }
+            return total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer source, long position) throws IOException {
+        checkWritable();
+        lock.writeLock().lock();
+        try {
+            long writeEnd = position + source.remaining();
+            if(writeEnd > size) {
+                resize(writeEnd);
+            }
+            while(source.hasRemaining()) {
+                int block = (int) (position / blockSize);
+                int offsetInBlock = (int) (position % blockSize);
+                int length = Math.min(blockSize - offsetInBlock, source.remaining());
+                var current = getBlock(block);
+                var updated = current == null ? new byte[blockSize] : current.clone();
+                source.get(updated, offsetInBlock, length);
+                putBlock(block, updated);
+                position += length;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Joins the buffers so that a block they share is compressed and appended once.
+     */
+    @Override
+    public void write(ByteBuffer[] sources, long position) throws IOException {
+        int total = 0;
+        for(var source : sources) {
+            total += source.remaining();
+        }
+        var joined = ByteBuffer.allocate(total);
+        for(var source : sources) {
+            joined.put(source);
+        }
+        write(joined.flip(), position);
+    }
+
+    @Override
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Changes the size of the image.  Blocks past a smaller size are dropped, so growing the image again shows zeros.
+     */
+    @Override
+    public void setSize(long newSize) throws IOException {
+        checkWritable();
+        lock.writeLock().lock();
+        try {
+            resize(newSize);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Appends the index, points the header at it and forces the container to disk.
+     */
+    @Override
+    public void force() throws IOException {
+        if(readOnly) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if(indexWritten) {
+                return;
+            }
+            var payload = ByteBuffer.allocate(Long.BYTES * (1 + index.length));
+            payload.putLong(size);
+            payload.asLongBuffer().put(index);
+            long indexOffset = append(INDEX_RECORD, payload.clear());
+            channel.force(false);
+            writeFully(ByteBuffer.allocate(Long.BYTES).putLong(0, indexOffset), INDEX_OFFSET_OFFSET);
+            channel.force(false);
+            indexWritten = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the bytes the container takes on disk, including blocks that were overwritten since it was compacted
+     */
+    public long getContainerSize() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Writes the live blocks to a new container, leaving out every overwritten block and old index.
+     */
+    public void compact(File target) throws IOException {
+        lock.readLock().lock();
+        try {
+            compress(this, target, blockSize).close();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the image out as a plain file.  Blocks of zeros are skipped, so the copy is sparse where the file
+     * system allows it.
+     */
+    public void expand(File target) throws IOException {
+        lock.readLock().lock();
+        try(var file = new RandomAccessFile(target, "rw")) {
+            file.setLength(0);
+            file.setLength(size);
+            var output = file.getChannel();
+            for(int block = 0; (long) block * blockSize < size; block++) {
+                var data = getBlock(block);
+                if(data == null) {
+                    continue;
+                }
+                long position = (long) block * blockSize;
+                var buffer = ByteBuffer.wrap(data, 0, (int) Math.min(blockSize, size - position));
+                while(buffer.hasRemaining()) {
+                    position += output.write(buffer, position);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            force();
+        } finally {
+            channel.close();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Copies an image in, a megabyte at a time, skipping blocks of zeros the container already reads as zeros.
+     */
+    private void copyFrom(ImageStore source) throws IOException {
+        var buffer = ByteBuffer.allocate(Math.max(COPY_BUFFER_SIZE, blockSize));
+        long sourceSize = source.size();
+        lock.writeLock().lock();
+        try {
+            for(long position = 0; position < sourceSize; position += buffer.limit()) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), sourceSize - position));
+                source.read(buffer, position);
+                buffer.flip();
+                for(int offset = 0; offset < buffer.limit(); offset += blockSize) {
+                    int length = Math.min(blockSize, buffer.limit() - offset);
+                    if(Arrays.equals(buffer.array(), offset, offset + length, zeros, 0, length)) {
+                        continue;
+                    }
+                    var data = new byte[blockSize];
+                    System.arraycopy(buffer.array(), offset, data, 0, length);
+                    putBlock((int) ((position + offset) / blockSize), data);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the block's bytes, which must not be changed, or null if it reads as zeros
+     */
+    private byte[] getBlock(int block) throws IOException {
+        if(block >= index.length || index[block] == ZERO_BLOCK) {
+            return null;
+        }
+        synchronized (cache) {
+            var cached = cache.get(block);
+            if(cached != null) {
+                return cached;
+            }
+        }
+        var data = readBlock(index[block]);
+        synchronized (cache) {
+            cache.put(block, data);
+        }
+        return data;
+    }
+
+    private byte[] readBlock(long recordOffset) throws IOException {
+        var header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        readFully(header, recordOffset);
+        int length = header.getInt(8);
+        var payload = ByteBuffer.allocate(length);
+        readFully(payload, recordOffset + RECORD_HEADER_LENGTH);
+        if(checksum(payload.flip()) != header.getInt(12)) {
+            throw new IOException(String.format("%s has a damaged block at offset %d", containerFile, recordOffset));
+        }
+        if(length == blockSize) {
+            return payload.array();
+        }
+        var data = new byte[blockSize];
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(payload.array(), 0, length);
+            int inflated = inflater.inflate(data);
+            if(inflated != blockSize || !inflater.finished()) {
+                throw new IOException(String.format("%s has a damaged block at offset %d", containerFile, recordOffset));
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(String.format("%s has a damaged block at offset %d", containerFile, recordOffset), e);
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    /**
+     * Compresses a block and appends it.  Blocks of zeros are logged with no data; blocks that do not compress are
+     * stored as they are.
+     */
+    private void putBlock(int block, byte[] data) throws IOException {
+        ensureIndex(block + 1);
+        if(Arrays.equals(data, zeros)) {
+            append(block, ByteBuffer.allocate(0));
+            index[block] = ZERO_BLOCK;
+            synchronized (cache) {
+                cache.remove(block);
+            }
+            return;
+        }
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        int length = deflater.deflate(compressed, 0, compressed.length);
+        var payload = deflater.finished() && length < blockSize
+                ? ByteBuffer.wrap(compressed, 0, length)
+                : ByteBuffer.wrap(data);
+        index[block] = append(block, payload);
+        synchronized (cache) {
+            cache.put(block, data);
+        }
+    }
+
+    private void resize(long newSize) throws IOException {
+        if(newSize < size) {
+            int blocks = (int) ((newSize + blockSize - 1) / blockSize);
+            int cut = (int) (newSize % blockSize);
+            if(cut != 0) {
+                var boundary = getBlock(blocks - 1);
+                if(boundary != null) {
+                    var updated = boundary.clone();
+                    Arrays.fill(updated, cut, blockSize, (byte) 0);
+                    putBlock(blocks - 1, updated);
+                }
+            }
+            if(blocks < index.length) {
+                index = Arrays.copyOf(index, blocks);
+            }
+            synchronized (cache) {
+                cache.keySet().removeIf(block -> block >= blocks);
+            }
+        }
+        size = newSize;
+        append(SIZE_RECORD, ByteBuffer.allocate(Long.BYTES).putLong(0, newSize));
+    }
+
+    private void ensureIndex(long blocks) {
+        if(blocks > index.length) {
+            index = Arrays.copyOf(index, (int) Math.max(blocks, (size + blockSize - 1) / blockSize));
+        }
+    }
+
+    /**
+     * @return the offset of the record
+     */
+    private long append(long block, ByteBuffer payload) throws IOException {
+        var header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        header.putLong(0, block).putInt(8, payload.remaining()).putInt(12, checksum(payload));
+        long offset = end;
+        writeFully(header, offset);
+        writeFully(payload, offset + RECORD_HEADER_LENGTH);
+        end = offset + RECORD_HEADER_LENGTH + header.getInt(8);
+        indexWritten = false;
+        return offset;
+    }
+
+    /**
+     * Reads the index the header points at, then replays every complete record written after it.
+     */
+    private void load(long indexOffset) throws IOException {
+        long position = HEADER_LENGTH;
+        if(indexOffset != 0) {
+            position = replayRecord(indexOffset);
+            if(position < 0) {
+                throw new IOException(String.format("%s has a damaged index", containerFile));
+            }
+        }
+        long indexEnd = position;
+        long fileSize = channel.size();
+        while(position < fileSize) {
+            long next = replayRecord(position);
+            if(next < 0) {
+                break;
+            }
+            position = next;
+        }
+        end = position;
+        indexWritten = end == indexEnd;
+        if(!readOnly && fileSize > end) {
+            channel.truncate(end);
+        }
+    }
+
+    /**
+     * Applies one record to the index.
+     * @return the offset after it, or -1 if it is cut short or damaged
+     */
+    private long replayRecord(long offset) throws IOException {
+        long fileSize = channel.size();
+        if(offset + RECORD_HEADER_LENGTH > fileSize) {
+            return -1;
+        }
+        var header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        readFully(header, offset);
+        long block = header.getLong(0);
+        int length = header.getInt(8);
+        boolean valid = block == INDEX_RECORD ? length >= Long.BYTES && length % Long.BYTES == 0
+                : block == SIZE_RECORD ? length == Long.BYTES
+                : block >= 0 && block <= Integer.MAX_VALUE && length >= 0 && length <= blockSize;
+        if(!valid || offset + RECORD_HEADER_LENGTH + length > fileSize) {
+            return -1;
+        }
+        var payload = ByteBuffer.allocate(length);
+        readFully(payload, offset + RECORD_HEADER_LENGTH);
+        if(checksum(payload.flip()) != header.getInt(12)) {
+            return -1;
+        }
+        if(block == INDEX_RECORD) {
+            size = payload.getLong();
+            index = new long[payload.remaining() / Long.BYTES];
+            payload.asLongBuffer().get(index);
+        } else if(block == SIZE_RECORD) {
+            size = payload.getLong();
+            long blocks = (size + blockSize - 1) / blockSize;
+            if(blocks < index.length) {
+                index = Arrays.copyOf(index, (int) blocks);
+            }
+        } else {
+            ensureIndex(block + 1);
+            index[(int) block] = length == 0 ? ZERO_BLOCK : offset;
+        }
+        return offset + RECORD_HEADER_LENGTH + length;
+    }
+
+    private static int checksum(ByteBuffer payload) {
+        var crc = new CRC32C();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private void checkWritable() {
+        if(readOnly) {
+            throw new IllegalStateException(String.format("%s is open read only", containerFile));
+        }
+    }
+
+    private void readFully(ByteBuffer target, long position) throws IOException {
+        while(target.hasRemaining()) {
+            int read = channel.read(target, position);
+            if(read < 0) {
+                throw new IOException(String.format("%s ends before offset %d", containerFile, position));
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer source, long position) throws IOException {
+        while(source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+}
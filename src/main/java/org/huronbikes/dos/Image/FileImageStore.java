@@ -0,0 +1,137 @@
+package org.huronbikes.dos.Image;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+/**
+ * An image stored in a plain file, read and written through one channel.  Writes are synchronous by default, so a
+ * write has reached the disk when it returns; an asynchronous store leaves that to {@link #force()}.
+ */
+public class FileImageStore implements ImageStore {
+    @Getter
+    private final File imageFile;
+    private final FileChannel channel;
+    private final boolean readOnly;
+    private final boolean synchronous;
+
+    public FileImageStore(File imageFile) throws IOException {
+        this(imageFile, false);
+    }
+
+    public FileImageStore(File imageFile, boolean readOnly) throws IOException {
+        this(imageFile, readOnly, true);
+    }
+
+    /**
+     * @param synchronous false to let writes sit in the operating system's cache until {@link #force()}
+     */
+    public FileImageStore(File imageFile, boolean readOnly, boolean synchronous) throws IOException {
+        this.imageFile = imageFile;
+        this.readOnly = readOnly;
+        this.synchronous = synchronous;
+        if(readOnly) {
+            this.channel = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ);
+        } else if(synchronous) {
+            this.channel = FileChannel.open(imageFile.toPath(), Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SYNC));
+        } else {
+            this.channel = FileChannel.open(imageFile.toPath(), Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer target, long position) throws IOException {
+        int total = 0;
+        while(target.hasRemaining()) {
+            int read = channel.read(target, position + total);
+            if(read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    @Override
+    public void write(ByteBuffer source, long position) throws IOException {
+        checkWritable();
+        while(source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+
+    /**
+     * Writes the buffers with gathering writes.  Positional reads and writes do not use the channel's position, so
+     * only other gathering writes have to wait.
+     */
+    @Override
+    public void write(ByteBuffer[] sources, long position) throws IOException {
+        checkWritable();
+        long remaining = 0;
+        for(var source : sources) {
+            remaining += source.remaining();
+        }
+        synchronized (channel) {
+            channel.position(position);
+            while(remaining > 0) {
+                remaining -= channel.write(sources);
+            }
+        }
+    }
+
+    /**
+     * Maps part of the image into memory, read only, for scans that look at a whole region in place.  The mapping
+     * sees writes made through the store; changes still have to be written through it.
+     */
+    public MappedByteBuffer map(long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Grows the file by writing its last byte, so the new space stays sparse where the file system allows it.
+     */
+    @Override
+    public void setSize(long size) throws IOException {
+        checkWritable();
+        long current = channel.size();
+        if(size < current) {
+            channel.truncate(size);
+        } else if(size > current) {
+            write(ByteBuffer.allocate(1), size - 1);
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public void force() throws IOException {
+        if(!readOnly && !synchronous) {
+            channel.force(true);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void checkWritable() {
+        if(readOnly) {
+            throw new IllegalStateException(String.format("%s is open read only", imageFile));
+        }
+    }
+}
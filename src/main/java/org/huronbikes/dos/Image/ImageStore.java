@@ -0,0 +1,57 @@
+package org.huronbikes.dos.Image;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access storage for a disk image.  Every read and write names its own position, so one store can be shared
+ * by every partition of an image and used from several threads at once.
+ */
+public interface ImageStore extends Closeable {
+    /**
+     * Opens an image file for reading and writing, as a {@link CompressedImageStore} if it is a compressed container
+     * and as a {@link FileImageStore} otherwise.
+     */
+    static ImageStore open(File imageFile) throws IOException {
+        return CompressedImageStore.isContainer(imageFile) ? new CompressedImageStore(imageFile) : new FileImageStore(imageFile);
+    }
+
+    /**
+     * Reads until the target is full or the end of the image is reached.
+     * @return the number of bytes read
+     */
+    int read(ByteBuffer target, long position) throws IOException;
+
+    /**
+     * Writes all the bytes between the source's position and limit.
+     */
+    void write(ByteBuffer source, long position) throws IOException;
+
+    /**
+     * Writes several buffers back to back, as a single write where the store supports it.
+     */
+    default void write(ByteBuffer[] sources, long position) throws IOException {
+        for(var source : sources) {
+            int length = source.remaining();
+            write(source, position);
+            position += length;
+        }
+    }
+
+    long size() throws IOException;
+
+    /**
+     * Grows or truncates the image.  Bytes added at the end read as zeros.
+     */
+    void setSize(long size) throws IOException;
+
+    boolean isReadOnly();
+
+    /**
+     * Makes every write so far durable.  Stores that write synchronously have nothing left to do.
+     */
+    default void force() throws IOException {
+    }
+}
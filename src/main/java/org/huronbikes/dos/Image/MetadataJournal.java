@@ -0,0 +1,258 @@
+package org.huronbikes.dos.Image;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * A write-ahead log kept in a file beside an image, so metadata changes can be made crash safe without writing the
+ * image synchronously.  Each commit is one group of writes: data already written to the store is forced, the group is
+ * appended to the journal as one checksummed record with a single force, and only then is it applied to the store,
+ * which is left to flush in its own time.  Once the journal passes a size, a background checkpoint forces the store
+ * and empties the journal.
+ * <p>
+ * Opening a journal replays every complete record into the store, so writes that were committed but had not reached
+ * the image before a crash are applied again.  A record cut short by a crash was never committed and is ignored.
+ * <p>
+ * Since a replay puts back everything journaled since the last checkpoint, a write that bypasses the journal must not
+ * land on bytes a record still holds, or the replay would undo it with older data.  {@link #isJournaled(long, int)}
+ * tells writers when to commit such a write through the journal instead.
+ */
+public class MetadataJournal implements Closeable {
+    public static final long DEFAULT_CHECKPOINT_BYTES = 4 * 1024 * 1024;
+    private static final int RECORD_MAGIC = 0x4C4E524A;
+    // magic, payload length, checksum
+    private static final int RECORD_HEADER_LENGTH = 12;
+    // position, length
+    private static final int WRITE_HEADER_LENGTH = 12;
+
+    /**
+     * Bytes to write at an absolute position in the store.
+     * @param data the bytes between its position and limit
+     */
+    public record Write(long position, ByteBuffer data) {
+    }
+
+    private final ImageStore store;
+    @Getter
+    private final File journalFile;
+    private final FileChannel journal;
+    private final long checkpointBytes;
+    private final ExecutorService checkpointer;
+    /**
+     * The number of records applied when the journal was opened.
+     */
+    @Getter
+    private final int replayedRecords;
+    // the byte ranges of the store written by records since the last checkpoint, start to end, merged and sorted
+    private final NavigableMap<Long, Long> journaledRanges = new TreeMap<>();
+    private long journalEnd;
+    private boolean checkpointScheduled;
+    private IOException checkpointFailure;
+
+    public MetadataJournal(ImageStore store, File journalFile) throws IOException {
+        this(store, journalFile, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    /**
+     * Opens or creates the journal and replays it into the store.
+     * @param checkpointBytes the journal size that starts a background checkpoint
+     */
+    public MetadataJournal(ImageStore store, File journalFile, long checkpointBytes) throws IOException {
+        if(store.isReadOnly()) {
+            throw new IllegalArgumentException("a journal needs a writable store");
+        }
+        this.store = store;
+        this.journalFile = journalFile;
+        this.checkpointBytes = checkpointBytes;
+        this.journal = FileChannel.open(journalFile.toPath(), Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+        try {
+            this.replayedRecords = replay();
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+        this.checkpointer = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "metadata-journal-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Commits a group of writes.  When this returns the writes survive a crash, even though the store may not have
+     * them on disk yet.
+     */
+    public synchronized void commit(List<Write> writes) throws IOException {
+        if(checkpointFailure != null) {
+            throw new IOException("a background checkpoint failed", checkpointFailure);
+        }
+        if(writes.isEmpty()) {
+            return;
+        }
+        // ordered: the data the writes point at must be on disk before they are
+        store.force();
+        var record = encode(writes);
+        int length = record.remaining();
+        writeFully(record, journalEnd);
+        journal.force(false);
+        journalEnd += length;
+        for(var write : writes) {
+            addJournaledRange(write.position(), write.position() + write.data().remaining());
+            store.write(write.data().duplicate(), write.position());
+        }
+        if(journalEnd >= checkpointBytes && !checkpointScheduled) {
+            checkpointScheduled = true;
+            checkpointer.execute(this::backgroundCheckpoint);
+        }
+    }
+
+    /**
+     * Forces the store and empties the journal.
+     */
+    public synchronized void checkpoint() throws IOException {
+        checkpointScheduled = false;
+        if(journalEnd == 0) {
+            return;
+        }
+        store.force();
+        journal.truncate(0);
+        journal.force(false);
+        journalEnd = 0;
+        journaledRanges.clear();
+    }
+
+    /**
+     * @return true if a record since the last checkpoint writes any of the bytes, so that a replay would put its
+     * older data back over a write made straight to the store
+     */
+    public synchronized boolean isJournaled(long position, int length) {
+        var before = journaledRanges.lowerEntry(position + length);
+        return before != null && before.getValue() > position;
+    }
+
+    /**
+     * Waits for a running checkpoint, checkpoints what is left and closes the journal.  The store stays open.
+     */
+    @Override
+    public void close() throws IOException {
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            checkpoint();
+        } finally {
+            journal.close();
+        }
+    }
+
+    private void backgroundCheckpoint() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            synchronized (this) {
+                checkpointFailure = e;
+            }
+        }
+    }
+
+    private int replay() throws IOException {
+        long size = journal.size();
+        long position = 0;
+        int records = 0;
+        var header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        while(position + RECORD_HEADER_LENGTH <= size) {
+            readFully(header.clear(), position);
+            int length = header.getInt(4);
+            if(header.getInt(0) != RECORD_MAGIC || length < 0 || position + RECORD_HEADER_LENGTH + length > size) {
+                break;
+            }
+            var payload = ByteBuffer.allocate(length);
+            readFully(payload, position + RECORD_HEADER_LENGTH);
+            if(checksum(payload.flip()) != header.getInt(8)) {
+                break;
+            }
+            while(payload.hasRemaining()) {
+                long writePosition = payload.getLong();
+                int writeLength = payload.getInt();
+                store.write(payload.slice(payload.position(), writeLength), writePosition);
+                payload.position(payload.position() + writeLength);
+            }
+            records++;
+            position += RECORD_HEADER_LENGTH + length;
+        }
+        if(records > 0) {
+            store.force();
+        }
+        if(size > 0) {
+            journal.truncate(0);
+            journal.force(false);
+        }
+        return records;
+    }
+
+    private void addJournaledRange(long start, long end) {
+        var before = journaledRanges.floorEntry(start);
+        if(before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        for(var next = journaledRanges.ceilingEntry(start); next != null && next.getKey() <= end; next = journaledRanges.higherEntry(next.getKey())) {
+            end = Math.max(end, next.getValue());
+        }
+        journaledRanges.subMap(start, true, end, true).clear();
+        journaledRanges.put(start, end);
+    }
+
+    private static ByteBuffer encode(List<Write> writes) {
+        int length = 0;
+        for(var write : writes) {
+            length += WRITE_HEADER_LENGTH + write.data().remaining();
+        }
+        var record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+        record.putInt(RECORD_MAGIC).putInt(length).putInt(0);
+        for(var write : writes) {
+            record.putLong(write.position()).putInt(write.data().remaining()).put(write.data().duplicate());
+        }
+        record.putInt(8, checksum(record.slice(RECORD_HEADER_LENGTH, length)));
+        return record.flip();
+    }
+
+    private static int checksum(ByteBuffer payload) {
+        var crc = new CRC32C();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private void readFully(ByteBuffer target, long position) throws IOException {
+        while(target.hasRemaining()) {
+            int read = journal.read(target, position);
+            if(read < 0) {
+                throw new IOException(String.format("%s ends before offset %d", journalFile, position));
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer source, long position) throws IOException {
+        while(source.hasRemaining()) {
+            position += journal.write(source, position);
+        }
+    }
+}
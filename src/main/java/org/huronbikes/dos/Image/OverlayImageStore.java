@@ -0,0 +1,350 @@
+package org.huronbikes.dos.Image;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A copy-on-write view of a base image.  Reads fall through to the base; writes go to a private delta file, so any
+ * number of overlays can share one read-only base and each only takes as much space as the blocks it changed.
+ * <p>
+ * The delta file is a short header followed by one record per changed block: the block number, then the block.  A
+ * block is appended the first time it is written and rewritten in place after that.  The block map is rebuilt from the
+ * records when an existing delta is opened; a record cut short by a crash is dropped.
+ */
+public class OverlayImageStore implements ImageStore {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    private static final byte[] MAGIC = "FATDELTA".getBytes(StandardCharsets.US_ASCII);
+    private static final int BLOCK_SIZE_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int BASE_LIMIT_OFFSET = 24;
+    private static final int HEADER_LENGTH = 32;
+    private static final int BLOCK_NUMBER_LENGTH = 8;
+    private static final long DROPPED_BLOCK = -1;
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    private final ImageStore base;
+    private final boolean ownsBase;
+    @Getter
+    private final File deltaFile;
+    private final FileChannel delta;
+    @Getter
+    private final int blockSize;
+    // block number to the offset of its record in the delta file
+    private final Map<Long, Long> blocks = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long size;
+    // bytes of the base that still show through; shrinking the image hides the rest for good
+    private long baseLimit;
+    private long deltaEnd;
+
+    /**
+     * Opens a base image read only with a delta file, creating the delta if it does not exist.  Closing the overlay
+     * closes the base.
+     */
+    public OverlayImageStore(File baseFile, File deltaFile) throws IOException {
+        this(new FileImageStore(baseFile, true), true, deltaFile, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Opens an overlay on a base store that stays open when the overlay is closed.  A writable base can have the
+     * delta merged into it.
+     * @param blockSize the unit of copy-on-write for a new delta; an existing delta keeps its own
+     */
+    public OverlayImageStore(ImageStore base, File deltaFile, int blockSize) throws IOException {
+        this(base, false, deltaFile, blockSize);
+    }
+
+    private OverlayImageStore(ImageStore base, boolean ownsBase, File deltaFile, int blockSize) throws IOException {
+        if(blockSize < 512 || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("block size must be a power of two of at least 512 bytes");
+        }
+        this.base = base;
+        this.ownsBase = ownsBase;
+        this.deltaFile = deltaFile;
+        this.delta = FileChannel.open(deltaFile.toPath(), Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.SYNC));
+        try {
+            if(delta.size() == 0) {
+                this.blockSize = blockSize;
+                this.size = base.size();
+                this.baseLimit = size;
+                this.deltaEnd = HEADER_LENGTH;
+                writeHeader();
+            } else {
+                this.blockSize = readHeader();
+                loadBlocks();
+            }
+        } catch (IOException | RuntimeException e) {
+            delta.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of blocks held in the delta
+     */
+    public int getChangedBlockCount() {
+        lock.readLock().lock();
+        try {
+            return blocks.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer target, long position) throws IOException {
+        lock.readLock().lock();
+        try {
+            long end = Math.min(position + target.remaining(), size);
+            int total = 0;
+            while(position < end) {
+                long block = position / blockSize;
+                int offsetInBlock = (int) (position % blockSize);
+                int length = (int) Math.min(blockSize - offsetInBlock, end - position);
+                var recordOffset = blocks.get(block);
+                if(recordOffset != null) {
+                    readFully(target.slice(target.position(), length), recordOffset + BLOCK_NUMBER_LENGTH + offsetInBlock);
+                } else {
+                    // read a run of unchanged blocks from the base with one read
+                    while(position + length < end && !blocks.containsKey((position + length) / blockSize)) {
+                        length += (int) Math.min(blockSize, end - position - length);
+                    }
+                    readBase(target.slice(target.position(), length), position);
+                }
+                target.position(target.position() + length);
+                position += length;
+                total += length;
+            }
+            return total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer source, long position) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long end = position + source.remaining();
+            if(end > size) {
+                size = end;
+                writeHeader();
+            }
+            while(source.hasRemaining()) {
+                long block = position / blockSize;
+                int offsetInBlock = (int) (position % blockSize);
+                int length = Math.min(blockSize - offsetInBlock, source.remaining());
+                var chunk = source.slice(source.position(), length);
+                var recordOffset = blocks.get(block);
+                if(recordOffset != null) {
+                    writeFully(chunk, recordOffset + BLOCK_NUMBER_LENGTH + offsetInBlock);
+                } else {
+                    var record = ByteBuffer.allocate(BLOCK_NUMBER_LENGTH + blockSize);
+                    record.putLong(0, block);
+                    if(length < blockSize) {
+                        readBase(record.slice(BLOCK_NUMBER_LENGTH, blockSize), block * blockSize);
+                    }
+                    record.put(BLOCK_NUMBER_LENGTH + offsetInBlock, chunk, 0, length);
+                    writeFully(record, deltaEnd);
+                    blocks.put(block, deltaEnd);
+                    deltaEnd += record.capacity();
+                }
+                source.position(source.position() + length);
+                position += length;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Changes the size of the image without touching the base.  Blocks past a smaller size are dropped from the
+     * delta, and the base is hidden past it even if the image grows again.
+     */
+    @Override
+    public void setSize(long newSize) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if(newSize < size) {
+                var dropped = ByteBuffer.allocate(BLOCK_NUMBER_LENGTH);
+                for(var iterator = blocks.entrySet().iterator(); iterator.hasNext(); ) {
+                    var block = iterator.next();
+                    long blockStart = block.getKey() * blockSize;
+                    if(blockStart >= newSize) {
+                        writeFully(dropped.clear().putLong(0, DROPPED_BLOCK), block.getValue());
+                        iterator.remove();
+                    } else if(blockStart + blockSize > newSize) {
+                        int cut = (int) (newSize - blockStart);
+                        writeFully(ByteBuffer.allocate(blockSize - cut), block.getValue() + BLOCK_NUMBER_LENGTH + cut);
+                    }
+                }
+                baseLimit = Math.min(baseLimit, newSize);
+            }
+            size = newSize;
+            writeHeader();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * Writes the image as it looks through the overlay to a new standalone file.  Runs of zeros are skipped, so the
+     * copy is sparse where the file system allows it.
+     */
+    public void flatten(File target) throws IOException {
+        lock.readLock().lock();
+        try(var file = new RandomAccessFile(target, "rw")) {
+            file.setLength(0);
+            file.setLength(size);
+            var channel = file.getChannel();
+            var buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            var zeros = new byte[COPY_BUFFER_SIZE];
+            for(long position = 0; position < size; position += buffer.limit()) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+                read(buffer, position);
+                buffer.flip();
+                if(!Arrays.equals(buffer.array(), 0, buffer.limit(), zeros, 0, buffer.limit())) {
+                    long writePosition = position;
+                    while(buffer.hasRemaining()) {
+                        writePosition += channel.write(buffer, writePosition);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes every changed block into the base, in block order, and empties the delta.
+     * @throws IllegalStateException if the base is read only
+     */
+    public void merge() throws IOException {
+        if(base.isReadOnly()) {
+            throw new IllegalStateException("the base image is read only");
+        }
+        lock.writeLock().lock();
+        try {
+            if(base.size() != size) {
+                base.setSize(size);
+            }
+            var block = ByteBuffer.allocate(blockSize);
+            for(var entry : new TreeMap<>(blocks).entrySet()) {
+                long blockStart = entry.getKey() * blockSize;
+                block.clear().limit((int) Math.min(blockSize, size - blockStart));
+                readFully(block, entry.getValue() + BLOCK_NUMBER_LENGTH);
+                base.write(block.flip(), blockStart);
+            }
+            blocks.clear();
+            delta.truncate(HEADER_LENGTH);
+            deltaEnd = HEADER_LENGTH;
+            baseLimit = size;
+            writeHeader();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            delta.close();
+        } finally {
+            if(ownsBase) {
+                base.close();
+            }
+        }
+    }
+
+    /**
+     * Reads from the base, with zeros where the base is hidden or ends.
+     */
+    private void readBase(ByteBuffer target, long position) throws IOException {
+        int visible = (int) Math.max(0, Math.min(target.remaining(), baseLimit - position));
+        int read = visible == 0 ? 0 : base.read(target.slice(0, visible), position);
+        target.put(read, new byte[target.remaining() - read]);
+    }
+
+    private int readHeader() throws IOException {
+        var header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(header, 0);
+        if(!Arrays.equals(header.array(), 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IllegalArgumentException(String.format("%s is not an overlay delta file", deltaFile));
+        }
+        size = header.getLong(SIZE_OFFSET);
+        baseLimit = header.getLong(BASE_LIMIT_OFFSET);
+        return header.getInt(BLOCK_SIZE_OFFSET);
+    }
+
+    private void writeHeader() throws IOException {
+        var header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(0, MAGIC);
+        header.putInt(BLOCK_SIZE_OFFSET, blockSize);
+        header.putLong(SIZE_OFFSET, size);
+        header.putLong(BASE_LIMIT_OFFSET, baseLimit);
+        writeFully(header, 0);
+    }
+
+    private void loadBlocks() throws IOException {
+        int recordLength = BLOCK_NUMBER_LENGTH + blockSize;
+        long records = (delta.size() - HEADER_LENGTH) / recordLength;
+        var blockNumber = ByteBuffer.allocate(BLOCK_NUMBER_LENGTH);
+        for(long i = 0; i < records; i++) {
+            long offset = HEADER_LENGTH + i * recordLength;
+            readFully(blockNumber.clear(), offset);
+            long block = blockNumber.getLong(0);
+            if(block != DROPPED_BLOCK) {
+                blocks.put(block, offset);
+            }
+        }
+        deltaEnd = HEADER_LENGTH + records * recordLength;
+        if(delta.size() > deltaEnd) {
+            delta.truncate(deltaEnd);
+        }
+    }
+
+    private void readFully(ByteBuffer target, long position) throws IOException {
+        while(target.hasRemaining()) {
+            int read = delta.read(target, position);
+            if(read < 0) {
+                throw new IOException(String.format("%s ends before offset %d", deltaFile, position));
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer source, long position) throws IOException {
+        while(source.hasRemaining()) {
+            position += delta.write(source, position);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.huronbikes.dos;
+
+import lombok.Builder;
+import lombok.Singular;
+import org.huronbikes.dos.Directory.DirectoryItemEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Creates a blank disk image with an MBR and up to four FAT16 primary partitions.  Only the metadata is written: the
+ * MBR with one write, and for each partition its boot record, FAT copies and root directory with one more.  The image
+ * file is sized without writing the data region, so on file systems that support sparse files a blank image takes
+ * almost no disk space no matter how large it is.
+ * <pre>
+ * ImageFormatter.builder().diskSectors(4L * 1024 * 1024).partition(ImageFormatter.PartitionLayout.of(0, "DATA")).build().format(file);
+ * </pre>
+ */
+@Builder
+public class ImageFormatter {
+    private static final int MAX_PRIMARY_PARTITIONS = 4;
+    private static final int MIN_CLUSTERS = 4085;
+    private static final int MAX_CLUSTERS = 65524;
+    // the bytes 0x55 0xAA, in disk order
+    private static final int BOOT_SIGNATURE = 0x55AA;
+    private static final int FAT_ENTRIES_PER_SECTOR = Sector.BYTES_PER_SECTOR / 2;
+    private static final int VOLUME_ID_ATTRIBUTE = 0x08;
+    private static final int ATTRIBUTE_OFFSET = 11;
+    private static final byte[] JUMP_INSTRUCTION = { (byte) 0xEB, 0x3C, (byte) 0x90 };
+    private static final String NO_NAME = "NO NAME";
+
+    /**
+     * Sectors per cluster by partition size, from Microsoft's FAT specification.  Partitions of up to the first
+     * value in sectors use the second value.
+     */
+    private static final long[][] SECTORS_PER_CLUSTER = {
+            { 8400, 0 },
+            { 32680, 2 },
+            { 262144, 4 },
+            { 524288, 8 },
+            { 1048576, 16 },
+            { 2097152, 32 },
+            { 4194304, 64 }
+    };
+
+    /**
+     * A partition to create.
+     * @param sectorCount the size of the partition in sectors, or 0 for the rest of the disk
+     * @param sectorsPerCluster 0 to pick the cluster size from the partition size
+     */
+    public record PartitionLayout(long sectorCount, String label, int sectorsPerCluster) {
+        public static PartitionLayout of(long sectorCount, String label) {
+            return new PartitionLayout(sectorCount, label, 0);
+        }
+    }
+
+    /**
+     * Where a partition was placed and how it was laid out.
+     */
+    public record FormattedPartition(int number, long firstSector, long sectorCount, int sectorsPerCluster, int sectorsPerFat, int clusterCount) {
+    }
+
+    private final long diskSectors;
+
+    @Singular
+    private final List<PartitionLayout> partitions;
+
+    @Builder.Default
+    private final int heads = 255;
+
+    @Builder.Default
+    private final int sectorsPerTrack = 63;
+
+    @Builder.Default
+    private final int reservedSectors = 1;
+
+    @Builder.Default
+    private final int fatCopies = 2;
+
+    @Builder.Default
+    private final int rootEntries = 512;
+
+    /**
+     * Replaces the image file, if it exists, with a new blank image.
+     * @return the partitions as they were placed
+     */
+    public List<FormattedPartition> format(File imageFile) throws IOException {
+        var layout = plan();
+        try(var file = new RandomAccessFile(imageFile, "rw")) {
+            // truncating first drops the old contents, so the new length reads back as zeros without being written
+            file.setLength(0);
+            file.setLength(diskSectors * Sector.BYTES_PER_SECTOR);
+            var channel = file.getChannel();
+
+            var masterBootRecord = new MasterBootRecord(new byte[Sector.BYTES_PER_SECTOR]);
+            for(var partition : layout) {
+                masterBootRecord.setPartitionTableEntry(partition.number(), toPartitionTableEntry(partition));
+            }
+            masterBootRecord.setBootSignature(BOOT_SIGNATURE);
+            write(channel, masterBootRecord.toBytes(), 0);
+
+            for(var partition : layout) {
+                write(channel, buildMetadata(partition, partitions.get(partition.number()).label()), partition.firstSector() * Sector.BYTES_PER_SECTOR);
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * Places the partitions one after another, each starting on a track boundary, and sizes their FATs.
+     */
+    private List<FormattedPartition> plan() {
+        if(partitions.isEmpty() || partitions.size() > MAX_PRIMARY_PARTITIONS) {
+            throw new IllegalArgumentException(String.format("between 1 and %d partitions are needed", MAX_PRIMARY_PARTITIONS));
+        }
+        List<FormattedPartition> result = new ArrayList<>();
+        long nextSector = sectorsPerTrack;
+        for(int i = 0; i < partitions.size(); i++) {
+            var requested = partitions.get(i);
+            long sectorCount = requested.sectorCount() == 0 ? diskSectors - nextSector : requested.sectorCount();
+            if(sectorCount <= 0 || nextSector + sectorCount > diskSectors) {
+                throw new IllegalArgumentException(String.format("partition %d does not fit on a disk of %d sectors", i, diskSectors));
+            }
+            result.add(size(i, nextSector, sectorCount, requested.sectorsPerCluster()));
+            nextSector = roundUp(nextSector + sectorCount, sectorsPerTrack);
+        }
+        return result;
+    }
+
+    private FormattedPartition size(int number, long firstSector, long sectorCount, int sectorsPerCluster) {
+        if(sectorsPerCluster == 0) {
+            sectorsPerCluster = Arrays.stream(SECTORS_PER_CLUSTER)
+                    .filter(limit -> sectorCount <= limit[0])
+                    .mapToInt(limit -> (int) limit[1])
+                    .findFirst()
+                    .orElse(0);
+        }
+        if(sectorsPerCluster == 0) {
+            throw new IllegalArgumentException(String.format("partition %d has %d sectors, which is outside the range FAT16 supports", number, sectorCount));
+        }
+        long rootDirectorySectors = ((long) rootEntries * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY + Sector.BYTES_PER_SECTOR - 1) / Sector.BYTES_PER_SECTOR;
+        // FATSz from the FAT specification: slightly generous, never too small
+        long available = sectorCount - (reservedSectors + rootDirectorySectors);
+        long divisor = ((long) FAT_ENTRIES_PER_SECTOR * sectorsPerCluster) + fatCopies;
+        int sectorsPerFat = (int) ((available + divisor - 1) / divisor);
+        long clusterCount = (sectorCount - reservedSectors - (long) fatCopies * sectorsPerFat - rootDirectorySectors) / sectorsPerCluster;
+        if(clusterCount < MIN_CLUSTERS || clusterCount > MAX_CLUSTERS) {
+            throw new IllegalArgumentException(String.format("partition %d would have %d clusters; FAT16 needs between %d and %d", number, clusterCount, MIN_CLUSTERS, MAX_CLUSTERS));
+        }
+        return new FormattedPartition(number, firstSector, sectorCount, sectorsPerCluster, sectorsPerFat, (int) clusterCount);
+    }
+
+    private PartitionTableEntry toPartitionTableEntry(FormattedPartition partition) {
+        long lastSector = partition.firstSector() + partition.sectorCount() - 1;
+        PartitionType type;
+        if(lastSector / ((long) heads * sectorsPerTrack) > CHS.MAX_CYLINDER) {
+            type = PartitionType.WIN95_FAT16_LBA;
+        } else if(partition.sectorCount() < 0x10000) {
+            type = PartitionType.FAT16_SMALL;
+        } else {
+            type = PartitionType.FAT16_BIG;
+        }
+        return new PartitionTableEntry(
+                partition.number() == 0,
+                CHS.fromLba(partition.firstSector(), heads, sectorsPerTrack),
+                CHS.fromLba(lastSector, heads, sectorsPerTrack),
+                type,
+                partition.firstSector(),
+                partition.sectorCount());
+    }
+
+    /**
+     * Builds the boot record, reserved sectors, FAT copies and root directory of a partition as one buffer.
+     */
+    private ByteBuffer buildMetadata(FormattedPartition partition, String label) {
+        int bytesPerFat = partition.sectorsPerFat() * Sector.BYTES_PER_SECTOR;
+        int rootBytes = rootEntries * DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY;
+        var metadata = ByteBuffer.allocate(reservedSectors * Sector.BYTES_PER_SECTOR + fatCopies * bytesPerFat + rootBytes);
+        var labelBytes = toLabel(label);
+
+        var volumeBootRecord = new VolumeBootRecord(metadata.slice(0, Sector.BYTES_PER_SECTOR));
+        volumeBootRecord.setJumpInstruction(JUMP_INSTRUCTION);
+        volumeBootRecord.setVendorString("MSDOS5.0");
+        volumeBootRecord.setBytesPerSector(Sector.BYTES_PER_SECTOR);
+        volumeBootRecord.setSectorsPerCluster(partition.sectorsPerCluster());
+        volumeBootRecord.setReservedSectors(reservedSectors);
+        volumeBootRecord.setNumberOfFatCopies(fatCopies);
+        volumeBootRecord.setNumberOfRootEntries(rootEntries);
+        if(partition.sectorCount() < 0x10000) {
+            volumeBootRecord.setSectorCount((int) partition.sectorCount());
+        } else {
+            volumeBootRecord.setDwordSectorCount(partition.sectorCount());
+        }
+        volumeBootRecord.setMediaTypeIndicator(MediaType.FixedDisk.ANY);
+        volumeBootRecord.setSectorsPerFat(partition.sectorsPerFat());
+        volumeBootRecord.setSectorsPerTrack(sectorsPerTrack);
+        volumeBootRecord.setNumberOfHeads(heads);
+        volumeBootRecord.setNumberOfHiddenSectors(partition.firstSector());
+        volumeBootRecord.setLogicalDriveNumber(0x80);
+        volumeBootRecord.setExtendedSignature(0x29);
+        volumeBootRecord.setPartitionSerialNumber(System.currentTimeMillis() & 0xFFFFFFFFL);
+        volumeBootRecord.setVolumeLabel(labelBytes);
+        volumeBootRecord.setFileSystemType("FAT16   ".getBytes(StandardCharsets.US_ASCII));
+        metadata.put(Sector.BYTES_PER_SECTOR - 2, (byte) (BOOT_SIGNATURE >> 8));
+        metadata.put(Sector.BYTES_PER_SECTOR - 1, (byte) (BOOT_SIGNATURE & 0xFF));
+
+        int fatOffset = reservedSectors * Sector.BYTES_PER_SECTOR;
+        for(int i = 0; i < fatCopies; i++) {
+            // entry 0 holds the media type, entry 1 the end of chain marker
+            int copy = fatOffset + i * bytesPerFat;
+            metadata.put(copy, (byte) MediaType.FixedDisk.ANY.getValue());
+            metadata.put(copy + 1, (byte) 0xFF);
+            metadata.put(copy + 2, (byte) 0xFF);
+            metadata.put(copy + 3, (byte) 0xFF);
+        }
+
+        int rootOffset = fatOffset + fatCopies * bytesPerFat;
+        metadata.put(rootOffset, labelBytes);
+        metadata.put(rootOffset + ATTRIBUTE_OFFSET, (byte) VOLUME_ID_ATTRIBUTE);
+        return metadata.clear();
+    }
+
+    private static byte[] toLabel(String label) {
+        var name = label == null || label.isBlank() ? NO_NAME : label.toUpperCase(Locale.ROOT);
+        if(name.length() > 11 || !StandardCharsets.US_ASCII.newEncoder().canEncode(name)) {
+            throw new IllegalArgumentException(String.format("%s is not a valid volume label", label));
+        }
+        return String.format("%-11s", name).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static long roundUp(long value, long multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
+}
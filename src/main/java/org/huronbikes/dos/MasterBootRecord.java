@@ -5,6 +5,8 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 
 public class MasterBootRecord extends Sector {
+    private static final int PARTITION_TABLE_OFFSET = 446;
+    private static final int PARTITION_TABLE_ENTRY_LENGTH = 16;
     private final PartitionTableEntry[] partitionTableEntries;
 
     public PartitionTableEntry getPartitionTableEntry(int partitionNumber) {
@@ -14,12 +16,21 @@ public class MasterBootRecord extends Sector {
         return partitionTableEntries[partitionNumber];
     }
 
+    /**
+     * Replaces a partition table entry, both in the table and in the sector data.
+     */
+    public void setPartitionTableEntry(int partitionNumber, PartitionTableEntry entry) {
+        getPartitionTableEntry(partitionNumber);
+        partitionTableEntries[partitionNumber] = entry;
+        entry.put(ByteBuffer.wrap(data, PARTITION_TABLE_OFFSET + (PARTITION_TABLE_ENTRY_LENGTH * partitionNumber), PARTITION_TABLE_ENTRY_LENGTH));
+    }
+
     public MasterBootRecord(byte[] data) {
         super(data);
         partitionTableEntries = new PartitionTableEntry[4];
         ByteBuffer buffer = ByteBuffer.wrap(data);
         for(int x = 0; x < partitionTableEntries.length; x++) {
-            partitionTableEntries[x] = PartitionTableEntry.fromByteBuffer(buffer.slice(446 + (16 * x), 16));
+            partitionTableEntries[x] = PartitionTableEntry.fromByteBuffer(buffer.slice(PARTITION_TABLE_OFFSET + (PARTITION_TABLE_ENTRY_LENGTH * x), PARTITION_TABLE_ENTRY_LENGTH));
         }
     }
 
@@ -54,6 +54,12 @@ public class PartitionTableEntry {
     public void put(ByteBuffer buffer) {
         buffer.put(active ? (byte) ACTIVE_PARTITION : 0);
         start.put(buffer);
+        buffer.put(partitionType.asByte());
+        end.put(buffer);
+        var lba = new byte[8];
+        ByteUtils.writeDWord(lba, lbaStart, 0);
+        ByteUtils.writeDWord(lba, sectorLength, 4);
+        buffer.put(lba);
     }
 }
 
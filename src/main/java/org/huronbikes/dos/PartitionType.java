@@ -52,6 +52,23 @@ public enum PartitionType {
         return type;
     }
 
+    /**
+     * @return true for partition types that hold a FAT16 file system
+     */
+    public boolean isFat16() {
+        return switch (this) {
+            case FAT16_SMALL, FAT16_BIG, WIN95_FAT16_LBA, HIDDEN_DOS_FAT16_SMALL, HIDDEN_DOS_FAT16, HIDDEN_WIN95_FAT16_LBA -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * @return true for extended partitions, which hold a chain of extended boot records
+     */
+    public boolean isExtended() {
+        return this == EXTENDED_8G || this == WIN95_EXTENDED_LBA;
+    }
+
     public static PartitionType fromByte(byte partitionTypeValue) {
         return Arrays.stream(PartitionType.values()).filter(b -> b.asByte() == partitionTypeValue).findFirst().orElse(PartitionType.UNKNOWN);
     }
@@ -41,6 +41,13 @@ public class Sector {
         return result;
     }
 
+    /**
+     * @return a copy of the sector's bytes
+     */
+    public ByteBuffer toBytes() {
+        return ByteBuffer.wrap(Arrays.copyOf(data, data.length));
+    }
+
     protected void writeToData(byte[] source, int offset, int length) {
         if (source.length < length) {
             throw new IllegalArgumentException("source data must equal or exceed write length");
@@ -1,60 +1,430 @@
 package org.huronbikes.dos;
 
 import lombok.Getter;
+import org.huronbikes.dos.Directory.CompactionResult;
+import org.huronbikes.dos.Directory.DirectoryBase;
+import org.huronbikes.dos.Directory.DirectoryCache;
+import org.huronbikes.dos.Directory.DirectoryCompactor;
+import org.huronbikes.dos.Directory.DirectoryItemEntry;
+import org.huronbikes.dos.Directory.DirectoryLockTable;
+import org.huronbikes.dos.Directory.DirectoryVisitor;
+import org.huronbikes.dos.Directory.DirectoryWalker;
+import org.huronbikes.dos.FAT.ClusterOwnerIndex;
+import org.huronbikes.dos.FAT.Defragmenter;
 import org.huronbikes.dos.FAT.FAT;
 import org.huronbikes.dos.FAT.FAT16;
+import org.huronbikes.dos.FAT.FatMirrorVerifier;
+import org.huronbikes.dos.FAT.FatSnapshot;
+import org.huronbikes.dos.FAT.ImageDiff;
+import org.huronbikes.dos.Image.CompressedImageStore;
+import org.huronbikes.dos.Image.FileImageStore;
+import org.huronbikes.dos.Image.ImageStore;
+import org.huronbikes.dos.Image.MetadataJournal;
+import org.huronbikes.dos.Image.OverlayImageStore;
+import org.huronbikes.dos.FAT.FileSystemChecker;
 
-import java.awt.image.DataBuffer;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.StandardOpenOption;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class VolumeContext {
-    private final File imageFile;
+public class VolumeContext implements Closeable {
+    private final ImageStore store;
+    private final boolean ownsStore;
+    private final MetadataJournal journal;
     private final VolumeBootRecord volumeBootRecord;
     @Getter
     private final FAT fat;
+    @Getter
+    private final DirectoryCache directoryCache;
+    /*
+        mkdir, createFile and delete share the read lock and go through the directory lock table, so they run in
+        parallel with each other.  Batches and the other operations that change the whole volume take the write lock
+        and leave the table's directory objects stale, so they clear it.
+     */
+    private final ReadWriteLock volumeLock = new ReentrantReadWriteLock();
+    private final DirectoryLockTable directoryLocks;
+    // null when the filesystem is not FAT16
+    private final ClusterOwnerIndex ownerIndex;
 
+    /**
+     * Opens the volume in an image file, plain or a {@link CompressedImageStore} container.  Closing the volume closes
+     * the file.
+     */
     public VolumeContext(File imageFile, long volumeBootRecordOffset) throws IOException {
-        this.imageFile = imageFile;
-        try(var channel = openForWrite()) {
-            channel.position(volumeBootRecordOffset);
+        this(ImageStore.open(imageFile), true, null, volumeBootRecordOffset, DirectoryCache.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens a volume in a store shared with other volumes.  Closing the volume leaves the store open.
+     * @param cacheCapacity the most paths the directory cache holds
+     */
+    public VolumeContext(ImageStore store, long volumeBootRecordOffset, int cacheCapacity) throws IOException {
+        this(store, false, null, volumeBootRecordOffset, cacheCapacity);
+    }
+
+    /**
+     * Opens the volume through a copy-on-write overlay: the base image is opened read only and every change goes to
+     * the delta file, so several jobs can work on one base image at once.  Closing the volume closes both files.
+     */
+    public static VolumeContext overlay(File baseImageFile, File deltaFile, long volumeBootRecordOffset) throws IOException {
+        return new VolumeContext(new OverlayImageStore(baseImageFile, deltaFile), true, null, volumeBootRecordOffset, DirectoryCache.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens the volume with a metadata journal beside the image.  The image is written without waiting for the disk;
+     * each batch costs one force of the data it wrote and one of the journal, and survives a crash once it returns.
+     * Anything left in the journal by a crash is replayed before the volume is read.  Closing the volume checkpoints
+     * the journal and closes both files.
+     */
+    public static VolumeContext journaled(File imageFile, File journalFile, long volumeBootRecordOffset) throws IOException {
+        var store = new FileImageStore(imageFile, false, false);
+        MetadataJournal journal;
+        try {
+            journal = new MetadataJournal(store, journalFile);
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+        return new VolumeContext(store, true, journal, volumeBootRecordOffset, DirectoryCache.DEFAULT_CAPACITY);
+    }
+
+    private VolumeContext(ImageStore store, boolean ownsStore, MetadataJournal journal, long volumeBootRecordOffset, int cacheCapacity) throws IOException {
+        this.store = store;
+        this.ownsStore = ownsStore;
+        this.journal = journal;
+        try {
             ByteBuffer vbrBuffer = ByteBuffer.allocate(4096);
-            channel.read(vbrBuffer);
+            store.read(vbrBuffer, volumeBootRecordOffset);
             volumeBootRecord = new VolumeBootRecord(vbrBuffer);
-            fat = new FAT16(
-                    imageFile,
-                    channel,
-                    volumeBootRecord.getBytesPerFat(),
-                    volumeBootRecord.getNumberOfFatCopies(),
-                    volumeBootRecord.getFatStartOffset(),
-                    volumeBootRecord.getBytesPerCluster(),
-                    volumeBootRecord.getClusterCount(),
-                    volumeBootRecord.getNumberOfRootEntries(),
-                    volumeBootRecord.getRootDirOffset(),
-                    volumeBootRecord.getDataOffset());
+            fat = getFAT(volumeBootRecord, store, volumeBootRecordOffset);
+            if(journal != null) {
+                ((FAT16) fat).setJournal(journal);
+            }
+        } catch (IOException | RuntimeException e) {
+            if(journal != null) {
+                journal.close();
+            }
+            if(ownsStore) {
+                store.close();
+            }
+            throw e;
+        }
+        if(fat instanceof FAT16 fat16) {
+            ownerIndex = new ClusterOwnerIndex(fat16);
+            fat16.setClusterListener(ownerIndex);
+        } else {
+            ownerIndex = null;
+        }
+        directoryCache = new DirectoryCache(fat, cacheCapacity, ownerIndex);
+        directoryLocks = new DirectoryLockTable(fat, directoryCache.getListener());
+    }
+
+    /**
+     * Returns the root directory of the volume.  Directories opened from it keep the path cache up to date when
+     * they are changed.
+     */
+    public DirectoryBase getRootDirectory() throws IOException {
+        return directoryCache.getRootDirectory();
+    }
+
+    /**
+     * Resolves a path such as A/B/C/FILE.TXT to its directory entry, using the path cache for the directories along
+     * the way.
+     * @return the entry, or null if the path does not exist
+     */
+    public DirectoryItemEntry resolve(String path) throws IOException {
+        return directoryCache.resolve(path);
+    }
+
+    /**
+     * Resolves a path to the directory it names.
+     * @return the directory, or null if the path does not exist or is not a directory
+     */
+    public DirectoryBase resolveDirectory(String path) throws IOException {
+        return directoryCache.resolveDirectory(path);
+    }
+
+    /**
+     * Walks every directory of the volume in parallel.  Use {@link DirectoryWalker} directly to limit the depth,
+     * filter entries or read directories in cluster order.
+     */
+    public void walk(DirectoryVisitor visitor) throws IOException {
+        DirectoryWalker.builder().build().walk(fat.getRootDirectory(), visitor);
+    }
+
+    /**
+     * Creates a directory.  mkdir, createFile and delete can be called from many threads at once: changes to
+     * different directories run in parallel and changes to the same directory take turns.  Each one commits the FAT
+     * sectors it changed.
+     * <p>
+     * With a journal each of them runs as a batch of its own, so changes take turns.  Outside a batch the directory
+     * entry would reach the image before the FAT commit that goes with it is journaled, and a crash in between could
+     * leave an entry pointing at free clusters, or clusters no entry uses.
+     * @throws IllegalArgumentException if the parent is not a directory or the name is taken
+     */
+    public void mkdir(String path) throws IOException {
+        if(journal != null) {
+            batch(b -> b.mkdir(path));
+        } else {
+            changeEntry(path, DirectoryBase::makeDirectory);
+        }
+    }
+
+    /**
+     * Creates a file.  Safe to call from many threads at once, like {@link #mkdir(String)}.
+     */
+    public void createFile(String path, byte[] content) throws IOException {
+        if(journal != null) {
+            batch(b -> b.createFile(path, content));
+        } else {
+            changeEntry(path, (parent, name) -> parent.createFile(name, content));
+        }
+    }
+
+    /**
+     * Deletes a file or an empty directory.  Safe to call from many threads at once, like {@link #mkdir(String)}.
+     */
+    public void delete(String path) throws IOException {
+        if(journal != null) {
+            batch(b -> b.delete(path));
+            return;
+        }
+        volumeLock.readLock().lock();
+        try {
+            directoryLocks.delete(path);
+        } finally {
+            volumeLock.readLock().unlock();
+        }
+    }
+
+    @FunctionalInterface
+    private interface EntryChange {
+        void apply(DirectoryBase parent, String name) throws IOException;
+    }
+
+    private void changeEntry(String path, EntryChange change) throws IOException {
+        int separator = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        var name = path.substring(separator + 1);
+        volumeLock.readLock().lock();
+        try {
+            directoryLocks.withDirectory(separator < 0 ? "" : path.substring(0, separator), parent -> {
+                change.apply(parent, name);
+                return null;
+            });
+        } finally {
+            volumeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies a set of changes with a single FAT commit, for example
+     * <pre>volume.batch(b -> b.mkdir("A").mkdir("A/B").createFile("A/B/FILE.TXT", content));</pre>
+     * Writes are held in memory until every change has been applied.  If any change fails, none of them are
+     * written.
+     */
+    public void batch(Batch.Operation operation) throws IOException {
+        var batch = new Batch();
+        operation.apply(batch);
+        inBatch(() -> {
+            batch.apply(fat, directoryCache);
+            return null;
+        });
+    }
+
+    /**
+     * Compacts every directory of the volume whose share of deleted slots has reached the threshold, or that holds
+     * empty clusters at the end of its chain.  The changes are written as one batch.
+     * @return the directories that were changed, keyed by path
+     */
+    public Map<String, CompactionResult> compactDirectories(double threshold) throws IOException {
+        var compactor = DirectoryCompactor.builder().threshold(threshold).build();
+        return inBatch(() -> compactor.compactTree(directoryCache.getRootDirectory()));
+    }
+
+    /**
+     * Makes every cluster chain of the volume contiguous.  Directories opened before defragmenting hold stale cluster
+     * numbers and must be opened again.
+     * @param dryRun only report the fragmentation of the volume
+     */
+    public Defragmenter.Report defragment(boolean dryRun) throws IOException {
+        if(!(fat instanceof FAT16 fat16)) {
+            throw new IllegalStateException("Defragmenting is not supported by the current filesystem.");
+        }
+        try {
+            return exclusively(() -> Defragmenter.builder().fat(fat16).dryRun(dryRun).build().run());
+        } finally {
+            directoryCache.clear();
+            ownerIndex.invalidate();
+        }
+    }
+
+    /**
+     * Checks the directory tree against the FAT for cross-linked, broken and lost cluster chains.
+     * @param repair free lost chains and cut broken or overlong chains short
+     */
+    public FileSystemChecker.Report check(boolean repair) throws IOException {
+        if(!(fat instanceof FAT16 fat16)) {
+            throw new IllegalStateException("Checking is not supported by the current filesystem.");
+        }
+        var report = exclusively(() -> FileSystemChecker.builder().fat(fat16).repair(repair).build().check());
+        if(report.repaired()) {
+            directoryCache.clear();
+        }
+        return report;
+    }
+
+    /**
+     * Compares the copies of the FAT on disk.
+     * @param repair rewrite differing entries with the value most copies agree on
+     */
+    public FatMirrorVerifier.Report verifyFatMirrors(boolean repair) throws IOException {
+        if(!(fat instanceof FAT16 fat16)) {
+            throw new IllegalStateException("Verifying FAT copies is not supported by the current filesystem.");
+        }
+        var report = exclusively(() -> FatMirrorVerifier.builder().fat(fat16).repair(repair).build().verify());
+        if(report.primaryChanged()) {
+            directoryCache.clear();
+            ownerIndex.invalidate();
+        }
+        return report;
+    }
+
+    /**
+     * Freezes the volume's FAT and root directory for read-only use by any number of threads, for example
+     * <pre>DirectoryWalker.builder().build().walk(volume.snapshot().getRootDirectory(), visitor);</pre>
+     */
+    public FatSnapshot snapshot() throws IOException {
+        if(!(fat instanceof FAT16 fat16)) {
+            throw new IllegalStateException("Snapshots are not supported by the current filesystem.");
+        }
+        return exclusively(fat16::snapshot);
+    }
+
+    /**
+     * Finds the file or directory using a cluster.  The first call builds the cluster owner index with one walk of
+     * the tree; from then on the index follows every change made through the volume and a lookup is one array read.
+     * @return the owner, or null if no file or directory uses the cluster
+     */
+    public ClusterOwnerIndex.Owner getClusterOwner(int clusterNumber) throws IOException {
+        if(ownerIndex == null) {
+            throw new IllegalStateException("Cluster owners are not supported by the current filesystem.");
+        }
+        if(!ownerIndex.isBuilt()) {
+            exclusively(() -> {
+                if(!ownerIndex.isBuilt()) {
+                    ownerIndex.rebuild();
+                }
+                return null;
+            });
+        }
+        return ownerIndex.getOwner(clusterNumber);
+    }
+
+    /**
+     * Streams every file and directory of the volume into a zip or tar archive.  Changes to the volume wait until
+     * the export is done.
+     * @param output flushed but left open, so it can be standard output
+     */
+    public ArchiveExporter.Report export(OutputStream output, ArchiveExporter.Format format) throws IOException {
+        return exclusively(() -> ArchiveExporter.builder().fat(fat).format(format).build().export(output));
+    }
+
+    /**
+     * Lists the files added, removed and modified between this volume and another, such as an earlier copy of the
+     * same image.  The other volume must not be changed while they are compared.
+     */
+    public ImageDiff.Report diff(VolumeContext other) throws IOException {
+        if(!(fat instanceof FAT16 fat16) || !(other.fat instanceof FAT16 otherFat16)) {
+            throw new IllegalStateException("Comparing volumes is not supported by the current filesystem.");
+        }
+        return exclusively(() -> ImageDiff.builder().before(fat16).after(otherFat16).build().compare());
+    }
+
+    @FunctionalInterface
+    private interface BatchWork<T> {
+        T run() throws IOException;
+    }
+
+    private <T> T inBatch(BatchWork<T> work) throws IOException {
+        return exclusively(() -> {
+            fat.beginBatch();
+            T result;
+            try {
+                result = work.run();
+            } catch (IOException | RuntimeException e) {
+                fat.abortBatch();
+                dropCachedState();
+                throw e;
+            }
+            try {
+                fat.endBatch();
+            } catch (IOException | RuntimeException e) {
+                // the FAT has already reloaded itself
+                dropCachedState();
+                throw e;
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Forgets the cached directories and cluster owners after the FAT went back to what is on disk.
+     */
+    private void dropCachedState() {
+        directoryCache.clear();
+        if(ownerIndex != null) {
+            ownerIndex.invalidate();
         }
     }
 
-    private FileChannel openForWrite() throws IOException {
-        return FileChannel.open(imageFile.toPath(), Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SYNC));
+    /**
+     * Runs work that needs the volume to itself, waiting for concurrent changes to finish.
+     */
+    private <T> T exclusively(BatchWork<T> work) throws IOException {
+        volumeLock.writeLock().lock();
+        try {
+            return work.run();
+        } finally {
+            directoryLocks.clear();
+            volumeLock.writeLock().unlock();
+        }
     }
 
+    @Override
+    public void close() throws IOException {
+        try {
+            if(journal != null) {
+                journal.close();
+            }
+        } finally {
+            if(ownsStore) {
+                store.close();
+            }
+        }
+    }
 
+    /**
+     * The offsets in a boot record count from the start of the disk through its hidden sector count, which for
+     * logical partitions is often relative to the extended partition instead.  They are moved to the position the
+     * boot record was actually read from.
+     */
     //TODO support for FAT12 / FAT32?
-    public static FAT getFAT(VolumeBootRecord volumeBootRecord, File imageFile) throws IOException {
+    public static FAT getFAT(VolumeBootRecord volumeBootRecord, ImageStore store, long volumeBootRecordOffset) throws IOException {
+        long shift = volumeBootRecordOffset - volumeBootRecord.getNumberOfHiddenSectors() * volumeBootRecord.getBytesPerSector();
         return new FAT16(
-                imageFile,
+                store,
                 volumeBootRecord.getBytesPerFat(),
                 volumeBootRecord.getNumberOfFatCopies(),
-                volumeBootRecord.getFatStartOffset(),
+                volumeBootRecord.getFatStartOffset() + shift,
                 volumeBootRecord.getBytesPerCluster(),
                 volumeBootRecord.getClusterCount(),
                 volumeBootRecord.getNumberOfRootEntries(),
-                volumeBootRecord.getRootDirOffset(),
-                volumeBootRecord.getDataOffset());
+                volumeBootRecord.getRootDirOffset() + shift,
+                volumeBootRecord.getDataOffset() + shift);
     }
 }
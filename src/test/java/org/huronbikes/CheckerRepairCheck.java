@@ -0,0 +1,63 @@
+package org.huronbikes;
+
+import org.huronbikes.dos.Directory.DirectoryItemEntry;
+import org.huronbikes.dos.FAT.FAT16;
+import org.huronbikes.dos.VolumeContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Gives files chains longer than their sizes call for, zero-size files among them, repairs the volume and checks that
+ * a second check finds nothing and that no entry points at a free cluster.
+ */
+public class CheckerRepairCheck {
+    private static final int SIZE_OFFSET = 28;
+
+    public static void main(String[] args) throws IOException {
+        try(var image = ScratchImage.create("CHECKER", 20063)) {
+            try(var volume = new VolumeContext(image.file(), image.offset())) {
+                var fat = (FAT16) volume.getFat();
+                volume.batch(b -> b.mkdir("D")
+                        .createFile("D/EMPTY", new byte[3 * fat.getBytesPerCluster()])
+                        .createFile("D/SHORT", new byte[3 * fat.getBytesPerCluster()]));
+                setFileSize(volume, fat, "EMPTY", 0);
+                setFileSize(volume, fat, "SHORT", 10);
+
+                var report = volume.check(true);
+                if(report.isClean() || !report.repaired()) {
+                    throw new IllegalStateException("the damage was not found: " + report);
+                }
+                var recheck = volume.check(false);
+                if(!recheck.isClean()) {
+                    throw new IllegalStateException("problems remain after repair: " + recheck.problems());
+                }
+                for(var name : new String[] { "D/EMPTY", "D/SHORT" }) {
+                    var entry = volume.resolve(name);
+                    if(fat.isFree(entry.getFirstCluster()) || fat.getClusters(entry.getFirstCluster()).size() != 1) {
+                        throw new IllegalStateException(name + " does not keep exactly its first cluster");
+                    }
+                }
+                System.out.println("repair leaves a clean volume: " + report.problems());
+            }
+        }
+    }
+
+    /**
+     * Overwrites the size of an entry in D's first cluster, leaving its chain alone.
+     */
+    private static void setFileSize(VolumeContext volume, FAT16 fat, String name, int size) throws IOException {
+        int cluster = volume.resolve("D").getFirstCluster();
+        var shortName = DirectoryItemEntry.toShortFileName(name);
+        var data = fat.readCluster(cluster).order(ByteOrder.LITTLE_ENDIAN);
+        for(int offset = 0; offset < data.limit(); offset += DirectoryItemEntry.BYTES_PER_DIRECTORY_ENTRY) {
+            if(Arrays.equals(data.array(), offset, offset + shortName.length, shortName, 0, shortName.length)) {
+                fat.writeCluster(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, size), cluster, offset + SIZE_OFFSET);
+                return;
+            }
+        }
+        throw new IllegalStateException(name + " is not in D's first cluster");
+    }
+}
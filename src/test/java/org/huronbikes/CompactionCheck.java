@@ -0,0 +1,53 @@
+package org.huronbikes;
+
+import org.huronbikes.dos.FAT.FAT16;
+import org.huronbikes.dos.VolumeContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chains zeroed clusters onto the end of a directory, compacts it, which only releases them, and then adds enough
+ * entries to the same directory to grow its chain again, checking the volume afterwards.
+ */
+public class CompactionCheck {
+    private static final int EMPTY_CLUSTERS = 3;
+    private static final int ENTRIES = 200;
+
+    public static void main(String[] args) throws IOException {
+        try(var image = ScratchImage.create("COMPACT", 20063)) {
+            try(var volume = new VolumeContext(image.file(), image.offset())) {
+                volume.batch(b -> b.mkdir("D").createFile("D/F", new byte[10]));
+                var fat = (FAT16) volume.getFat();
+                var chain = new ArrayList<>(List.of(volume.resolve("D").getFirstCluster()));
+                for(int cluster : fat.allocate(EMPTY_CLUSTERS)) {
+                    fat.writeCluster(ByteBuffer.allocate(fat.getBytesPerCluster()), cluster);
+                    chain.add(cluster);
+                }
+                fat.store(chain);
+                fat.commit();
+
+                var directory = fat.getRootDirectory().getSubDirectory("D");
+                // no entry was deleted, so only the empty clusters can make it compact
+                var result = directory.compactIfFragmented(1);
+                if(result == null || result.getClustersFreed() != EMPTY_CLUSTERS) {
+                    throw new IllegalStateException("the empty clusters were not released: " + result);
+                }
+                if(directory.getEmptyTrailingClusterCount() != 0) {
+                    throw new IllegalStateException("empty clusters remain after compaction");
+                }
+                for(int i = 0; i < ENTRIES; i++) {
+                    directory.createFile("G" + i, new byte[1]);
+                }
+                fat.commit();
+                var report = volume.check(false);
+                if(!report.isClean()) {
+                    throw new IllegalStateException("adding entries after compaction left problems: " + report.problems());
+                }
+                System.out.println("compaction released " + result.getClustersFreed() + " empty clusters");
+            }
+        }
+    }
+}
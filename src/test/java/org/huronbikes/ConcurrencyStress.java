@@ -0,0 +1,254 @@
+package org.huronbikes;
+
+import lombok.Builder;
+import org.huronbikes.dos.Directory.DirectoryItemEntry;
+import org.huronbikes.dos.FAT.FileSystemChecker;
+import org.huronbikes.dos.VolumeContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Hammers one volume with concurrent {@link VolumeContext#mkdir}, {@link VolumeContext#createFile} and
+ * {@link VolumeContext#delete} calls and then checks that nothing was lost or mixed up.  Each thread works mostly in a
+ * directory of its own, and also in one directory every thread shares, and remembers what it expects to be there.
+ * Once every thread is done, each directory is listed and each file read back and compared with what its thread
+ * wrote, and the volume is run through {@link FileSystemChecker}.
+ * <p>
+ * Each run works under a root directory of its own, so a volume can be stressed any number of times.  Run without
+ * arguments it formats a scratch image and stresses it twice; given an image and the byte offset of its boot record,
+ * it stresses that volume once.
+ */
+@Builder
+public class ConcurrencyStress {
+    private static final String SHARED_DIRECTORY = "SHARED";
+    private static final String RUN_DIRECTORY_FORMAT = "RUN%05d";
+
+    private final VolumeContext volume;
+
+    @Builder.Default
+    private final int threads = 8;
+
+    @Builder.Default
+    private final int operationsPerThread = 200;
+
+    @Builder.Default
+    private final int maxFileSize = 16 * 1024;
+
+    @Builder.Default
+    private final long seed = 1;
+
+    /**
+     * @param problems every difference between what the threads expect and what the volume holds, and every
+     *                 operation that failed
+     */
+    public record Report(int threads, int operations, long elapsedNanos, List<String> problems, FileSystemChecker.Report check) {
+        public boolean isConsistent() {
+            return problems.isEmpty() && check.isClean();
+        }
+
+        public double getOperationsPerSecond() {
+            return operations / (elapsedNanos / 1e9);
+        }
+    }
+
+    /**
+     * What one thread expects: file paths to the seed and length of their content, and the directories it created.
+     */
+    private static final class Expected {
+        private final Map<String, long[]> files = new HashMap<>();
+        private final List<String> directories = new ArrayList<>();
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean scratch = args.length == 0;
+        var image = scratch ? ScratchImage.create("STRESS", 200063) : new ScratchImage(new File(args[0]), Long.parseLong(args[1]));
+        try(var volume = new VolumeContext(image.file(), image.offset())) {
+            for(int run = 0; run < (scratch ? 2 : 1); run++) {
+                var report = ConcurrencyStress.builder().volume(volume).build().run();
+                System.out.printf("%d threads, %d operations, %.0f operations/s, consistent %s%n",
+                        report.threads(), report.operations(), report.getOperationsPerSecond(), report.isConsistent());
+                report.problems().forEach(System.out::println);
+                report.check().problems().forEach(System.out::println);
+                if(!report.isConsistent()) {
+                    throw new IllegalStateException("the volume is not consistent after the run");
+                }
+            }
+        } finally {
+            if(scratch) {
+                image.close();
+            }
+        }
+    }
+
+    public Report run() throws IOException {
+        var root = createRunDirectory();
+        var shared = root + "/" + SHARED_DIRECTORY;
+        volume.mkdir(shared);
+        List<String> problems = Collections.synchronizedList(new ArrayList<>());
+        var expected = new Expected[threads];
+        var start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long began;
+        try {
+            for(int i = 0; i < threads; i++) {
+                int thread = i;
+                expected[thread] = new Expected();
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                        work(thread, root, shared, expected[thread]);
+                    } catch (Exception e) {
+                        problems.add(String.format("thread %d failed: %s", thread, e));
+                    }
+                });
+            }
+            began = System.nanoTime();
+            start.countDown();
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.HOURS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the threads", e);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - began;
+
+        for(var expectation : expected) {
+            verify(expectation, problems);
+        }
+        verifyListings(root, expected, problems);
+        return new Report(threads, threads * operationsPerThread, elapsed, List.copyOf(problems), volume.check(false));
+    }
+
+    /**
+     * Creates the first free directory of the form RUN00000 in the root directory.
+     */
+    private String createRunDirectory() throws IOException {
+        for(int run = 0; run < 100000; run++) {
+            var name = String.format(RUN_DIRECTORY_FORMAT, run);
+            if(volume.resolve(name) == null) {
+                volume.mkdir(name);
+                return name;
+            }
+        }
+        throw new IllegalStateException("every run directory name is taken");
+    }
+
+    private void work(int thread, String root, String shared, Expected expected) throws IOException {
+        var random = new SplittableRandom(seed * 31 + thread);
+        var home = root + "/T" + thread;
+        volume.mkdir(home);
+        expected.directories.add(home);
+        List<String> files = new ArrayList<>();
+        List<String> emptyDirectories = new ArrayList<>();
+        for(int n = 0; n < operationsPerThread; n++) {
+            int choice = random.nextInt(10);
+            if(choice < 5 || files.isEmpty()) {
+                var parent = choice == 0 ? shared : home;
+                var path = String.format("%s/T%d_%d.DAT", parent, thread, n);
+                long contentSeed = random.nextLong();
+                int length = random.nextInt(maxFileSize + 1);
+                volume.createFile(path, content(contentSeed, length));
+                expected.files.put(path, new long[] { contentSeed, length });
+                files.add(path);
+            } else if(choice < 8) {
+                var path = files.remove(random.nextInt(files.size()));
+                volume.delete(path);
+                expected.files.remove(path);
+            } else if(choice < 9 || emptyDirectories.isEmpty()) {
+                var path = String.format("%s/D%d", home, n);
+                volume.mkdir(path);
+                expected.directories.add(path);
+                emptyDirectories.add(path);
+            } else {
+                var path = emptyDirectories.remove(random.nextInt(emptyDirectories.size()));
+                volume.delete(path);
+                expected.directories.remove(path);
+            }
+        }
+    }
+
+    private void verify(Expected expected, List<String> problems) throws IOException {
+        var snapshot = volume.snapshot();
+        for(var file : expected.files.entrySet()) {
+            var entry = volume.resolve(file.getKey());
+            if(entry == null) {
+                problems.add(String.format("%s is missing", file.getKey()));
+                continue;
+            }
+            var wanted = content(file.getValue()[0], (int) file.getValue()[1]);
+            if(entry.getFileSize() != wanted.length) {
+                problems.add(String.format("%s is %d bytes instead of %d", file.getKey(), entry.getFileSize(), wanted.length));
+                continue;
+            }
+            if(!Arrays.equals(snapshot.readFile(entry), wanted)) {
+                problems.add(String.format("%s does not hold what was written", file.getKey()));
+            }
+        }
+        for(var directory : expected.directories) {
+            var entry = volume.resolve(directory);
+            if(entry == null || !entry.getAttributes().isDirectory()) {
+                problems.add(String.format("directory %s is missing", directory));
+            }
+        }
+    }
+
+    /**
+     * Compares the names in every directory the threads used with the names they expect, which catches entries that
+     * should have been deleted.
+     */
+    private void verifyListings(String root, Expected[] expected, List<String> problems) throws IOException {
+        Map<String, List<String>> names = new HashMap<>();
+        for(var expectation : expected) {
+            for(var path : expectation.files.keySet()) {
+                names.computeIfAbsent(path.substring(0, path.lastIndexOf('/')), p -> new ArrayList<>()).add(path.substring(path.lastIndexOf('/') + 1));
+            }
+            for(var path : expectation.directories) {
+                names.computeIfAbsent(path, p -> new ArrayList<>());
+                int separator = path.lastIndexOf('/');
+                if(separator >= 0) {
+                    names.computeIfAbsent(path.substring(0, separator), p -> new ArrayList<>()).add(path.substring(separator + 1));
+                }
+            }
+        }
+        names.computeIfAbsent(root + "/" + SHARED_DIRECTORY, p -> new ArrayList<>());
+        names.computeIfAbsent(root, p -> new ArrayList<>()).add(SHARED_DIRECTORY);
+        for(var directory : names.entrySet()) {
+            var listed = volume.resolveDirectory(directory.getKey());
+            if(listed == null) {
+                continue;
+            }
+            var actual = listed.getDirectoryEntries()
+                    .map(DirectoryItemEntry::getName)
+                    .filter(name -> !name.equals(".") && !name.equals(".."))
+                    .collect(Collectors.toSet());
+            var wanted = new HashSet<>(directory.getValue());
+            if(!actual.equals(wanted)) {
+                problems.add(String.format("%s lists %d entries instead of %d", directory.getKey(), actual.size(), wanted.size()));
+            }
+        }
+    }
+
+    private static byte[] content(long contentSeed, int length) {
+        var result = new byte[length];
+        new SplittableRandom(contentSeed).nextBytes(result);
+        return result;
+    }
+}
@@ -0,0 +1,69 @@
+package org.huronbikes;
+
+import org.huronbikes.dos.FAT.FAT16;
+import org.huronbikes.dos.VolumeContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Frees a journaled directory cluster, reuses it for file data and crashes before a checkpoint, then checks that
+ * replaying the journal leaves the file data alone.  Runs once with the file written in a batch and once without.
+ */
+public class JournalReplayCheck {
+    public static void main(String[] args) throws IOException {
+        check(true);
+        check(false);
+        System.out.println("journal replay keeps reused clusters intact");
+    }
+
+    private static void check(boolean batched) throws IOException {
+        var journal = File.createTempFile("journal", ".log");
+        var crashImage = File.createTempFile("journal-crash", ".img");
+        var crashJournal = File.createTempFile("journal-crash", ".log");
+        try(var image = ScratchImage.create("JOURNAL", 20063)) {
+            long offset = image.offset();
+            var content = new byte[1000];
+            new Random(7).nextBytes(content);
+            try(var volume = VolumeContext.journaled(image.file(), journal, offset)) {
+                volume.batch(b -> b.mkdir("D"));
+                int directoryCluster = volume.resolve("D").getFirstCluster();
+                // changing the directory again journals its cluster, then freeing it leaves that record behind
+                volume.batch(b -> b.createFile("D/F", new byte[100]));
+                // filling the volume makes the next allocation wrap around to the clusters freed below
+                var fat = (FAT16) volume.getFat();
+                volume.batch(b -> b.createFile("FILL", new byte[(int) fat.getFreeSpace()]));
+                volume.batch(b -> b.delete("D/F").delete("D"));
+                if(batched) {
+                    volume.batch(b -> b.createFile("X", content));
+                } else {
+                    volume.createFile("X", content);
+                }
+                if(volume.resolve("X").getFirstCluster() != directoryCluster) {
+                    throw new IllegalStateException("X did not reuse the directory's cluster " + directoryCluster);
+                }
+                // a crash before the checkpoint: the image and journal as they are now
+                Files.copy(image.file().toPath(), crashImage.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.copy(journal.toPath(), crashJournal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            try(var volume = VolumeContext.journaled(crashImage, crashJournal, offset)) {
+                var file = volume.resolve("X");
+                if(file == null || !Arrays.equals(volume.snapshot().readFile(file), content)) {
+                    throw new IllegalStateException(String.format("X was overwritten by the replay (batched %s)", batched));
+                }
+                var report = volume.check(false);
+                if(!report.isClean()) {
+                    throw new IllegalStateException("volume is not clean after the replay: " + report.problems());
+                }
+            }
+        } finally {
+            journal.delete();
+            crashImage.delete();
+            crashJournal.delete();
+        }
+    }
+}
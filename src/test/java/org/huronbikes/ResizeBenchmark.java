@@ -0,0 +1,67 @@
+package org.huronbikes;
+
+import org.huronbikes.dos.DiskImage;
+import org.huronbikes.dos.FAT.VolumeResizer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmarks {@link VolumeResizer} on a scratch image.  A volume is filled with files and the early ones are deleted,
+ * so the survivors sit near the end; it is then shrunk, which relocates them, grown in place, and grown far enough to
+ * need a larger FAT, which shifts the data region.  Each step prints its report and throughput and checks every file
+ * afterwards.
+ */
+public class ResizeBenchmark {
+    private static final long DISK_SECTORS = 100063;
+    private static final int FILES = 300;
+    private static final int DELETED = 200;
+    private static final int FILE_SIZE = 150000;
+
+    public static void main(String[] args) throws IOException {
+        try(var image = ScratchImage.create("RESIZE", DISK_SECTORS)) {
+            try(var disk = new DiskImage(image.file())) {
+                var volume = disk.getVolume(0);
+                volume.batch(b -> {
+                    b.mkdir("D");
+                    for(int i = 0; i < FILES; i++) {
+                        b.createFile("D/F" + i, content(i));
+                    }
+                });
+                volume.batch(b -> {
+                    for(int i = 0; i < DELETED; i++) {
+                        b.delete("D/F" + i);
+                    }
+                });
+                resize(disk, "shrink", 40000);
+                resize(disk, "grow in place", 90000);
+                resize(disk, "grow with a larger FAT", 260000);
+            }
+        }
+    }
+
+    private static void resize(DiskImage disk, String label, long newSectorCount) throws IOException {
+        var report = disk.resizePartition(0, newSectorCount);
+        System.out.printf("%s: %d to %d sectors, %d clusters moved, %d bytes moved, %d bytes shifted, %.1f ms, %.1f MB/s%n",
+                label, report.oldSectorCount(), report.newSectorCount(), report.clustersMoved(), report.bytesMoved(),
+                report.bytesShifted(), report.elapsedNanos() / 1e6, report.getMegabytesPerSecond());
+        var volume = disk.getVolume(0);
+        var snapshot = volume.snapshot();
+        for(int i = DELETED; i < FILES; i++) {
+            if(!Arrays.equals(snapshot.readFile(volume.resolve("D/F" + i)), content(i))) {
+                throw new IllegalStateException(String.format("D/F%d changed during %s", i, label));
+            }
+        }
+        var check = volume.check(false);
+        if(!check.isClean()) {
+            throw new IllegalStateException(String.format("%s left problems: %s", label, check.problems()));
+        }
+    }
+
+    private static byte[] content(int seed) {
+        var result = new byte[FILE_SIZE];
+        new Random(seed).nextBytes(result);
+        return result;
+    }
+}
@@ -0,0 +1,31 @@
+package org.huronbikes;
+
+import org.huronbikes.dos.ImageFormatter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A temporary image file formatted with one FAT16 partition, shared by the checks and benchmarks in this package.
+ * Closing it deletes the file.
+ * @param file the image file
+ * @param offset the byte offset of the partition, as {@link org.huronbikes.dos.VolumeContext} takes it
+ */
+record ScratchImage(File file, long offset) implements Closeable {
+    static ScratchImage create(String label, long diskSectors) throws IOException {
+        var file = File.createTempFile(label.toLowerCase(), ".img");
+        try {
+            var partition = ImageFormatter.builder().diskSectors(diskSectors).partition(ImageFormatter.PartitionLayout.of(0, label)).build().format(file).getFirst();
+            return new ScratchImage(file, partition.firstSector() * 512);
+        } catch(IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        file.delete();
+    }
+}